@@ -0,0 +1,188 @@
+package com.oose2016.group4.server;
+
+/**
+ * Approximate AADT of grids that no traffic update has discovered, from the grids around them.
+ *
+ * In each of the four directions, the closest grid with an AADT is searched for, starting from the grid itself and
+ * at most MAX_DISTANCE grids away. Its AADT counts for 0.8 per grid of distance, or 1 does if there is none. The
+ * approximation is a third of the sum of the four, and at least 1.
+ *
+ * The grids known to the approximation are those of the grid table when it was built; grids added to the table
+ * afterwards, which are not in the database yet, are not taken into account. Within the bounding box of the known
+ * grids, widened by MAX_DISTANCE, the approximation of every grid is computed up front by four linear sweeps over an
+ * AADT raster, so that each lookup takes constant time. Grids outside of it have no known grid in reach.
+ */
+public class AADTApproximation {
+	/*
+	Number of grids searched in each direction, and how much the AADT of a grid counts per grid of distance.
+	 */
+	static final int MAX_DISTANCE = 10;
+	static final double DISTANCE_DECAY = 0.8;
+
+	/*
+	Upper bound on the number of raster cells, as for AlarmSummedAreaTable. Beyond it, each lookup searches the four
+	directions in the grid table instead.
+	 */
+	static final long MAX_CELLS = 1 << 22;
+
+	/*
+	The influence of a direction without any known grid: 1, decayed over MAX_DISTANCE grids.
+	 */
+	private static final double NONE_IN_REACH = decay(1, MAX_DISTANCE);
+
+	private final GridTable grids;
+	private final int[] aadts;
+
+	/*
+	Approximation of every grid of the raster, row by row, or null if the bounding box is too large to rasterize.
+	 */
+	private final int[] approximations;
+	private final int minX, minY, width, height;
+
+	private AADTApproximation(GridTable grids, int[] aadts, int[] approximations, int minX, int minY, int width,
+			int height) {
+		this.grids = grids;
+		this.aadts = aadts;
+		this.approximations = approximations;
+		this.minX = minX;
+		this.minY = minY;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Build the approximation from the grids currently in a grid table.
+	 * @param grids the grids
+	 * @return the approximation
+	 */
+	public static AADTApproximation build(GridTable grids) {
+		return build(grids, MAX_CELLS);
+	}
+
+	static AADTApproximation build(GridTable grids, long maxCells) {
+		int size = grids.size();
+		int[] aadts = new int[size];
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+		for (int slot = 0; slot < size; slot++) {
+			aadts[slot] = grids.getAADT(slot);
+			minX = Math.min(minX, grids.getX(slot));
+			minY = Math.min(minY, grids.getY(slot));
+			maxX = Math.max(maxX, grids.getX(slot));
+			maxY = Math.max(maxY, grids.getY(slot));
+		}
+		if (size == 0) return new AADTApproximation(grids, aadts, null, 0, 0, 0, 0);
+
+		long width = (long) maxX - minX + 1 + 2 * MAX_DISTANCE, height = (long) maxY - minY + 1 + 2 * MAX_DISTANCE;
+		if (width * height > maxCells) return new AADTApproximation(grids, aadts, null, 0, 0, 0, 0);
+
+		minX -= MAX_DISTANCE;
+		minY -= MAX_DISTANCE;
+		int w = (int) width, h = (int) height;
+		boolean[] known = new boolean[w * h];
+		double[] values = new double[w * h];
+		for (int slot = 0; slot < size; slot++) {
+			int i = (grids.getY(slot) - minY) * w + grids.getX(slot) - minX;
+			known[i] = true;
+			values[i] = aadts[slot];
+		}
+
+		//Added in the same order as the four directions are searched: left, right, up, down.
+		double[] sums = new double[w * h];
+		for (int y = 0; y < h; y++) {
+			sweep(known, values, sums, y * w, 1, w);
+			sweep(known, values, sums, y * w + w - 1, -1, w);
+		}
+		for (int x = 0; x < w; x++) {
+			sweep(known, values, sums, (h - 1) * w + x, -w, h);
+			sweep(known, values, sums, x, w, h);
+		}
+
+		int[] approximations = new int[w * h];
+		for (int i = 0; i < approximations.length; i++) {
+			approximations[i] = approximate(sums[i]);
+		}
+		return new AADTApproximation(grids, aadts, approximations, minX, minY, w, h);
+	}
+
+	/**
+	 * Add the influence of the closest known grid in one direction to every grid of a line of the raster. The line is
+	 * walked against the direction searched, so that the influence on each grid is the decayed influence on the grid
+	 * before it, until MAX_DISTANCE grids away from the last known one.
+	 * @param known whether each grid of the raster is known
+	 * @param values AADT of each known grid of the raster
+	 * @param sums influences added so far to each grid of the raster
+	 * @param start raster index of the first grid of the line
+	 * @param step raster index from one grid of the line to the next
+	 * @param length number of grids on the line
+	 */
+	private static void sweep(boolean[] known, double[] values, double[] sums, int start, int step, int length) {
+		double influence = NONE_IN_REACH;
+		int distance = MAX_DISTANCE;
+		for (int n = 0, i = start; n < length; n++, i += step) {
+			if (known[i]) {
+				influence = values[i];
+				distance = 0;
+			} else if (distance < MAX_DISTANCE - 1) {
+				influence = DISTANCE_DECAY * influence;
+				distance++;
+			} else {
+				influence = NONE_IN_REACH;
+				distance = MAX_DISTANCE;
+			}
+			sums[i] += influence;
+		}
+	}
+
+	/**
+	 * Approximate the AADT of a grid.
+	 * @param x grid x index
+	 * @param y grid y index
+	 * @return the approximate AADT, at least 1
+	 */
+	public int approximate(int x, int y) {
+		if (approximations != null) {
+			long column = (long) x - minX, row = (long) y - minY;
+			if (column >= 0 && column < width && row >= 0 && row < height) {
+				return approximations[(int) row * width + (int) column];
+			}
+			return approximate(NONE_IN_REACH + NONE_IN_REACH + NONE_IN_REACH + NONE_IN_REACH);
+		}
+		return approximate(search(x, y, -1, 0) + search(x, y, 1, 0) + search(x, y, 0, 1) + search(x, y, 0, -1));
+	}
+
+	private static int approximate(double sum) {
+		int aadt = (int) sum * 1/3;
+		if (aadt == 0) aadt++;
+		return aadt;
+	}
+
+	/**
+	 * Influence of the closest known grid in one direction, found by probing the grid table one grid at a time.
+	 * @param x grid x index to start from
+	 * @param y grid y index to start from
+	 * @param xIncrement x index from one grid to the next
+	 * @param yIncrement y index from one grid to the next
+	 * @return the influence
+	 */
+	private double search(int x, int y, int xIncrement, int yIncrement) {
+		for (int distance = 0; distance < MAX_DISTANCE; distance++) {
+			int slot = grids.find(x + distance * xIncrement, y + distance * yIncrement);
+			if (slot >= 0 && slot < aadts.length) return decay(aadts[slot], distance);
+		}
+		return NONE_IN_REACH;
+	}
+
+	/**
+	 * Decay an AADT over a distance, one grid at a time, in the same order of operations as the approximation
+	 * has always used so that the results match to the last bit.
+	 * @param aadt the AADT
+	 * @param distance number of grids
+	 * @return the decayed AADT
+	 */
+	private static double decay(double aadt, int distance) {
+		for (int i = 0; i < distance; i++) {
+			aadt = DISTANCE_DECAY * aadt;
+		}
+		return aadt;
+	}
+}
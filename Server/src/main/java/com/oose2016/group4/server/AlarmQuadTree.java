@@ -0,0 +1,313 @@
+package com.oose2016.group4.server;
+
+import java.util.Arrays;
+
+/**
+ * Region quadtree over the grids of a GridIndex in which every node stores the largest alarm below it.
+ * The top red and yellow linkIds within a box are collected in one best-first traversal: nodes and grids are
+ * visited in descending order of alarm, and subtrees whose largest alarm cannot reach a band that still needs
+ * linkIds are never opened.
+ */
+public class AlarmQuadTree {
+	/*
+	Nodes holding at most this many grids are not split any further.
+	 */
+	private static final int LEAF_SIZE = 16;
+
+	private final int[] xs, ys, linkIds;
+	private final double[] alarms;
+
+	/*
+	Slots reordered so that the grids of every node are contiguous: node n covers slots[start[n] .. end[n]).
+	 */
+	private final int[] slots;
+
+	/*
+	Per-node tight bounding box, largest alarm, grid range and up to four children (-1 for none).
+	 */
+	private int nodeCount;
+	private int[] minX, minY, maxX, maxY, start, end, children;
+	private double[] maxAlarm;
+
+	private AlarmQuadTree(int size, int[] xs, int[] ys, int[] linkIds, double[] alarms) {
+		this.xs = xs;
+		this.ys = ys;
+		this.linkIds = linkIds;
+		this.alarms = alarms;
+
+		slots = new int[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = i;
+		}
+		int capacity = Math.max(16, size / LEAF_SIZE * 4);
+		minX = new int[capacity];
+		minY = new int[capacity];
+		maxX = new int[capacity];
+		maxY = new int[capacity];
+		start = new int[capacity];
+		end = new int[capacity];
+		children = new int[capacity * 4];
+		maxAlarm = new double[capacity];
+	}
+
+	/*
+	A tree with the nodes of another, over other alarms of the same grids.
+	 */
+	private AlarmQuadTree(AlarmQuadTree tree, double[] alarms) {
+		this.xs = tree.xs;
+		this.ys = tree.ys;
+		this.linkIds = tree.linkIds;
+		this.alarms = alarms;
+		slots = tree.slots;
+		nodeCount = tree.nodeCount;
+		minX = tree.minX;
+		minY = tree.minY;
+		maxX = tree.maxX;
+		maxY = tree.maxY;
+		start = tree.start;
+		end = tree.end;
+		children = tree.children;
+		maxAlarm = new double[nodeCount];
+	}
+
+	/**
+	 * Build the tree for a set of grids.
+	 * @param size number of grids
+	 * @param xs grid x indices
+	 * @param ys grid y indices
+	 * @param linkIds grid linkIds
+	 * @param alarms grid alarm values
+	 * @return the tree
+	 */
+	static AlarmQuadTree build(int size, int[] xs, int[] ys, int[] linkIds, double[] alarms) {
+		AlarmQuadTree tree = new AlarmQuadTree(size, xs, ys, linkIds, alarms);
+		if (size > 0) {
+			int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+			for (int i = 0; i < size; i++) {
+				x0 = Math.min(x0, xs[i]);
+				y0 = Math.min(y0, ys[i]);
+				x1 = Math.max(x1, xs[i]);
+				y1 = Math.max(y1, ys[i]);
+			}
+			long side = Long.highestOneBit(Math.max((long) x1 - x0, (long) y1 - y0)) << 1;
+			tree.buildNode(0, size, x0, y0, Math.max(side, 1), new int[size]);
+		}
+		return tree;
+	}
+
+	/**
+	 * A tree over the same grids with other alarm values. The nodes are shared with this tree, so only the largest
+	 * alarm of each node is computed, in a single pass from the leaves up.
+	 * @param alarms alarm of each grid, by slot
+	 * @return the tree
+	 */
+	AlarmQuadTree withAlarms(double[] alarms) {
+		AlarmQuadTree tree = new AlarmQuadTree(this, alarms);
+		//Children are always created after their parent.
+		for (int node = nodeCount - 1; node >= 0; node--) {
+			double max = Double.NEGATIVE_INFINITY;
+			boolean leaf = true;
+			for (int q = 0; q < 4; q++) {
+				int child = children[node * 4 + q];
+				if (child < 0) continue;
+				leaf = false;
+				max = Math.max(max, tree.maxAlarm[child]);
+			}
+			if (leaf) {
+				for (int i = start[node]; i < end[node]; i++) {
+					max = Math.max(max, alarms[slots[i]]);
+				}
+			}
+			tree.maxAlarm[node] = max;
+		}
+		return tree;
+	}
+
+	/*
+	Build the node for slots[from .. to), all of which lie in the square [x0, x0 + side) x [y0, y0 + side).
+	 */
+	private int buildNode(int from, int to, long x0, long y0, long side, int[] scratch) {
+		int node = newNode();
+		start[node] = from;
+		end[node] = to;
+		int nx0 = Integer.MAX_VALUE, ny0 = Integer.MAX_VALUE, nx1 = Integer.MIN_VALUE, ny1 = Integer.MIN_VALUE;
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = from; i < to; i++) {
+			int slot = slots[i];
+			nx0 = Math.min(nx0, xs[slot]);
+			ny0 = Math.min(ny0, ys[slot]);
+			nx1 = Math.max(nx1, xs[slot]);
+			ny1 = Math.max(ny1, ys[slot]);
+			max = Math.max(max, alarms[slot]);
+		}
+		minX[node] = nx0;
+		minY[node] = ny0;
+		maxX[node] = nx1;
+		maxY[node] = ny1;
+		maxAlarm[node] = max;
+		Arrays.fill(children, node * 4, node * 4 + 4, -1);
+		if (to - from <= LEAF_SIZE || side == 1) return node;
+
+		//Partition the slots into the four quadrants of the square, keeping them contiguous per quadrant.
+		long half = side / 2;
+		int[] counts = new int[5];
+		for (int i = from; i < to; i++) {
+			counts[quadrant(slots[i], x0, y0, half) + 1]++;
+		}
+		for (int q = 1; q < 5; q++) {
+			counts[q] += counts[q - 1];
+		}
+		int[] offsets = Arrays.copyOf(counts, 4);
+		for (int i = from; i < to; i++) {
+			scratch[from + offsets[quadrant(slots[i], x0, y0, half)]++] = slots[i];
+		}
+		System.arraycopy(scratch, from, slots, from, to - from);
+
+		for (int q = 0; q < 4; q++) {
+			if (counts[q] == counts[q + 1]) continue;
+			int child = buildNode(from + counts[q], from + counts[q + 1],
+					x0 + (q & 1) * half, y0 + (q >> 1) * half, half, scratch);
+			children[node * 4 + q] = child;
+		}
+		return node;
+	}
+
+	private int quadrant(int slot, long x0, long y0, long half) {
+		return (xs[slot] >= x0 + half ? 1 : 0) + (ys[slot] >= y0 + half ? 2 : 0);
+	}
+
+	private int newNode() {
+		if (nodeCount == maxAlarm.length) {
+			int capacity = nodeCount * 2;
+			minX = Arrays.copyOf(minX, capacity);
+			minY = Arrays.copyOf(minY, capacity);
+			maxX = Arrays.copyOf(maxX, capacity);
+			maxY = Arrays.copyOf(maxY, capacity);
+			start = Arrays.copyOf(start, capacity);
+			end = Arrays.copyOf(end, capacity);
+			children = Arrays.copyOf(children, capacity * 4);
+			maxAlarm = Arrays.copyOf(maxAlarm, capacity);
+		}
+		return nodeCount++;
+	}
+
+	/**
+	 * Collect the linkIds of grids within an inclusive box of grid indices, highest alarm first, into a red band
+	 * (alarm above redAlarm) and a yellow band (alarm above yellowAlarm, up to redAlarm), without duplicates.
+	 * @param fromX smallest x index
+	 * @param fromY smallest y index
+	 * @param toX largest x index
+	 * @param toY largest y index
+	 * @param redAlarm lower (exclusive) alarm bound of the red band
+	 * @param yellowAlarm lower (exclusive) alarm bound of the yellow band
+	 * @param limit maximum number of linkIds per band
+	 * @return linkIds to avoid
+	 */
+	public AvoidLinkIds topLinkIds(int fromX, int fromY, int toX, int toY,
+								   double redAlarm, double yellowAlarm, int limit) {
+		int[] red = new int[limit], yellow = new int[limit];
+		int redCount = 0, yellowCount = 0;
+
+		/*
+		Max-heap of pending entries keyed by alarm. Entries >= 0 are nodes, entries < 0 are grids (-slot - 1).
+		 */
+		double[] heapKeys = new double[64];
+		int[] heapIds = new int[64];
+		int heapSize = 0;
+		if (nodeCount > 0 && intersects(0, fromX, fromY, toX, toY)) {
+			heapKeys[0] = maxAlarm[0];
+			heapIds[0] = 0;
+			heapSize = 1;
+		}
+
+		while (heapSize > 0 && (redCount < limit || yellowCount < limit)) {
+			double key = heapKeys[0];
+			int id = heapIds[0];
+			heapSize--;
+			heapKeys[0] = heapKeys[heapSize];
+			heapIds[0] = heapIds[heapSize];
+			siftDown(heapKeys, heapIds, heapSize, 0);
+
+			//Nothing below this entry can be yellow, or red once yellow is full.
+			if (key <= yellowAlarm || (yellowCount == limit && key <= redAlarm)) break;
+
+			if (id < 0) {
+				int slot = -id - 1;
+				int linkId = linkIds[slot];
+				if (key > redAlarm) {
+					if (redCount < limit && !contains(red, redCount, linkId)) red[redCount++] = linkId;
+				} else if (!contains(yellow, yellowCount, linkId)) {
+					yellow[yellowCount++] = linkId;
+				}
+				continue;
+			}
+
+			int childCount = 0;
+			for (int q = 0; q < 4; q++) {
+				int child = children[id * 4 + q];
+				if (child < 0) continue;
+				childCount++;
+				if (!intersects(child, fromX, fromY, toX, toY)) continue;
+				if (heapSize + 1 > heapKeys.length) {
+					heapKeys = Arrays.copyOf(heapKeys, heapKeys.length * 2);
+					heapIds = Arrays.copyOf(heapIds, heapIds.length * 2);
+				}
+				heapSize = push(heapKeys, heapIds, heapSize, maxAlarm[child], child);
+			}
+			if (childCount > 0) continue;
+
+			//Leaf: queue its grids that are within the box.
+			for (int i = start[id]; i < end[id]; i++) {
+				int slot = slots[i];
+				if (xs[slot] < fromX || xs[slot] > toX || ys[slot] < fromY || ys[slot] > toY) continue;
+				if (heapSize + 1 > heapKeys.length) {
+					heapKeys = Arrays.copyOf(heapKeys, heapKeys.length * 2);
+					heapIds = Arrays.copyOf(heapIds, heapIds.length * 2);
+				}
+				heapSize = push(heapKeys, heapIds, heapSize, alarms[slot], -slot - 1);
+			}
+		}
+		return new AvoidLinkIds(Arrays.copyOf(red, redCount), Arrays.copyOf(yellow, yellowCount));
+	}
+
+	private boolean intersects(int node, int fromX, int fromY, int toX, int toY) {
+		return minX[node] <= toX && maxX[node] >= fromX && minY[node] <= toY && maxY[node] >= fromY;
+	}
+
+	private static int push(double[] keys, int[] ids, int size, double key, int id) {
+		int i = size;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (keys[parent] >= key) break;
+			keys[i] = keys[parent];
+			ids[i] = ids[parent];
+			i = parent;
+		}
+		keys[i] = key;
+		ids[i] = id;
+		return size + 1;
+	}
+
+	private static void siftDown(double[] keys, int[] ids, int size, int i) {
+		double key = keys[i];
+		int id = ids[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) break;
+			if (child + 1 < size && keys[child + 1] > keys[child]) child++;
+			if (keys[child] <= key) break;
+			keys[i] = keys[child];
+			ids[i] = ids[child];
+			i = child;
+		}
+		keys[i] = key;
+		ids[i] = id;
+	}
+
+	private static boolean contains(int[] values, int count, int value) {
+		for (int i = 0; i < count; i++) {
+			if (values[i] == value) return true;
+		}
+		return false;
+	}
+}
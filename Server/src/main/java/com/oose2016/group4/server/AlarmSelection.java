@@ -0,0 +1,65 @@
+package com.oose2016.group4.server;
+
+/**
+ * Which alarm of the grids a risk query reads: the raw alarm of all crimes, of the crimes at one hour of the day, of
+ * the crimes within a window of dates, or the decayed alarm. These cannot be combined, so there is one factory each.
+ */
+public class AlarmSelection {
+	/** The raw alarm of all crimes. */
+	public static final AlarmSelection ALL = new AlarmSelection(HourlyAlarmIndex.ANY_TIME, null, Scoring.RAW);
+
+	/** The alarm of all crimes, weighed down by their age, see DecayedAlarm. */
+	public static final AlarmSelection DECAYED = new AlarmSelection(HourlyAlarmIndex.ANY_TIME, null, Scoring.DECAYED);
+
+	private final int timeOfDay;
+	private final DateWindow window;
+	private final Scoring scoring;
+
+	private AlarmSelection(int timeOfDay, DateWindow window, Scoring scoring) {
+		this.timeOfDay = timeOfDay;
+		this.window = window;
+		this.scoring = scoring;
+	}
+
+	/**
+	 * The raw alarm of the crimes at one hour of the day.
+	 * @param timeOfDay hour of day from 0 to 23
+	 * @return the selection
+	 * @throws IllegalArgumentException if there is no such hour
+	 */
+	public static AlarmSelection atHour(int timeOfDay) {
+		if (timeOfDay < 0 || timeOfDay >= HourlyAlarmIndex.HOURS) {
+			throw new IllegalArgumentException("Time of day must be an hour between 0 and 23");
+		}
+		return new AlarmSelection(timeOfDay, null, Scoring.RAW);
+	}
+
+	/**
+	 * The raw alarm of the crimes within a window of dates.
+	 * @param window the window
+	 * @return the selection
+	 * @throws IllegalArgumentException if there is no window
+	 */
+	public static AlarmSelection within(DateWindow window) {
+		if (window == null) throw new IllegalArgumentException("A date window is needed");
+		return new AlarmSelection(HourlyAlarmIndex.ANY_TIME, window, Scoring.RAW);
+	}
+
+	/**
+	 * @return the hour of day, or HourlyAlarmIndex.ANY_TIME
+	 */
+	public int getTimeOfDay() {
+		return timeOfDay;
+	}
+
+	/**
+	 * @return the window of crime dates, or null for all of them
+	 */
+	public DateWindow getWindow() {
+		return window;
+	}
+
+	public Scoring getScoring() {
+		return scoring;
+	}
+}
@@ -0,0 +1,106 @@
+package com.oose2016.group4.server;
+
+/**
+ * Summed-area table (2D prefix sums) over the alarm raster of a GridIndex, so that the sum of alarms over
+ * any rectangle of grids takes four lookups, whatever the size of the rectangle.
+ * The raster spans the bounding box of all known grids; grids outside of it contribute nothing.
+ */
+public class AlarmSummedAreaTable {
+	/*
+	Upper bound on the number of raster cells, about 32MB of doubles. The grids we track around Baltimore only need
+	a small fraction of this; a bounding box larger than that means the table is too sparse to be worth it.
+	 */
+	static final long MAX_CELLS = 1 << 22;
+
+	private final int minX, minY, maxX, maxY;
+	private final int stride;
+
+	/*
+	sums[(y - minY + 1) * stride + (x - minX + 1)] holds the sum of alarms of all grids (x', y') with
+	minX <= x' <= x and minY <= y' <= y. Row and column 0 are all zeros to avoid edge checks.
+	Whole-number alarms, such as raw counts, stay exact as long as the total is below 2^53. Fractional alarms, such as
+	decayed ones, are rounded once per addition: a prefix sum is accumulated through at most width + height additions of
+	non-negative terms, so each of the four lookups below is off by at most (width + height) * 2^-53 times the total
+	alarm of the raster, and a rectangle sum by four times that. Even for millions of alarms over thousands of grids
+	this is a small fraction of a single alarm, far from mattering against the rating thresholds.
+	 */
+	private final double[] sums;
+	private final double errorBound;
+
+	private AlarmSummedAreaTable(int minX, int minY, int maxX, int maxY, double[] sums, double total) {
+		this.minX = minX;
+		this.minY = minY;
+		this.maxX = maxX;
+		this.maxY = maxY;
+		this.stride = maxX - minX + 2;
+		this.sums = sums;
+		this.errorBound = 4 * (stride + maxY - minY + 2) * Math.ulp(1.0) * total;
+	}
+
+	/**
+	 * Build the table for a set of grids.
+	 * @param size number of grids
+	 * @param xs grid x indices
+	 * @param ys grid y indices
+	 * @param alarms grid alarm values
+	 * @return the table, or null if there is no grid or the bounding box is too large to rasterize
+	 */
+	static AlarmSummedAreaTable build(int size, int[] xs, int[] ys, double[] alarms) {
+		if (size == 0) return null;
+
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+		for (int i = 0; i < size; i++) {
+			minX = Math.min(minX, xs[i]);
+			minY = Math.min(minY, ys[i]);
+			maxX = Math.max(maxX, xs[i]);
+			maxY = Math.max(maxY, ys[i]);
+		}
+		long cells = ((long) maxX - minX + 2) * ((long) maxY - minY + 2);
+		if (cells > MAX_CELLS) return null;
+
+		int stride = maxX - minX + 2;
+		double[] sums = new double[(int) cells];
+		double total = 0;
+		for (int i = 0; i < size; i++) {
+			sums[(ys[i] - minY + 1) * stride + (xs[i] - minX + 1)] += alarms[i];
+			total += Math.abs(alarms[i]);
+		}
+		for (int row = 1; row < maxY - minY + 2; row++) {
+			double rowSum = 0;
+			for (int column = 1; column < stride; column++) {
+				int i = row * stride + column;
+				rowSum += sums[i];
+				sums[i] = rowSum + sums[i - stride];
+			}
+		}
+		return new AlarmSummedAreaTable(minX, minY, maxX, maxY, sums, total);
+	}
+
+	/**
+	 * Return how far a rectangle sum may be from the exact sum of its alarms, because of rounding.
+	 * @return the largest absolute error of sum
+	 */
+	double errorBound() {
+		return errorBound;
+	}
+
+	/**
+	 * Sum the alarm values of all grids within an inclusive rectangle of grid indices.
+	 * @param fromX smallest x index
+	 * @param fromY smallest y index
+	 * @param toX largest x index
+	 * @param toY largest y index
+	 * @return sum of alarms
+	 */
+	public double sum(int fromX, int fromY, int toX, int toY) {
+		fromX = Math.max(fromX, minX);
+		fromY = Math.max(fromY, minY);
+		toX = Math.min(toX, maxX);
+		toY = Math.min(toY, maxY);
+		if (fromX > toX || fromY > toY) return 0;
+
+		int left = fromX - minX, right = toX - minX + 1;
+		int top = (fromY - minY) * stride, bottom = (toY - minY + 1) * stride;
+		return sums[bottom + right] - sums[bottom + left] - sums[top + right] + sums[top + left];
+	}
+}
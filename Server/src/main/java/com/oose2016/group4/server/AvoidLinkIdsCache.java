@@ -0,0 +1,125 @@
+package com.oose2016.group4.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of avoidLinkIds results for the grids table. The linkIds of a box only depend on the grids of its
+ * corners and the time of day, so boxes are keyed by their corner grid indices and hour: all boxes whose corners
+ * fall into the same grids share an entry. Entries belong to the data version they were computed under, and the whole
+ * cache is dropped as soon as a newer version shows up. Beyond the capacity, the least recently used entry is evicted.
+ */
+public class AvoidLinkIdsCache {
+	static final int DEFAULT_CAPACITY = 4096;
+
+	private final Map<Key, AvoidLinkIds> entries;
+	private long version = Long.MIN_VALUE;
+	private long hits, misses, evictions;
+
+	/**
+	 * Create a cache of DEFAULT_CAPACITY entries.
+	 */
+	public AvoidLinkIdsCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create a cache.
+	 * @param capacity largest number of entries
+	 */
+	public AvoidLinkIdsCache(int capacity) {
+		entries = new LinkedHashMap<Key, AvoidLinkIds>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, AvoidLinkIds> eldest) {
+				if (size() <= capacity) return false;
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Look up the linkIds of a box.
+	 * @param version data version of the caller
+	 * @param hour hour of day, or HourlyAlarmIndex.ANY_TIME
+	 * @param fromGrid grid of the top left coordinate
+	 * @param toGrid grid of the bottom right coordinate
+	 * @return the linkIds, or null if they are not cached for this version
+	 */
+	public synchronized AvoidLinkIds get(long version, int hour, Grid fromGrid, Grid toGrid) {
+		moveTo(version);
+		AvoidLinkIds ids = version == this.version ? entries.get(new Key(hour, fromGrid, toGrid)) : null;
+		if (ids != null) hits++;
+		else misses++;
+		return ids;
+	}
+
+	/**
+	 * Cache the linkIds of a box. Results of a version older than the cache's are dropped.
+	 * @param version data version the linkIds were computed under
+	 * @param hour hour of day, or HourlyAlarmIndex.ANY_TIME
+	 * @param fromGrid grid of the top left coordinate
+	 * @param toGrid grid of the bottom right coordinate
+	 * @param ids the linkIds
+	 */
+	public synchronized void put(long version, int hour, Grid fromGrid, Grid toGrid, AvoidLinkIds ids) {
+		moveTo(version);
+		if (version == this.version) entries.put(new Key(hour, fromGrid, toGrid), ids);
+	}
+
+	private void moveTo(long version) {
+		if (version > this.version) {
+			entries.clear();
+			this.version = version;
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d entries, %d hits, %d misses, %d evictions", entries.size(), hits, misses, evictions);
+	}
+
+	/**
+	 * Corner grids of a box, and the hour of day.
+	 */
+	private static class Key {
+		private final int hour;
+		private final long from, to;
+
+		Key(int hour, Grid fromGrid, Grid toGrid) {
+			this.hour = hour;
+			from = GridIndex.pack(fromGrid.getX(), fromGrid.getY());
+			to = GridIndex.pack(toGrid.getX(), toGrid.getY());
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key other = (Key) o;
+			return hour == other.hour && from == other.from && to == other.to;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode((from * 31 + to) * 31 + hour);
+		}
+	}
+}
@@ -0,0 +1,363 @@
+package com.oose2016.group4.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of the avoidLinkIds, crimes and safety rating responses, served instead of JSON to clients
+ * that ask for MEDIA_TYPE.
+ *
+ * Every message starts with the byte 'S', a version byte and a byte for its kind. Integers are unsigned LEB128
+ * varints; signed values are zigzag-encoded first. Strings are a varint byte length followed by UTF-8.
+ * <ul>
+ * <li>AVOID_LINK_IDS: for red, then yellow, a varint count followed by the linkIds in their order, each as the
+ * zigzag delta from the one before (the first from 0).</li>
+ * <li>CRIMES: a sequence of records, each starting with a tag byte. TAG_CRIME is followed by the zigzag date delta
+ * from the previous crime, latitude and longitude in millionths of a degree as zigzag deltas from the previous crime,
+ * the zigzag linkId, then the type and the address as dictionary references: 0 for a new string, which follows and
+ * takes the next code, or code + 1 for a string seen before; a missing type is sent as an empty string.
+ * TAG_NEXT_CURSOR is followed by the cursor token of the next page. TAG_END ends the message.</li>
+ * <li>RATING: one byte, 0 for green, 1 for yellow and 2 for red.</li>
+ * <li>RATINGS: a varint count followed by one RATING byte per coordinate.</li>
+ * </ul>
+ */
+public class BinaryCodec {
+	public static final String MEDIA_TYPE = "application/x-survival-bin";
+
+	static final int MAGIC = 'S';
+	static final int VERSION = 1;
+	static final int AVOID_LINK_IDS = 1, CRIMES = 2, RATING = 3, RATINGS = 4;
+	static final int TAG_END = 0, TAG_CRIME = 1, TAG_NEXT_CURSOR = 2;
+
+	/*
+	Coordinates are sent in fixed point, 1e-6 degrees being about 11 cm.
+	 */
+	static final double COORDINATE_SCALE = 1e6;
+
+	private static final String[] RATINGS_BY_CODE = {"green", "yellow", "red"};
+
+	private BinaryCodec() {
+	}
+
+	/**
+	 * Encode linkIds to avoid.
+	 * @param ids linkIds
+	 * @return the message
+	 */
+	public static byte[] encode(AvoidLinkIds ids) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			writeHeader(out, AVOID_LINK_IDS);
+			writeDeltas(out, ids.getRed());
+			writeDeltas(out, ids.getYellow());
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decode linkIds to avoid.
+	 * @param message the message
+	 * @return linkIds
+	 * @throws IOException if the message is not a valid AVOID_LINK_IDS message
+	 */
+	public static AvoidLinkIds decodeAvoidLinkIds(InputStream message) throws IOException {
+		readHeader(message, AVOID_LINK_IDS);
+		int[] red = readDeltas(message);
+		int[] yellow = readDeltas(message);
+		return new AvoidLinkIds(red, yellow);
+	}
+
+	/**
+	 * Encode a safety rating.
+	 * @param rating one of red/yellow/green
+	 * @return the message
+	 */
+	public static byte[] encodeRating(String rating) {
+		return new byte[] {(byte) MAGIC, (byte) VERSION, (byte) RATING, (byte) ratingCode(rating)};
+	}
+
+	/**
+	 * Decode a safety rating.
+	 * @param message the message
+	 * @return one of red/yellow/green
+	 * @throws IOException if the message is not a valid RATING message
+	 */
+	public static String decodeRating(InputStream message) throws IOException {
+		readHeader(message, RATING);
+		return readRating(message);
+	}
+
+	/**
+	 * Encode the safety ratings of many coordinates.
+	 * @param ratings one of red/yellow/green per coordinate
+	 * @return the message
+	 */
+	public static byte[] encodeRatings(String[] ratings) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(ratings.length + 8);
+		try {
+			writeHeader(out, RATINGS);
+			writeUnsigned(out, ratings.length);
+			for (String rating : ratings) {
+				out.write(ratingCode(rating));
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decode the safety ratings of many coordinates.
+	 * @param message the message
+	 * @return one of red/yellow/green per coordinate
+	 * @throws IOException if the message is not a valid RATINGS message
+	 */
+	public static String[] decodeRatings(InputStream message) throws IOException {
+		readHeader(message, RATINGS);
+		long count = readUnsigned(message);
+		if (count > Integer.MAX_VALUE) throw new IOException("Too many ratings");
+		String[] ratings = new String[(int) count];
+		for (int i = 0; i < ratings.length; i++) {
+			ratings[i] = readRating(message);
+		}
+		return ratings;
+	}
+
+	private static int ratingCode(String rating) {
+		for (int code = 0; code < RATINGS_BY_CODE.length; code++) {
+			if (RATINGS_BY_CODE[code].equals(rating)) return code;
+		}
+		throw new IllegalArgumentException("Unknown rating " + rating);
+	}
+
+	private static String readRating(InputStream in) throws IOException {
+		int code = readByte(in);
+		if (code >= RATINGS_BY_CODE.length) throw new IOException("Unknown rating code " + code);
+		return RATINGS_BY_CODE[code];
+	}
+
+	/**
+	 * Writes a CRIMES message one crime at a time.
+	 */
+	public static class CrimeWriter implements CrimeVisitor {
+		private final OutputStream out;
+		private final Map<String, Integer> types = new HashMap<>(), addresses = new HashMap<>();
+		private int date;
+		private long latitude, longitude;
+
+		/**
+		 * Start a CRIMES message.
+		 * @param out stream to write to
+		 * @throws IOException when the stream fails
+		 */
+		public CrimeWriter(OutputStream out) throws IOException {
+			this.out = out;
+			writeHeader(out, CRIMES);
+		}
+
+		@Override
+		public void visit(Crime crime) throws IOException {
+			long lat = Math.round(crime.getLat() * COORDINATE_SCALE);
+			long lng = Math.round(crime.getLng() * COORDINATE_SCALE);
+			out.write(TAG_CRIME);
+			writeSigned(out, (long) crime.getDate() - date);
+			writeSigned(out, lat - latitude);
+			writeSigned(out, lng - longitude);
+			writeSigned(out, crime.getLinkId());
+			writeReference(types, crime.getType());
+			writeReference(addresses, crime.getAddress());
+			date = crime.getDate();
+			latitude = lat;
+			longitude = lng;
+		}
+
+		private void writeReference(Map<String, Integer> dictionary, String value) throws IOException {
+			String key = value == null ? "" : value;
+			Integer code = dictionary.get(key);
+			if (code != null) {
+				writeUnsigned(out, code + 1);
+				return;
+			}
+			dictionary.put(key, dictionary.size());
+			writeUnsigned(out, 0);
+			writeString(out, key);
+		}
+
+		/**
+		 * End the message.
+		 * @param next cursor of the next page, or null if there is none
+		 * @throws IOException when the stream fails
+		 */
+		public void finish(CrimeCursor next) throws IOException {
+			if (next != null) {
+				out.write(TAG_NEXT_CURSOR);
+				writeString(out, next.encode());
+			}
+			out.write(TAG_END);
+		}
+	}
+
+	/**
+	 * Reads a CRIMES message one crime at a time.
+	 */
+	public static class CrimeReader {
+		private final InputStream in;
+		private final List<String> types = new ArrayList<>(), addresses = new ArrayList<>();
+		private int date;
+		private long latitude, longitude;
+		private CrimeCursor next;
+		private boolean ended;
+
+		/**
+		 * Start reading a CRIMES message.
+		 * @param in stream to read from
+		 * @throws IOException if the message is not a CRIMES message
+		 */
+		public CrimeReader(InputStream in) throws IOException {
+			this.in = in;
+			readHeader(in, CRIMES);
+		}
+
+		/**
+		 * Read the next crime.
+		 * @return the crime, or null at the end of the message
+		 * @throws IOException if the message is malformed
+		 */
+		public Crime next() throws IOException {
+			while (!ended) {
+				int tag = readByte(in);
+				if (tag == TAG_END) {
+					ended = true;
+				} else if (tag == TAG_NEXT_CURSOR) {
+					next = CrimeCursor.decode(readString(in));
+				} else if (tag == TAG_CRIME) {
+					date += (int) readSigned(in);
+					latitude += readSigned(in);
+					longitude += readSigned(in);
+					int linkId = (int) readSigned(in);
+					String type = readReference(types);
+					String address = readReference(addresses);
+					return new Crime(date, address, type,
+							latitude / COORDINATE_SCALE, longitude / COORDINATE_SCALE, linkId);
+				} else {
+					throw new IOException("Unknown record tag " + tag);
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Cursor of the next page, known once next() has returned null.
+		 * @return the cursor, or null if this was the last page
+		 */
+		public CrimeCursor getNextCursor() {
+			return next;
+		}
+
+		private String readReference(List<String> dictionary) throws IOException {
+			long code = readUnsigned(in);
+			if (code == 0) {
+				String value = readString(in);
+				dictionary.add(value);
+				return value;
+			}
+			if (code > dictionary.size()) throw new IOException("Unknown dictionary code " + code);
+			return dictionary.get((int) code - 1);
+		}
+	}
+
+	private static void writeHeader(OutputStream out, int kind) throws IOException {
+		out.write(MAGIC);
+		out.write(VERSION);
+		out.write(kind);
+	}
+
+	private static void readHeader(InputStream in, int kind) throws IOException {
+		if (readByte(in) != MAGIC || readByte(in) != VERSION) throw new IOException("Not a version " + VERSION
+				+ " survival message");
+		int actual = readByte(in);
+		if (actual != kind) throw new IOException("Expected message kind " + kind + " but got " + actual);
+	}
+
+	private static void writeDeltas(OutputStream out, int[] values) throws IOException {
+		writeUnsigned(out, values.length);
+		long previous = 0;
+		for (int value : values) {
+			writeSigned(out, value - previous);
+			previous = value;
+		}
+	}
+
+	private static int[] readDeltas(InputStream in) throws IOException {
+		long count = readUnsigned(in);
+		if (count > Integer.MAX_VALUE) throw new IOException("Too many values");
+		int[] values = new int[(int) count];
+		long previous = 0;
+		for (int i = 0; i < values.length; i++) {
+			previous += readSigned(in);
+			values[i] = (int) previous;
+		}
+		return values;
+	}
+
+	static void writeUnsigned(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	static long readUnsigned(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readByte(in);
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new IOException("Varint too long");
+	}
+
+	static void writeSigned(OutputStream out, long value) throws IOException {
+		writeUnsigned(out, (value << 1) ^ (value >> 63));
+	}
+
+	static long readSigned(InputStream in) throws IOException {
+		long value = readUnsigned(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void writeString(OutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeUnsigned(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(InputStream in) throws IOException {
+		long length = readUnsigned(in);
+		if (length > Integer.MAX_VALUE) throw new IOException("String too long");
+		byte[] bytes = new byte[(int) length];
+		for (int read = 0; read < bytes.length; ) {
+			int n = in.read(bytes, read, bytes.length - read);
+			if (n < 0) throw new EOFException();
+			read += n;
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static int readByte(InputStream in) throws IOException {
+		int b = in.read();
+		if (b < 0) throw new EOFException();
+		return b;
+	}
+}
@@ -7,15 +7,13 @@ package com.oose2016.group4.server;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.sqlite.SQLiteDataSource;
-
-import javax.sql.DataSource;
 
 import static spark.Spark.*;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.sql.SQLException;
 
 /**
  * The main function that runs all of the backend and stands up the server.
@@ -25,7 +23,7 @@ public class Bootstrap {
 
 	public static void main(String[] args) throws Exception {
 		// Check if the database file exists in the current directory. Abort if not
-		DataSource dataSource = configureDataSource();
+		SQLiteConnectionPool dataSource = configureDataSource();
 		if (dataSource == null) {
 			System.out.printf("Could not find server.db in the current directory (%s). Terminating\n",
 					Paths.get(".").toAbsolutePath().normalize());
@@ -38,10 +36,58 @@ public class Bootstrap {
 		// Specify the sub-directory from which to serve static resources (like
 		// html and css)
 		staticFileLocation("/public");
+
+		SurvivalService survivalService = new SurvivalService(dataSource, dataSource.getWriter());
+		survivalService.setAlarmHalfLife(getAlarmHalfLifeDays() * 86400);
+		survivalService.setLinkIdRequestsPerSecond(getLinkIdRequestsPerSecond());
+
+		// Serve the heatmap tile pyramid kept up to date by the database updates, if there is one
+		String tileDirectory = getTileDirectory();
+		if (tileDirectory != null) {
+			Path tiles = Paths.get(tileDirectory).toAbsolutePath();
+			Files.createDirectories(tiles.resolve("heatmap"));
+			externalStaticFileLocation(tiles.toString());
+			survivalService.setTilePyramid(new TilePyramid(tiles.resolve("heatmap")));
+		}
 				
 		// Create the model instance and then configure and start the web
 		// service
-		new SurvivalController(new SurvivalService(dataSource));
+		new SurvivalController(survivalService);
+	}
+
+	/**
+	 * Return the directory to keep heatmap tiles in, served under /heatmap/{x}-{y}-{z}.png.
+	 * @return the directory, or null to not keep tiles on disk
+	 */
+	public static String getTileDirectory() {
+		ProcessBuilder processBuilder = new ProcessBuilder();
+		return processBuilder.environment().get("TILE_DIR");
+	}
+
+	/**
+	 * Return the half-life of the decayed alarm, after which a crime counts half as much.
+	 * @return the half-life in days
+	 */
+	public static int getAlarmHalfLifeDays() {
+		ProcessBuilder processBuilder = new ProcessBuilder();
+		String days = processBuilder.environment().get("ALARM_HALF_LIFE_DAYS");
+		if (days != null) {
+			return Integer.parseInt(days);
+		}
+		return DecayedAlarm.DEFAULT_HALF_LIFE / 86400;
+	}
+
+	/**
+	 * Return how many linkId requests to send to MapQuest per second at most.
+	 * @return the rate
+	 */
+	public static double getLinkIdRequestsPerSecond() {
+		ProcessBuilder processBuilder = new ProcessBuilder();
+		String rate = processBuilder.environment().get("MAPQUEST_REQUESTS_PER_SECOND");
+		if (rate != null) {
+			return Double.parseDouble(rate);
+		}
+		return LinkIdResolver.DEFAULT_REQUESTS_PER_SECOND;
 	}
 
 	/**
@@ -57,13 +103,26 @@ public class Bootstrap {
 		return 8080;
 	}
 
+	/**
+	 * Return the number of read-only database connections to pool.
+	 * @return the pool size
+	 */
+	public static int getPoolSize() {
+		ProcessBuilder processBuilder = new ProcessBuilder();
+		String poolSize = processBuilder.environment().get("DB_POOL_SIZE");
+		if (poolSize != null) {
+			return Integer.parseInt(poolSize);
+		}
+		return 8;
+	}
+
 	/**
 	 * Check if the database file exists in the current directory. If it does
-	 * create a DataSource instance for the file and return it.
+	 * create a connection pool for the file and return it.
 	 * 
-	 * @return javax.sql.DataSource corresponding to the server database
+	 * @return connection pool of the server database, or null if it cannot be opened
 	 */
-	private static DataSource configureDataSource() {
+	private static SQLiteConnectionPool configureDataSource() {
 		Path serverPath = Paths.get(".", "server.db");
 		if (!(Files.exists(serverPath))) {
 			try {
@@ -73,8 +132,11 @@ public class Bootstrap {
 			}
 		}
 
-		SQLiteDataSource dataSource = new SQLiteDataSource();
-		dataSource.setUrl("jdbc:sqlite:server.db");
-		return dataSource;
+		try {
+			return new SQLiteConnectionPool("jdbc:sqlite:server.db", getPoolSize());
+		} catch (SQLException ex) {
+			logger.error("Failed to open server.db", ex);
+			return null;
+		}
 	}
 }
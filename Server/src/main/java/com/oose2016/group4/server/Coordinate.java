@@ -32,7 +32,7 @@ public class Coordinate {
 		/*
 		abort if the coordinate parameter is illegal
 		 */
-		if (latitude < -90 || latitude > 90 || longitude < -180 || longitude > 180) {
+		if (!isValid(latitude, longitude)) {
 			throw new Exception("Not valid coordinate");
 		}
 
@@ -40,6 +40,16 @@ public class Coordinate {
 		this.longitude = longitude;
 	}
 
+	/**
+	 * Check whether a latitude and longitude pair is on the map.
+	 * @param latitude the latitude
+	 * @param longitude the longitude
+	 * @return true if the coordinate is valid
+	 */
+	public static boolean isValid(double latitude, double longitude) {
+		return latitude >= -90 && latitude <= 90 && longitude >= -180 && longitude <= 180;
+	}
+
 	/**
 	 * Sort coordinates and expand a bit so that after the processing, we can always assume that
 	 * latitude of a less than latitude of b, longitude of a less than longitude of b
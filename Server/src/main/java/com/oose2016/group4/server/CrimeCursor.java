@@ -0,0 +1,58 @@
+package com.oose2016.group4.server;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/**
+ * Position in the listing of crimes, which is ordered by (date, rowid). Clients get it as an opaque token and send it
+ * back to continue the listing right after the last crime they received.
+ */
+public class CrimeCursor {
+	/*
+	Position before every crime.
+	 */
+	static final CrimeCursor START = new CrimeCursor(Integer.MIN_VALUE, Long.MIN_VALUE);
+
+	private final int date;
+	private final long rowId;
+
+	/**
+	 * Constructor for CrimeCursor
+	 * @param date date of the last crime received, in seconds
+	 * @param rowId rowid of the last crime received
+	 */
+	public CrimeCursor(int date, long rowId) {
+		this.date = date;
+		this.rowId = rowId;
+	}
+
+	public int getDate() {
+		return date;
+	}
+
+	public long getRowId() {
+		return rowId;
+	}
+
+	/**
+	 * Turn the cursor into a URL-safe token.
+	 * @return the token
+	 */
+	public String encode() {
+		ByteBuffer buffer = ByteBuffer.allocate(12).putInt(date).putLong(rowId);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+	}
+
+	/**
+	 * Read a cursor back from its token.
+	 * @param token token made by encode()
+	 * @return the cursor
+	 * @throws IllegalArgumentException if the token is not a cursor
+	 */
+	public static CrimeCursor decode(String token) {
+		byte[] bytes = Base64.getUrlDecoder().decode(token);
+		if (bytes.length != 12) throw new IllegalArgumentException("Not a valid cursor");
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		return new CrimeCursor(buffer.getInt(), buffer.getLong());
+	}
+}
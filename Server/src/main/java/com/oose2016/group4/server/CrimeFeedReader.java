@@ -0,0 +1,89 @@
+package com.oose2016.group4.server;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Reads the crime source, a JSON array of crime objects, one CrimeRecord at a time.
+ */
+public class CrimeFeedReader extends FeedReader<CrimeRecord> {
+	private boolean started, ended;
+
+	/**
+	 * Start reading a crime feed.
+	 * @param in stream of the feed, closed along with this reader
+	 */
+	public CrimeFeedReader(Reader in) {
+		super(in);
+	}
+
+	@Override
+	public CrimeRecord next() throws IOException {
+		if (ended) return null;
+		if (!started) {
+			json.beginArray();
+			started = true;
+		}
+		if (!json.hasNext()) {
+			json.endArray();
+			ended = true;
+			return null;
+		}
+
+		String crimeDate = null, crimeTime = null, description = null, insideOutside = null, location = null;
+		double[] position = null;
+		json.beginObject();
+		while (json.hasNext()) {
+			switch (json.nextName()) {
+				case "crimedate":
+					crimeDate = nextStringOrNull();
+					break;
+				case "crimetime":
+					crimeTime = nextStringOrNull();
+					break;
+				case "description":
+					description = nextStringOrNull();
+					break;
+				case "inside_outside":
+					insideOutside = nextStringOrNull();
+					break;
+				case "location":
+					location = nextStringOrNull();
+					break;
+				case "location_1":
+					position = nextPoint();
+					break;
+				default:
+					json.skipValue();
+			}
+		}
+		json.endObject();
+		return new CrimeRecord(crimeDate, crimeTime, description, insideOutside, location,
+				position == null ? null : position[1], position == null ? null : position[0]);
+	}
+
+	/**
+	 * Read a GeoJSON point object.
+	 * @return longitude and latitude of the point, or null if it has none
+	 * @throws IOException when the stream fails or the feed is malformed
+	 */
+	private double[] nextPoint() throws IOException {
+		if (json.peek() != JsonToken.BEGIN_OBJECT) {
+			json.skipValue();
+			return null;
+		}
+		double[] position = null;
+		json.beginObject();
+		while (json.hasNext()) {
+			if (json.nextName().equals("coordinates")) {
+				position = nextPosition();
+			} else {
+				json.skipValue();
+			}
+		}
+		json.endObject();
+		return position;
+	}
+}
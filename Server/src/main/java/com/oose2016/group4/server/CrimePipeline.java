@@ -0,0 +1,545 @@
+package com.oose2016.group4.server;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.sql2o.Connection;
+
+/**
+ * Aggregates crimes into grids in three stages, each on its own threads, handing batches of crimes to the next through
+ * a bounded queue so that a slow stage holds the ones before it back rather than piling crimes up in memory:
+ * <ol>
+ * <li>parse: the caller's thread reads the crimes from their source;</li>
+ * <li>filter and project: a worker per thread ditches the crimes not to aggregate, and finds the grid, AADT and alarm
+ * of the others;</li>
+ * <li>aggregate: each stripe owns the grids hashed to it, and sums their alarms on its own thread, without locks.</li>
+ * </ol>
+ *
+ * The grid table is only read while the pipeline runs. The sums of each grid are handed back afterwards through
+ * getCells, to be merged into it by the caller.
+ *
+ * Historical crimes keep the linkId they were stored with, and each grid takes the linkId of its last crime in the
+ * source. New crimes take the linkId of their grid, looked up through a LinkIdResolver for grids without one. They are
+ * handed back too rather than stored here, for the caller to store them in the same transaction as the grids their
+ * alarm went into: a crime in the 'crimes' table is never left out of the grids, even if the update fails.
+ */
+public class CrimePipeline {
+	static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+	/*
+	Number of crimes handed from one stage to the next at once, number of batches a queue holds before the stage
+	feeding it waits, and number of crimes stored per JDBC batch.
+	 */
+	static final int BATCH_SIZE = 1024;
+	static final int QUEUE_CAPACITY = 16;
+	static final int STORE_BATCH_SIZE = 1000;
+
+	/*
+	How long the caller's thread waits on a full queue before checking whether a stage failed.
+	 */
+	private static final long WAIT_MILLIS = 100;
+
+	/*
+	The primary key of 'crimes' covers every column but the address, so a crime already stored is ignored.
+	 */
+	private static final String SQL_STORE_CRIME = "INSERT OR IGNORE INTO crimes "
+			+ "(date, linkId, address, latitude, longitude, type) VALUES (?, ?, ?, ?, ?, ?)";
+
+	private final GridTable gridTable;
+	private final AADTApproximation aadtApproximation;
+	private final int halfLife;
+	private final int threads;
+
+	/*
+	Resolver of the linkIds of grids without one, for new crimes only.
+	 */
+	private final LinkIdResolver linkIds;
+
+	private final List<Stripe> stripes = new ArrayList<>();
+	private Thread[] stageThreads = new Thread[0];
+	private volatile Throwable failure;
+
+	private CrimePipeline(GridTable gridTable, AADTApproximation aadtApproximation, int halfLife, int threads,
+			LinkIdResolver linkIds) {
+		if (threads <= 0) throw new IllegalArgumentException("The number of threads must be positive");
+		this.gridTable = gridTable;
+		this.aadtApproximation = aadtApproximation;
+		this.halfLife = halfLife;
+		this.threads = threads;
+		this.linkIds = linkIds;
+	}
+
+	/**
+	 * A pipeline for crimes already in the 'crimes' table, which are not stored again.
+	 * @param gridTable the grids
+	 * @param aadtApproximation approximate AADTs of the grids not in the grid table
+	 * @param halfLife half-life of the decayed alarms, in seconds
+	 * @param threads number of filter workers, and of stripes
+	 * @return the pipeline
+	 */
+	public static CrimePipeline forHistoricalCrimes(GridTable gridTable, AADTApproximation aadtApproximation,
+			int halfLife, int threads) {
+		return new CrimePipeline(gridTable, aadtApproximation, halfLife, threads, null);
+	}
+
+	/**
+	 * A pipeline for crimes from the crime source, which are handed back with their linkId to be stored.
+	 * @param gridTable the grids
+	 * @param aadtApproximation approximate AADTs of the grids not in the grid table
+	 * @param halfLife half-life of the decayed alarms, in seconds
+	 * @param threads number of filter workers, and of stripes
+	 * @param linkIds resolver of the linkIds of grids without one
+	 * @return the pipeline
+	 */
+	public static CrimePipeline forNewCrimes(GridTable gridTable, AADTApproximation aadtApproximation, int halfLife,
+			int threads, LinkIdResolver linkIds) {
+		return new CrimePipeline(gridTable, aadtApproximation, halfLife, threads, linkIds);
+	}
+
+	/**
+	 * Where the crimes come from, read by the parse stage.
+	 * @param <T> type of the records read
+	 */
+	public interface Source<T> {
+		/**
+		 * Read the next record.
+		 * @return the record, or null at the end of the source
+		 * @throws IOException when the source cannot be read
+		 */
+		T next() throws IOException;
+	}
+
+	/**
+	 * Run every record of a source through the pipeline, and wait for all of them to be aggregated. A pipeline runs
+	 * once.
+	 * @param source the records
+	 * @param filter turns a record into the crime to aggregate, or null to ditch it; called from several threads
+	 * @param <T> type of the records
+	 * @return number of crimes aggregated
+	 * @throws IOException when the source cannot be read
+	 */
+	public <T> int run(Source<T> source, Function<? super T, Crime> filter) throws IOException {
+		if (stageThreads.length > 0) throw new IllegalStateException("The pipeline already ran");
+
+		BlockingQueue<Batch<T>> records = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		for (int i = 0; i < threads; i++) {
+			stripes.add(new Stripe());
+		}
+		Thread[] workers = new Thread[threads], aggregators = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = stage("crime-filter-" + (i + 1), () -> filter(records, filter));
+			Stripe stripe = stripes.get(i);
+			aggregators[i] = stage("crime-stripe-" + (i + 1), stripe::aggregate);
+		}
+
+		List<Thread> all = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			all.add(workers[i]);
+			all.add(aggregators[i]);
+		}
+		stageThreads = all.toArray(new Thread[all.size()]);
+		for (Thread thread : stageThreads) {
+			thread.start();
+		}
+
+		/*
+		Each stage is told the crimes are over once all the threads of the stage before it are done.
+		 */
+		try {
+			long read = 0;
+			List<T> batch = new ArrayList<>(BATCH_SIZE);
+			for (T record; (record = source.next()) != null; ) {
+				batch.add(record);
+				if (batch.size() == BATCH_SIZE) {
+					hand(records, new Batch<>(read, batch));
+					read += batch.size();
+					batch = new ArrayList<>(BATCH_SIZE);
+				}
+			}
+			if (!batch.isEmpty()) hand(records, new Batch<>(read, batch));
+			for (Thread worker : workers) {
+				hand(records, Batch.end());
+			}
+			join(workers);
+			for (Stripe stripe : stripes) {
+				hand(stripe.events, Batch.end());
+			}
+			join(aggregators);
+		} catch (CancellationException e) {
+			//A stage failed, its failure is thrown below.
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fail(e);
+			throw new IOException("Interrupted while aggregating crimes", e);
+		} catch (IOException | RuntimeException | Error e) {
+			fail(e);
+			throw e;
+		} finally {
+			if (failure != null) joinQuietly(stageThreads);
+		}
+
+		if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+		if (failure instanceof Error) throw (Error) failure;
+		if (failure != null) throw new IllegalStateException("Failed to aggregate crimes", failure);
+
+		int aggregated = 0;
+		for (Stripe stripe : stripes) {
+			aggregated += stripe.aggregated;
+		}
+		return aggregated;
+	}
+
+	/**
+	 * The grids the crimes were aggregated into, once the pipeline ran, in no particular order.
+	 * @return the sums of each grid
+	 */
+	public List<Cell> getCells() {
+		List<Cell> cells = new ArrayList<>();
+		for (Stripe stripe : stripes) {
+			cells.addAll(stripe.cells.values());
+		}
+		return cells;
+	}
+
+	/**
+	 * The new crimes the pipeline aggregated whose linkId was known by then, with it, in no particular order. The
+	 * others wait in the getCrimesAwaitingLinkId of their grid.
+	 * @return the crimes
+	 */
+	public List<Crime> getLinkedCrimes() {
+		List<Crime> crimes = new ArrayList<>();
+		for (Stripe stripe : stripes) {
+			crimes.addAll(stripe.linked);
+		}
+		return crimes;
+	}
+
+	/**
+	 * Store crimes into the 'crimes' table in JDBC batches, skipping those already in it. The caller decides on the
+	 * transaction they are stored in.
+	 * @param conn database connection
+	 * @param crimes the crimes
+	 * @throws SQLException when the write fails
+	 */
+	static void storeCrimes(Connection conn, List<Crime> crimes) throws SQLException {
+		try (PreparedStatement statement = conn.getJdbcConnection().prepareStatement(SQL_STORE_CRIME)) {
+			for (int i = 0; i < crimes.size(); i++) {
+				Crime crime = crimes.get(i);
+				statement.setInt(1, crime.getDate());
+				statement.setInt(2, crime.getLinkId());
+				statement.setString(3, crime.getAddress());
+				statement.setDouble(4, crime.getLat());
+				statement.setDouble(5, crime.getLng());
+				statement.setString(6, crime.getType());
+				statement.addBatch();
+				if ((i + 1) % STORE_BATCH_SIZE == 0) statement.executeBatch();
+			}
+			statement.executeBatch();
+		}
+	}
+
+	/**
+	 * Filter and project stage: turn the records into crimes on their grids, and hand each to the stripe of its grid.
+	 */
+	private <T> void filter(BlockingQueue<Batch<T>> records, Function<? super T, Crime> filter)
+			throws InterruptedException {
+		for (Batch<T> batch; !(batch = records.take()).isEnd(); ) {
+			List<List<Event>> routed = new ArrayList<>(stripes.size());
+			for (int i = 0; i < stripes.size(); i++) {
+				routed.add(new ArrayList<>());
+			}
+			long sequence = batch.first;
+			for (T record : batch.items) {
+				Crime crime = filter.apply(record);
+				if (crime != null) {
+					int x = (int) Grid.projectX(crime.getLng()), y = (int) Grid.projectY(crime.getLat());
+					int slot = gridTable.find(x, y);
+					int aadt = slot >= 0 ? gridTable.getAADT(slot) : aadtApproximation.approximate(x, y);
+					Event event = new Event(sequence, crime, x, y, slot, aadt,
+							DatabaseUpdater.getCrimeAlarm(crime.getType(), aadt));
+					routed.get(stripeOf(GridIndex.pack(x, y))).add(event);
+				}
+				sequence++;
+			}
+			for (int i = 0; i < stripes.size(); i++) {
+				if (!routed.get(i).isEmpty()) stripes.get(i).events.put(new Batch<>(-1, routed.get(i)));
+			}
+		}
+	}
+
+	private int stripeOf(long key) {
+		return (GridIndex.hash(key) & Integer.MAX_VALUE) % stripes.size();
+	}
+
+	/**
+	 * Create the thread of a stage. A stage that fails stops the others.
+	 */
+	private Thread stage(String name, Stage stage) {
+		Thread thread = new Thread(() -> {
+			try {
+				stage.run();
+			} catch (InterruptedException e) {
+				//Stopped because another stage failed.
+			} catch (Throwable e) {
+				fail(e);
+			}
+		}, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	private interface Stage {
+		void run() throws InterruptedException;
+	}
+
+	private synchronized void fail(Throwable e) {
+		if (failure != null) return;
+		failure = e;
+		for (Thread thread : stageThreads) {
+			if (thread != Thread.currentThread()) thread.interrupt();
+		}
+	}
+
+	/**
+	 * Hand a batch to a stage from the caller's thread, which gives up if a stage failed meanwhile.
+	 */
+	private <E> void hand(BlockingQueue<E> queue, E batch) throws InterruptedException {
+		while (!queue.offer(batch, WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+			if (failure != null) throw new CancellationException();
+		}
+	}
+
+	private void join(Thread... threads) throws InterruptedException {
+		for (Thread thread : threads) {
+			thread.join();
+			if (failure != null) throw new CancellationException();
+		}
+	}
+
+	private static void joinQuietly(Thread... threads) {
+		boolean interrupted = false;
+		for (Thread thread : threads) {
+			while (thread.isAlive()) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * The value of a linkId lookup if it is already done.
+	 * @param lookup the lookup
+	 * @return the linkId, or null if it is still running or failed
+	 */
+	private static Integer getIfResolved(CompletableFuture<Integer> lookup) {
+		if (!lookup.isDone() || lookup.isCompletedExceptionally()) return null;
+		return lookup.join();
+	}
+
+	/**
+	 * Records handed from one stage to the next, or the end of them.
+	 */
+	private static final class Batch<E> {
+		private static final Batch<?> END = new Batch<>(-1, null);
+
+		/*
+		Position in the source of the first record, for the batches of the parse stage.
+		 */
+		final long first;
+		final List<E> items;
+
+		Batch(long first, List<E> items) {
+			this.first = first;
+			this.items = items;
+		}
+
+		@SuppressWarnings("unchecked")
+		static <E> Batch<E> end() {
+			return (Batch<E>) END;
+		}
+
+		boolean isEnd() {
+			return this == END;
+		}
+	}
+
+	/**
+	 * A crime projected onto its grid, with the alarm it adds to it.
+	 */
+	private static final class Event {
+		final long sequence;
+		final Crime crime;
+		final int x, y, slot, aadt;
+		final double alarm;
+
+		Event(long sequence, Crime crime, int x, int y, int slot, int aadt, double alarm) {
+			this.sequence = sequence;
+			this.crime = crime;
+			this.x = x;
+			this.y = y;
+			this.slot = slot;
+			this.aadt = aadt;
+			this.alarm = alarm;
+		}
+	}
+
+	/**
+	 * Aggregate stage: the grids hashed to one stripe, only ever touched by its own thread while the pipeline runs.
+	 */
+	private final class Stripe {
+		final BlockingQueue<Batch<Event>> events = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		final Map<Long, Cell> cells = new HashMap<>();
+		final List<Crime> linked = new ArrayList<>();
+		int aggregated;
+
+		void aggregate() throws InterruptedException {
+			for (Batch<Event> batch; !(batch = events.take()).isEnd(); ) {
+				for (Event event : batch.items) {
+					long key = GridIndex.pack(event.x, event.y);
+					Cell cell = cells.get(key);
+					if (cell == null) {
+						int linkId = event.slot >= 0 ? gridTable.getLinkId(event.slot) : 0;
+						cell = new Cell(event.x, event.y, event.slot, event.aadt, linkId);
+						cells.put(key, cell);
+					}
+					cell.add(event.crime.getDate(), event.alarm, halfLife);
+					if (linkIds == null) {
+						cell.takeLinkId(event.crime.getLinkId(), event.sequence);
+					} else {
+						Crime crime = cell.link(event.crime, linkIds);
+						if (crime != null) linked.add(crime);
+					}
+					aggregated++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The alarms the crimes of a pipeline added to a grid, and the linkId the grid ends up with.
+	 */
+	public static final class Cell {
+		private final int x, y, slot, aadt;
+		private double alarm;
+		private final double[] hourlyAlarms = new double[HourlyAlarmIndex.HOURS];
+		private final Map<Integer, Double> monthlyAlarms = new HashMap<>();
+		private DecayedAlarm decayedAlarm;
+
+		/*
+		LinkId of the grid: that of the grid table, of the last historical crime, or looked up for new crimes, with
+		the crimes waiting for the lookup to finish.
+		 */
+		private int linkId;
+		private long linkIdSequence = -1;
+		private boolean linkIdKnown;
+		private CompletableFuture<Integer> linkIdLookup;
+		private final List<Crime> crimesAwaitingLinkId = new ArrayList<>();
+
+		private Cell(int x, int y, int slot, int aadt, int linkId) {
+			this.x = x;
+			this.y = y;
+			this.slot = slot;
+			this.aadt = aadt;
+			this.linkId = linkId;
+			this.linkIdKnown = linkId != 0;
+		}
+
+		/**
+		 * Add the alarm of a crime, at the hour of day of the crime or evenly over the day if its time is not known,
+		 * in its month, and decayed.
+		 */
+		private void add(int date, double alarm, int halfLife) {
+			this.alarm += alarm;
+			int hour = HourlyAlarmIndex.hourOfDay(date);
+			if (hour == HourlyAlarmIndex.ANY_TIME) {
+				for (int h = 0; h < hourlyAlarms.length; h++) {
+					hourlyAlarms[h] += alarm / hourlyAlarms.length;
+				}
+			} else {
+				hourlyAlarms[hour] += alarm;
+			}
+			monthlyAlarms.merge(MonthlyAlarmIndex.monthOf(date), alarm, Double::sum);
+			decayedAlarm = decayedAlarm == null
+					? new DecayedAlarm(alarm, date)
+					: decayedAlarm.add(alarm, date, halfLife);
+		}
+
+		/**
+		 * Take the linkId of a historical crime, if it comes after the crimes whose linkId was taken before.
+		 */
+		private void takeLinkId(int linkId, long sequence) {
+			if (sequence < linkIdSequence) return;
+			this.linkId = linkId;
+			linkIdSequence = sequence;
+		}
+
+		/**
+		 * Give a new crime the linkId of the grid, looking it up unless it is known or being looked up.
+		 * @return the crime with its linkId, or null if it waits for the lookup
+		 */
+		private Crime link(Crime crime, LinkIdResolver linkIds) {
+			if (!linkIdKnown) {
+				if (linkIdLookup == null) linkIdLookup = linkIds.resolve(x, y, crime.getLat(), crime.getLng());
+				Integer resolved = getIfResolved(linkIdLookup);
+				if (resolved != null) {
+					linkId = resolved;
+					linkIdKnown = true;
+				}
+			}
+			if (!linkIdKnown) {
+				crimesAwaitingLinkId.add(crime);
+				return null;
+			}
+			return new Crime(crime.getDate(), crime.getAddress(), crime.getType(), crime.getLat(), crime.getLng(),
+					linkId);
+		}
+
+		public int getX() { return x; }
+		public int getY() { return y; }
+
+		/**
+		 * @return slot of the grid in the grid table, or -1 if the grid is not in it yet
+		 */
+		public int getSlot() { return slot; }
+
+		/**
+		 * @return AADT of the grid, approximate if it is not in the grid table yet
+		 */
+		public int getAADT() { return aadt; }
+
+		public double getAlarm() { return alarm; }
+		public double[] getHourlyAlarms() { return hourlyAlarms; }
+		public Map<Integer, Double> getMonthlyAlarms() { return monthlyAlarms; }
+		public DecayedAlarm getDecayedAlarm() { return decayedAlarm; }
+
+		/**
+		 * @return linkId of the grid, or 0 while it is being looked up
+		 */
+		public int getLinkId() { return linkId; }
+
+		/**
+		 * @return the lookup of the linkId, if it was not known when the last crime was aggregated, or null
+		 */
+		public CompletableFuture<Integer> getLinkIdLookup() { return linkIdKnown ? null : linkIdLookup; }
+
+		/**
+		 * @return the new crimes not stored yet, as their linkId was still being looked up
+		 */
+		public List<Crime> getCrimesAwaitingLinkId() { return crimesAwaitingLinkId; }
+	}
+}
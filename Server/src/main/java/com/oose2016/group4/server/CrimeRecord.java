@@ -0,0 +1,58 @@
+package com.oose2016.group4.server;
+
+/**
+ * One record of the crime source, as decoded by CrimeFeedReader. Attributes missing from the record are null.
+ */
+public class CrimeRecord {
+	private final String crimeDate, crimeTime, description, insideOutside, location;
+	private final Double latitude, longitude;
+
+	/**
+	 * CrimeRecord constructor
+	 * @param crimeDate 'crimedate', an ISO local date-time
+	 * @param crimeTime 'crimetime', as HH:MM:SS or HHMM
+	 * @param description 'description', the crime type
+	 * @param insideOutside 'inside_outside', starting with I for crimes indoors
+	 * @param location 'location', the address
+	 * @param latitude latitude of 'location_1'
+	 * @param longitude longitude of 'location_1'
+	 */
+	public CrimeRecord(String crimeDate, String crimeTime, String description, String insideOutside, String location,
+					   Double latitude, Double longitude) {
+		this.crimeDate = crimeDate;
+		this.crimeTime = crimeTime;
+		this.description = description;
+		this.insideOutside = insideOutside;
+		this.location = location;
+		this.latitude = latitude;
+		this.longitude = longitude;
+	}
+
+	public String getCrimeDate() {
+		return crimeDate;
+	}
+
+	public String getCrimeTime() {
+		return crimeTime;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public String getInsideOutside() {
+		return insideOutside;
+	}
+
+	public String getLocation() {
+		return location;
+	}
+
+	public Double getLatitude() {
+		return latitude;
+	}
+
+	public Double getLongitude() {
+		return longitude;
+	}
+}
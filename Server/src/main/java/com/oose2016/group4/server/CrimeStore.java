@@ -0,0 +1,400 @@
+package com.oose2016.group4.server;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.sql2o.Connection;
+import org.sql2o.Sql2oException;
+
+/**
+ * Read-only, in-memory snapshot of the 'crimes' table, stored column by column in parallel primitive arrays. Crime
+ * types and addresses repeat a lot, so they are dictionary-encoded into int codes.
+ * Crimes are bucketed by cell of a coarse grid (one bucket cell spans 4x4 grids), and the rows of each bucket are
+ * contiguous and sorted by (date, rowid). A query thus only visits the buckets overlapping its box, and only the
+ * date slice of each bucket found by binary search.
+ *
+ * Memory budget: a crime takes 40 bytes (date, linkId, type and address codes as ints, latitude and longitude as
+ * doubles, rowid as a long) plus the dictionaries, which hold each distinct type and address once. The store keeps at
+ * most MAX_CRIMES of the newest crimes, about 80MB, which is well over a decade of Baltimore crime data at 50000 to
+ * 100000 crimes a year. When the table holds more than that, the store only covers dates after its oldest crime and
+ * SurvivalService answers queries reaching further back from the database.
+ */
+public class CrimeStore {
+	/*
+	Upper bound on the number of crimes kept in memory, see the class comment.
+	 */
+	static final int MAX_CRIMES = 2_000_000;
+
+	/*
+	A bucket cell is this many grid indices wide and tall, as a power of two.
+	 */
+	static final int BUCKET_SHIFT = 2;
+
+	private static final String SQL_FETCH_CRIMES = "SELECT rowid, date, linkId, address, latitude, longitude, type "
+			+ "FROM crimes ORDER BY date DESC, rowid DESC LIMIT ?";
+
+	private final int size;
+	private final boolean complete;
+	private final int oldestDate;
+	private final int[] dates, linkIds, typeCodes, addressCodes;
+	private final double[] latitudes, longitudes;
+	private final long[] rowIds;
+	private final String[] types, addresses;
+
+	/*
+	Packed (x, y) of every bucket cell in ascending order; the rows of bucket b are [bucketStart[b], bucketStart[b + 1]).
+	 */
+	private final long[] bucketKeys;
+	private final int[] bucketStart;
+
+	private CrimeStore(int size, boolean complete, int oldestDate, long[] rowIds, int[] dates, int[] linkIds,
+					   int[] typeCodes, int[] addressCodes, double[] latitudes, double[] longitudes,
+					   String[] types, String[] addresses, long[] bucketKeys, int[] bucketStart) {
+		this.size = size;
+		this.complete = complete;
+		this.oldestDate = oldestDate;
+		this.rowIds = rowIds;
+		this.dates = dates;
+		this.linkIds = linkIds;
+		this.typeCodes = typeCodes;
+		this.addressCodes = addressCodes;
+		this.latitudes = latitudes;
+		this.longitudes = longitudes;
+		this.types = types;
+		this.addresses = addresses;
+		this.bucketKeys = bucketKeys;
+		this.bucketStart = bucketStart;
+	}
+
+	/**
+	 * Load the newest MAX_CRIMES crimes of the 'crimes' table into a new store.
+	 * @param conn database connection
+	 * @return the store
+	 * @throws Sql2oException when the table cannot be read
+	 */
+	public static CrimeStore load(Connection conn) throws Sql2oException {
+		return load(conn, MAX_CRIMES);
+	}
+
+	/**
+	 * Load the newest crimes of the 'crimes' table into a new store.
+	 * @param conn database connection
+	 * @param maxCrimes largest number of crimes to keep
+	 * @return the store
+	 * @throws Sql2oException when the table cannot be read
+	 */
+	static CrimeStore load(Connection conn, int maxCrimes) throws Sql2oException {
+		int capacity = 1024, size = 0;
+		long[] rowIds = new long[capacity];
+		int[] dates = new int[capacity], linkIds = new int[capacity];
+		int[] typeCodes = new int[capacity], addressCodes = new int[capacity];
+		double[] latitudes = new double[capacity], longitudes = new double[capacity];
+		Dictionary types = new Dictionary(), addresses = new Dictionary();
+		boolean complete = true;
+
+		try (PreparedStatement statement = conn.getJdbcConnection().prepareStatement(SQL_FETCH_CRIMES)) {
+			//One more than we keep, to tell whether the table has been cut off.
+			statement.setInt(1, maxCrimes + 1);
+			try (ResultSet rs = statement.executeQuery()) {
+				while (rs.next()) {
+					if (size == maxCrimes) {
+						complete = false;
+						break;
+					}
+					if (size == capacity) {
+						capacity = (int) Math.min((long) capacity * 2, maxCrimes);
+						rowIds = Arrays.copyOf(rowIds, capacity);
+						dates = Arrays.copyOf(dates, capacity);
+						linkIds = Arrays.copyOf(linkIds, capacity);
+						typeCodes = Arrays.copyOf(typeCodes, capacity);
+						addressCodes = Arrays.copyOf(addressCodes, capacity);
+						latitudes = Arrays.copyOf(latitudes, capacity);
+						longitudes = Arrays.copyOf(longitudes, capacity);
+					}
+					rowIds[size] = rs.getLong(1);
+					dates[size] = rs.getInt(2);
+					linkIds[size] = rs.getInt(3);
+					addressCodes[size] = addresses.encode(rs.getString(4));
+					latitudes[size] = rs.getDouble(5);
+					longitudes[size] = rs.getDouble(6);
+					typeCodes[size] = types.encode(rs.getString(7));
+					size++;
+				}
+			}
+		} catch (SQLException e) {
+			throw new Sql2oException("Failed to load crimes into memory", e);
+		}
+
+		/*
+		Rows came newest first; walking them backwards and distributing them into their buckets with a stable
+		counting sort leaves every bucket sorted by (date, rowid).
+		 */
+		long[] cells = new long[size];
+		for (int i = 0; i < size; i++) {
+			cells[i] = cellOf(latitudes[i], longitudes[i]);
+		}
+		long[] bucketKeys = distinct(cells);
+		int[] bucketOf = new int[size];
+		int[] bucketStart = new int[bucketKeys.length + 1];
+		for (int i = 0; i < size; i++) {
+			bucketOf[i] = Arrays.binarySearch(bucketKeys, cells[i]);
+			bucketStart[bucketOf[i] + 1]++;
+		}
+		for (int b = 0; b < bucketKeys.length; b++) {
+			bucketStart[b + 1] += bucketStart[b];
+		}
+		int[] order = new int[size];
+		int[] next = Arrays.copyOf(bucketStart, bucketKeys.length);
+		for (int i = size - 1; i >= 0; i--) {
+			order[next[bucketOf[i]]++] = i;
+		}
+
+		int oldestDate = size > 0 ? dates[size - 1] : Integer.MAX_VALUE;
+		return new CrimeStore(size, complete, oldestDate, permute(rowIds, order), permute(dates, order),
+				permute(linkIds, order), permute(typeCodes, order), permute(addressCodes, order), permute(latitudes, order),
+				permute(longitudes, order), types.values(), addresses.values(), bucketKeys, bucketStart);
+	}
+
+	/**
+	 * Number of crimes in the store.
+	 * @return size
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Whether the store holds every crime dated from the given date on. It holds them all unless the table was cut
+	 * off at MAX_CRIMES, in which case it only holds the crimes after the date of the oldest one it kept.
+	 * @param fromDate start of the date range, in seconds
+	 * @return true if a query starting at this date can be answered from memory
+	 */
+	public boolean covers(int fromDate) {
+		return complete || fromDate > oldestDate;
+	}
+
+	/**
+	 * Visit the crimes within a latitude, longitude and date range in (date, rowid) order, starting right after a
+	 * cursor. The rows of the overlapping buckets are merged through a heap holding one row per bucket, so nothing
+	 * but the crime being visited is materialized.
+	 * @param fromLat smallest latitude
+	 * @param toLat largest latitude
+	 * @param fromLng smallest longitude
+	 * @param toLng largest longitude
+	 * @param fromDate earliest date
+	 * @param toDate latest date
+	 * @param after cursor to start after
+	 * @param limit largest number of crimes to visit, negative for all of them
+	 * @param visitor receives the crimes
+	 * @return cursor of the last crime visited if there are more crimes to visit, otherwise null
+	 * @throws IOException when the visitor fails
+	 */
+	public CrimeCursor forEachCrime(double fromLat, double toLat, double fromLng, double toLng, int fromDate,
+									int toDate, CrimeCursor after, int limit, CrimeVisitor visitor) throws IOException {
+		int[] buckets = bucketsIn(fromLat, toLat, fromLng, toLng);
+		int[] rows = new int[buckets.length];
+		int[] heap = new int[buckets.length];
+		int heapSize = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			int b = buckets[i];
+			int row = firstRow(b, Math.max(fromDate, after.getDate()));
+			while (row < bucketStart[b + 1] && dates[row] == after.getDate() && rowIds[row] <= after.getRowId()) {
+				row++;
+			}
+			rows[i] = nextInBox(row, bucketStart[b + 1], fromLat, toLat, fromLng, toLng, toDate);
+			if (rows[i] >= 0) heapSize = push(heap, heapSize, i, rows);
+		}
+
+		int count = 0, last = -1;
+		while (heapSize > 0) {
+			if (count == limit) return new CrimeCursor(dates[last], rowIds[last]);
+			int i = heap[0];
+			last = rows[i];
+			visitor.visit(toCrime(last));
+			count++;
+
+			rows[i] = nextInBox(last + 1, bucketStart[buckets[i] + 1], fromLat, toLat, fromLng, toLng, toDate);
+			if (rows[i] < 0) heap[0] = heap[--heapSize];
+			siftDown(heap, heapSize, rows);
+		}
+		return null;
+	}
+
+	/*
+	First row from the given one on that lies within the box, or -1 once the bucket or the date range runs out.
+	 */
+	private int nextInBox(int row, int end, double fromLat, double toLat, double fromLng, double toLng, int toDate) {
+		for (; row < end && dates[row] <= toDate; row++) {
+			double lat = latitudes[row], lng = longitudes[row];
+			if (lat >= fromLat && lat <= toLat && lng >= fromLng && lng <= toLng) return row;
+		}
+		return -1;
+	}
+
+	/*
+	Min-heap of bucket positions, keyed by the (date, rowid) of their current row.
+	 */
+	private boolean precedes(int rowA, int rowB) {
+		return dates[rowA] < dates[rowB] || (dates[rowA] == dates[rowB] && rowIds[rowA] < rowIds[rowB]);
+	}
+
+	private int push(int[] heap, int size, int entry, int[] rows) {
+		int i = size;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!precedes(rows[entry], rows[heap[parent]])) break;
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = entry;
+		return size + 1;
+	}
+
+	private void siftDown(int[] heap, int size, int[] rows) {
+		if (size == 0) return;
+		int entry = heap[0], i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) break;
+			if (child + 1 < size && precedes(rows[heap[child + 1]], rows[heap[child]])) child++;
+			if (!precedes(rows[heap[child]], rows[entry])) break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = entry;
+	}
+
+	/*
+	Indices of the buckets whose cell overlaps the box.
+	 */
+	int[] bucketsIn(double fromLat, double toLat, double fromLng, double toLng) {
+		if (bucketKeys.length == 0 || fromLat > toLat || fromLng > toLng) return new int[0];
+		//Latitude grows northwards while y grows southwards.
+		int fromX = cellIndex(Grid.projectX(fromLng)), toX = cellIndex(Grid.projectX(toLng));
+		int fromY = cellIndex(Grid.projectY(toLat)), toY = cellIndex(Grid.projectY(fromLat));
+
+		int[] found = new int[bucketKeys.length];
+		int count = 0;
+		if ((long) toX - fromX + 1 >= bucketKeys.length) {
+			//The box spans more columns than there are buckets; checking every bucket is cheaper.
+			for (int b = 0; b < bucketKeys.length; b++) {
+				int x = (int) (bucketKeys[b] >> 32), y = (int) bucketKeys[b];
+				if (x >= fromX && x <= toX && y >= fromY && y <= toY) found[count++] = b;
+			}
+			return Arrays.copyOf(found, count);
+		}
+		for (int x = fromX; x <= toX; x++) {
+			int b = lowerBound(bucketKeys, GridIndex.pack(x, fromY));
+			long last = GridIndex.pack(x, toY);
+			for (; b < bucketKeys.length && bucketKeys[b] <= last; b++) {
+				found[count++] = b;
+			}
+		}
+		return Arrays.copyOf(found, count);
+	}
+
+	/*
+	First row of a bucket dated on or after the given date.
+	 */
+	int firstRow(int bucket, int fromDate) {
+		int low = bucketStart[bucket], high = bucketStart[bucket + 1];
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (dates[mid] < fromDate) low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+
+	Crime toCrime(int row) {
+		return new Crime(dates[row], addresses[addressCodes[row]], types[typeCodes[row]],
+				latitudes[row], longitudes[row], linkIds[row]);
+	}
+
+	/*
+	Bucket cell of a coordinate, packed like grid keys. Coordinates outside of the projection are clamped to its
+	edges, which keeps the mapping monotonic.
+	 */
+	private static long cellOf(double lat, double lng) {
+		return GridIndex.pack(cellIndex(Grid.projectX(lng)), cellIndex(Grid.projectY(lat)));
+	}
+
+	private static int cellIndex(double projected) {
+		int max = (262144 >> BUCKET_SHIFT) - 1;
+		if (!(projected > 0)) return 0;
+		return Math.min((int) projected >> BUCKET_SHIFT, max);
+	}
+
+	private static int lowerBound(long[] keys, long key) {
+		int low = 0, high = keys.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (keys[mid] < key) low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+
+	private static long[] distinct(long[] values) {
+		long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		int count = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (i == 0 || sorted[i] != sorted[count - 1]) sorted[count++] = sorted[i];
+		}
+		return Arrays.copyOf(sorted, count);
+	}
+
+	private static int[] permute(int[] values, int[] order) {
+		int[] result = new int[order.length];
+		for (int i = 0; i < order.length; i++) {
+			result[i] = values[order[i]];
+		}
+		return result;
+	}
+
+	private static long[] permute(long[] values, int[] order) {
+		long[] result = new long[order.length];
+		for (int i = 0; i < order.length; i++) {
+			result[i] = values[order[i]];
+		}
+		return result;
+	}
+
+	private static double[] permute(double[] values, int[] order) {
+		double[] result = new double[order.length];
+		for (int i = 0; i < order.length; i++) {
+			result[i] = values[order[i]];
+		}
+		return result;
+	}
+
+	/**
+	 * Assigns consecutive int codes to distinct strings.
+	 */
+	private static class Dictionary {
+		private final Map<String, Integer> codes = new HashMap<>();
+		private final List<String> values = new ArrayList<>();
+
+		int encode(String value) {
+			Integer code = codes.get(value);
+			if (code == null) {
+				code = values.size();
+				codes.put(value, code);
+				values.add(value);
+			}
+			return code;
+		}
+
+		String[] values() {
+			return values.toArray(new String[values.size()]);
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package com.oose2016.group4.server;
+
+import java.io.IOException;
+
+/**
+ * Receives crimes one at a time while they are read, so that they can be written out without being collected first.
+ */
+@FunctionalInterface
+public interface CrimeVisitor {
+	/**
+	 * Handle the next crime.
+	 * @param crime the crime
+	 * @throws IOException when the crime cannot be written out
+	 */
+	void visit(Crime crime) throws IOException;
+}
@@ -0,0 +1,36 @@
+package com.oose2016.group4.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Version of the data the service answers from. It only changes when a database update has gone through, so two
+ * responses to the same request under the same version are identical. The start time of the process is part of the
+ * version, so a version handed out before a restart is never taken for a current one.
+ */
+public class DataVersion {
+	private final long epoch = System.currentTimeMillis();
+	private final AtomicLong counter = new AtomicLong();
+
+	/**
+	 * Move to the next version, after the data has changed.
+	 */
+	public void increment() {
+		counter.incrementAndGet();
+	}
+
+	/**
+	 * Number of updates since the process started.
+	 * @return the counter
+	 */
+	public long getCounter() {
+		return counter.get();
+	}
+
+	/**
+	 * Short token naming the current version, unique across restarts.
+	 * @return the token
+	 */
+	public String tag() {
+		return Long.toString(epoch, 36) + "." + Long.toString(counter.get(), 36);
+	}
+}
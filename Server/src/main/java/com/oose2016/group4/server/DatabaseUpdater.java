@@ -2,12 +2,22 @@ package com.oose2016.group4.server;
 
 
 import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.sql2o.Connection;
+import org.sql2o.Query;
+import org.sql2o.Sql2oException;
+import org.sql2o.data.Row;
 
 import java.util.List;
 
@@ -27,6 +37,63 @@ public class DatabaseUpdater {
             + "(x INTEGER NOT NULL, y INTEGER NOT NULL, linkId INTEGER NOT NULL, alarm REAL NOT NULL, AADT INTEGER NOT NULL, "
             + " PRIMARY KEY (x, y));";
 
+    private static String SQL_INITIATE_LINK_RISKS = "CREATE TABLE IF NOT EXISTS linkrisks "
+            + "(linkId INTEGER NOT NULL, alarmSum REAL NOT NULL, alarmMax REAL NOT NULL, cellCount INTEGER NOT NULL, "
+            + "minX INTEGER NOT NULL, minY INTEGER NOT NULL, maxX INTEGER NOT NULL, maxY INTEGER NOT NULL, "
+            + " PRIMARY KEY (linkId));";
+
+    private static String SQL_INDEX_GRIDS_LINKID = "CREATE INDEX IF NOT EXISTS grids_linkId ON grids (linkId);";
+
+    /*
+    Alarm of each grid split by the hour of day of its crimes, h0 to h23, summing up to the grid's alarm.
+     */
+    private static String SQL_INITIATE_GRID_HOURS = "CREATE TABLE IF NOT EXISTS gridhours "
+            + "(x INTEGER NOT NULL, y INTEGER NOT NULL, "
+            + HourlyAlarmIndex.columns("h%d REAL NOT NULL DEFAULT 0") + ", PRIMARY KEY (x, y));";
+
+    /*
+    Spread the alarm of the grids aggregated before 'gridhours' existed evenly over the day, as their crimes' times
+    are not known.
+     */
+    private static String SQL_SPREAD_GRID_HOURS = "INSERT INTO gridhours "
+            + " SELECT x, y, " + HourlyAlarmIndex.columns("alarm / 24.0") + " FROM grids "
+            + " WHERE alarm > 0 AND NOT EXISTS (SELECT 1 FROM gridhours); ";
+
+    /*
+    Alarm of each grid split by the calendar month of its crimes, see MonthlyAlarmIndex.monthOf.
+     */
+    private static String SQL_INITIATE_GRID_MONTHS = "CREATE TABLE IF NOT EXISTS gridmonths "
+            + "(x INTEGER NOT NULL, y INTEGER NOT NULL, month INTEGER NOT NULL, alarm REAL NOT NULL DEFAULT 0, "
+            + " PRIMARY KEY (x, y, month));";
+
+    /*
+    Alarm of each grid with its crimes weighed down by their age, as of the date it was last written.
+     */
+    private static String SQL_INITIATE_GRID_DECAY = "CREATE TABLE IF NOT EXISTS griddecay "
+            + "(x INTEGER NOT NULL, y INTEGER NOT NULL, alarm REAL NOT NULL, asOf INTEGER NOT NULL, "
+            + "halfLife INTEGER NOT NULL, PRIMARY KEY (x, y));";
+
+    /*
+    linkId of every grid ever looked up through MapQuest, see LinkIdResolver.
+     */
+    private static String SQL_INITIATE_LINK_IDS = "CREATE TABLE IF NOT EXISTS linkids "
+            + "(x INTEGER NOT NULL, y INTEGER NOT NULL, linkId INTEGER NOT NULL, PRIMARY KEY (x, y));";
+
+    /*
+    Lets the crimes in the partial months at the edges of a date window be read without a scan of the table.
+     */
+    private static String SQL_INDEX_CRIMES_DATE = "CREATE INDEX IF NOT EXISTS crimes_date ON crimes (date);";
+
+    private static String SQL_ADD_GRID_HOURS = " UPDATE gridhours SET "
+            + HourlyAlarmIndex.columns("h%1$d = h%1$d + :h%1$d") + " WHERE x= :xParam AND y= :yParam; ";
+
+    /*
+    Aggregate the grids of links into 'linkrisks'. Used once to fill the table from an existing 'grids' table, and
+    afterwards for each link whose grids were touched by an update.
+     */
+    private static String SQL_AGGREGATE_LINK_RISKS = "INSERT INTO linkrisks "
+            + " SELECT linkId, SUM(alarm), MAX(alarm), COUNT(*), MIN(x), MIN(y), MAX(x), MAX(y) FROM grids ";
+
     private static String SQL_INITIATE_UPDATE_LOG =
             "CREATE TABLE IF NOT EXISTS updatelog "
                     + "(sourcename VARCHAR(50) NOT NULL, updatecount INTEGER NOT NULL);";
@@ -42,8 +109,74 @@ public class DatabaseUpdater {
      */
     private static int TYPE_WEIGHT_FACTOR = 100000;
 
+    /*
+    Number of rows sent to SQLite per JDBC batch when writing grids back.
+     */
+    private static int WRITE_BATCH_SIZE = 1000;
+
+    /*
+    The historical crimes, in the order they were stored.
+     */
+    private static String SQL_FETCH_HISTORICAL_CRIMES =
+            " SELECT date, linkId, address, latitude, longitude, type FROM crimes; ";
+
     private Connection mConnection;
 
+    /*
+    LinkIds whose grids had their alarm or linkId changed by this updater, and whose 'linkrisks' tuple is stale.
+     */
+    private Set<Integer> mDirtyLinkIds = new HashSet<>();
+
+    /*
+    Packed (x, y) indices of the grids whose alarm was changed by this updater, whose heatmap tiles are stale.
+     */
+    private Set<Long> mDirtyCells = new HashSet<>();
+
+    /*
+    Heatmap tiles re-rendered at the end of each update, or null if there are none to keep up to date.
+     */
+    private TilePyramid mTilePyramid;
+
+    /*
+    Where the latest crimes and the traffic counts are streamed from.
+     */
+    private String mCrimeSourceUrl = CrimeAPIHandler.URL_CRIME_SOURCE;
+    private String mTrafficSourceUrl = TrafficAPIHandler.URL_TRAFFIC_SOURCE;
+
+    /*
+    Where the linkIds of new grids are requested from, and how many requests per second it is sent at most.
+     */
+    private String mLinkIdSourceUrl = MapQuestHandler.URL_FIND_LINK_ID;
+    private double mLinkIdRequestsPerSecond = LinkIdResolver.DEFAULT_REQUESTS_PER_SECOND;
+
+    /*
+    Number of filter workers, and of aggregating stripes, of the crime pipelines.
+     */
+    private int mCrimePipelineThreads = CrimePipeline.DEFAULT_THREADS;
+
+    /*
+    Alarm added to each grid by this updater, per hour of day, not yet written to 'gridhours'.
+     */
+    private Map<Long, double[]> mHourlyAlarms = new HashMap<>();
+
+    /*
+    Alarm added to each grid by this updater, per month, keyed by packed (x, y) then month, not yet written to
+    'gridmonths'.
+     */
+    private Map<Long, Map<Integer, Double>> mMonthlyAlarms = new HashMap<>();
+
+    /*
+    Decayed alarm added to each grid by this updater, not yet written to 'griddecay', and the half-life it decays by.
+     */
+    private Map<Long, DecayedAlarm> mDecayedAlarms = new HashMap<>();
+
+    /*
+    New crimes aggregated by this updater, with their linkId, not yet written to 'crimes'. They are written together
+    with the grids, so that the date of the last stored crime never runs ahead of the alarms in the grids.
+     */
+    private List<Crime> mNewCrimes = new ArrayList<>();
+    private int mHalfLife = DecayedAlarm.DEFAULT_HALF_LIFE;
+
     /**
      * DatabaseUpdater constructor
      * @param conn the database connection
@@ -52,20 +185,107 @@ public class DatabaseUpdater {
         mConnection = conn;
     }
 
+    /**
+     * Set the on-disk heatmap tiles to re-render at the end of each update.
+     * @param tilePyramid the tiles
+     */
+    public void setTilePyramid(TilePyramid tilePyramid) {
+        mTilePyramid = tilePyramid;
+    }
+
+    /**
+     * Set the URL of the latest crimes feed, a JSON array of crime objects.
+     * @param crimeSourceUrl the URL
+     */
+    public void setCrimeSourceUrl(String crimeSourceUrl) {
+        mCrimeSourceUrl = crimeSourceUrl;
+    }
+
+    /**
+     * Set the URL of the traffic counts feed, a GeoJSON feature collection.
+     * @param trafficSourceUrl the URL
+     */
+    public void setTrafficSourceUrl(String trafficSourceUrl) {
+        mTrafficSourceUrl = trafficSourceUrl;
+    }
+
+    /**
+     * Set the URL of the findlinkid endpoint that the linkIds of new grids are requested from.
+     * @param linkIdSourceUrl the URL
+     */
+    public void setLinkIdSourceUrl(String linkIdSourceUrl) {
+        mLinkIdSourceUrl = linkIdSourceUrl;
+    }
+
+    /**
+     * Set how many linkId requests are sent per second at most.
+     * @param requestsPerSecond the rate
+     */
+    public void setLinkIdRequestsPerSecond(double requestsPerSecond) {
+        if (requestsPerSecond <= 0) throw new IllegalArgumentException("The request rate must be positive");
+        mLinkIdRequestsPerSecond = requestsPerSecond;
+    }
+
+    /**
+     * Set the half-life of the decayed alarms. When it differs from the one 'griddecay' was built with, the table is
+     * rebuilt from the crimes by the next initialUpdate.
+     * @param halfLife half-life in seconds
+     */
+    public void setHalfLife(int halfLife) {
+        if (halfLife <= 0) throw new IllegalArgumentException("The half-life must be positive");
+        mHalfLife = halfLife;
+    }
+
+    /**
+     * Set how many threads filter and aggregate crimes in each crime pipeline.
+     * @param threads number of filter workers, and of aggregating stripes
+     */
+    public void setCrimePipelineThreads(int threads) {
+        if (threads <= 0) throw new IllegalArgumentException("The number of threads must be positive");
+        mCrimePipelineThreads = threads;
+    }
+
     /**
      * Execute the initial SQL query to make sure of the table existing before updating tuples into it
      */
     protected void initialUpdate() {
         mConnection.createQuery(SQL_INITIATE_TABLE_CRIMES).executeUpdate();
         mConnection.createQuery(SQL_INITIATE_LINKID_GRID).executeUpdate();
+        mConnection.createQuery(SQL_INITIATE_LINK_RISKS).executeUpdate();
+        mConnection.createQuery(SQL_INDEX_GRIDS_LINKID).executeUpdate();
+        mConnection.createQuery(SQL_INITIATE_GRID_HOURS).executeUpdate();
+        mConnection.createQuery(SQL_INITIATE_GRID_MONTHS).executeUpdate();
+        mConnection.createQuery(SQL_INITIATE_GRID_DECAY).executeUpdate();
+        mConnection.createQuery(SQL_INITIATE_LINK_IDS).executeUpdate();
+        mConnection.createQuery(SQL_INDEX_CRIMES_DATE).executeUpdate();
         mConnection.createQuery(SQL_INITIATE_UPDATE_LOG).executeUpdate();
         mConnection.createQuery(SQL_DB_NOSYNC).executeUpdate();
+
+        /*
+        Fill 'linkrisks' from the grids aggregated before the table existed. From then on it is kept up to date
+        link by link.
+         */
+        mConnection.createQuery(SQL_AGGREGATE_LINK_RISKS
+                + " WHERE linkId > 0 AND NOT EXISTS (SELECT 1 FROM linkrisks) GROUP BY linkId; ").executeUpdate();
+        mConnection.createQuery(SQL_SPREAD_GRID_HOURS).executeUpdate();
+
+        /*
+        Drop the decayed alarms of another half-life and replay them in the same transaction, so readers never see
+        'griddecay' emptied.
+         */
+        inTransaction(() -> {
+            mConnection.createQuery(" DELETE FROM griddecay WHERE EXISTS "
+                    + " (SELECT 1 FROM griddecay WHERE halfLife != :halfLifeParam); ")
+                    .addParameter("halfLifeParam", mHalfLife)
+                    .executeUpdate();
+            replayAggregatedCrimes();
+        }, "Failed to replay the aggregated crimes");
     }
 
     /**
      * Main task of the DatabaseUpdater class
      * @throws IOException throws IO Exception
-     */
+     */
     public void update() throws IOException {
         /*
         Make sure that the three updating method are executed in exactly this order. We start with a database containing
@@ -76,10 +296,19 @@ public class DatabaseUpdater {
         ensure they are only executed once.
         updateCrimes is the major purpose of this class. The DatabaseUpdater fetches data from the baltimore crime data source
         API which is updated daily, and properly aggregate them into the 'grids' table.
-         */
+         */
         updateTraffics();
         updateHistoricalCrimes();
         updateCrimes();
+
+        /*
+        Only the tiles over grids whose alarm changed need to be drawn again. Traffic updates only change AADTs,
+        which do not show on the heatmap.
+         */
+        if (mTilePyramid != null) {
+            mTilePyramid.update(GridIndex.load(mConnection, "grids"), mDirtyCells);
+        }
+        mDirtyCells.clear();
     }
 
 
@@ -106,12 +335,6 @@ public class DatabaseUpdater {
             System.out.println("This is the first update from crime source, crimes update count initialized.");
         }
 
-        /*
-        Fetch raw latest crime data from API
-         */
-        ArrayList<Object> crimeList = CrimeAPIHandler.preProccessCrimeData();
-        System.out.println("ArrayList data fetched from the crime source.");
-
         /*
         Get the date of the most recent crime record of the previous updateCrimes operation.
         Ditch those records in the current batch that has already been previously updated into the database
@@ -123,210 +346,131 @@ public class DatabaseUpdater {
         if (dateLastUpdateObj != null) dateLastUpdate = (Integer) dateLastUpdateObj;
         System.out.println("Date of last update fetched.");
         /*
-        counter for console log tracking purpose only.
-         */
-        int counter = 0;
-        System.out.printf("new crimes counter: 0%n");
-        /*
         Fetch previous data from the 'grids' table into memory first to vastly increase the speed of data processing,
         compared to an alternative strategy of concurrently I/O into db file on hard drive.
          */
-        String sqlFetchGridsTable = "SELECT * FROM grids; ";
-        List<Grid> gridList = mConnection.createQuery(sqlFetchGridsTable).executeAndFetch(Grid.class);
+        GridTable gridTable = GridTable.load(mConnection);
         System.out.println("Grids table fetched from database");
-
         /*
-        Process raw crime entry fetched from the API one by one
+        Approximate AADTs of new grids only take the grids already in the db file into account, so all of them can be
+        computed up front from the grids just loaded.
          */
-        for (Object crimeEntry : crimeList) {
-            counter ++;
-            System.out.printf("new crimes counter: %d%n", counter);
-
-            Map<String, Object> crime = (Map<String, Object>) crimeEntry;
-
-            //ditch record if it does not contain required attributes.
-            if (!crime.containsKey("crimedate")
-                    || !crime.containsKey("description")
-                    || !crime.containsKey("inside_outside")
-                    || !crime.containsKey("location")
-                    || !crime.containsKey("location_1"))
-                continue;
-            //convert date data into a format easier to manipulate
-            String dateStr = (String) crime.get("crimedate");
-            LocalDate dateLocal = LocalDate.parse(dateStr, DateTimeFormatter.ISO_LOCAL_DATE_TIME);
-            int date = 86400 * (int) dateLocal.toEpochDay();
-
-            //ditch record if has been covered in previous updateDB operations.
-            if (date <= dateLastUpdate) continue;
-
-            String type = (String) crime.get("description");
-
-            //ditch records of crime types that we do not think necessary to include into our system;
-            String typeAllCaps = type.toUpperCase();
-            if (typeAllCaps.contains("AUTO")
-                    || typeAllCaps.contains("ARSON")
-                    || typeAllCaps.contains("BURGLARY")
-                    || typeAllCaps.contains("RESIDENCE")) continue;
-            /*
-            get a integer value which indicates the alarm weight of a crime record, calculated based on the
-            type of the crime record.
-             */
-            int crimeTypeWeight = getCrimeTypeWeight(type);
-
-            String inOut = (String) crime.get("inside_outside");
-
-            /*
-            ditch record if it is indoor, since we do not think those crimes affect our choice of pedestrian navigation
-             */
-            if (inOut.toUpperCase().startsWith("I")) continue;
-
-            String address = (String) crime.get("location");
-            Map<String, Object> location_1 = (Map<String, Object>) crime.get("location_1");
-
-            if (location_1 == null) continue;
-
-            ArrayList<Double> a = (ArrayList<Double>) location_1.get("coordinates");
-            double latitude = a.get(1);
-            double longitude = a.get(0);
-
-            System.out.printf("This crime record is for latitude: %f and longtitude:%f%n", latitude,longitude);
+        AADTApproximation aadtApproximation = AADTApproximation.build(gridTable);
 
-            /*
-            We only take into consideration crime records that occurs in a relative small area around Homewood. This is enough
-            to display the essence of the project and necessary to cope with MapQuest's access restrictions on non-commercial users.
-             */
-
-            /*
-            If the coordinate of this crime data entry does not satisfy our location range restriction, ditch the record;
-             */
-            if (!isCoordinateEligibleForCrimeUpdate(latitude, longitude)) continue;
-            System.out.println("This location is eligible for update");
-
-            //Map the coordinates to grid coordinates;
-            Grid grid = new Grid(latitude, longitude);
-            int x = grid.getX();
-            int y = grid.getY();
-
-            /*
-            Try to find a grid in the 'grids' table by the (x,y) index calculated from the current crime record's
-            coordinate. And then we act accordingly.
-             */
-            System.out.printf("Trying to find grid(%d,%d) in the grids list%n",x,y);
-            Grid gridFound = fetchGridByXY(x,y,gridList);
+        /*
+        Run crime records through the crime pipeline as they arrive from the API. The linkIds of new grids are looked
+        up in the background meanwhile, and handed to their grids and crimes once all of them are known. Those resolved
+        are kept for the next updates, even if this one fails; the crimes are only stored along with the grids.
+         */
+        int dateOfLastCrime = dateLastUpdate;
+        try (LinkIdResolver linkIds = LinkIdResolver.load(mConnection, mLinkIdSourceUrl, mLinkIdRequestsPerSecond,
+                LinkIdResolver.DEFAULT_CONCURRENCY)) {
+            CrimePipeline pipeline = CrimePipeline.forNewCrimes(gridTable, aadtApproximation, mHalfLife,
+                    mCrimePipelineThreads, linkIds);
+            try (CrimeFeedReader crimes = CrimeAPIHandler.openCrimeFeed(mCrimeSourceUrl)) {
+                int aggregated = pipeline.run(crimes::next, crime -> toCrime(crime, dateOfLastCrime));
+                System.out.printf("%d new crimes aggregated, waiting for the linkIds of their grids%n", aggregated);
+                linkIds.await();
+            } finally {
+                System.out.printf("%d new linkIds kept in the database%n", linkIds.persist(mConnection));
+            }
+            mergeCells(pipeline, gridTable);
+        }
+        //Write the changed grids from memory to db file, then re-aggregate the links whose grids changed.
+        writeBack(gridTable);
+        /*
+        Update log.
+         */
+        String sqlUpdateCounter = " UPDATE updatelog SET updatecount= updatecount+1 WHERE sourcename='crime'; ";
+        mConnection.createQuery(sqlUpdateCounter).executeUpdate();
+    }
 
-            int linkIdByXY = gridFound.getLinkId();
+    /**
+     * Turn one record of the crime source into the crime to aggregate into the grids and store into the 'crimes'
+     * table. Called from the filter workers of the crime pipeline.
+     * @param crime the record
+     * @param dateLastUpdate date of the most recent crime of the previous updates; older records are ditched
+     * @return the crime, without linkId, or null if the record is ditched
+     */
+    private Crime toCrime(CrimeRecord crime, int dateLastUpdate) {
+        //ditch record if it does not contain required attributes.
+        if (crime.getCrimeDate() == null
+                || crime.getDescription() == null
+                || crime.getInsideOutside() == null
+                || crime.getLocation() == null
+                || crime.getLatitude() == null)
+            return null;
+        //convert date data into a format easier to manipulate
+        LocalDate dateLocal = LocalDate.parse(crime.getCrimeDate(), DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        int date = 86400 * (int) dateLocal.toEpochDay() + getSecondsOfDay(crime.getCrimeTime());
+
+        //ditch record if has been covered in previous updateDB operations.
+        if (date <= dateLastUpdate) return null;
+
+        String type = crime.getDescription();
+
+        //ditch records of crime types that we do not think necessary to include into our system;
+        String typeAllCaps = type.toUpperCase();
+        if (typeAllCaps.contains("AUTO")
+                || typeAllCaps.contains("ARSON")
+                || typeAllCaps.contains("BURGLARY")
+                || typeAllCaps.contains("RESIDENCE")) return null;
 
-            if (linkIdByXY < 0 ) {
-                /*
-                This grid has not been updated either by traffic source or crimes source and there is not currently
-                any grid tuple for the index (x,y) in the 'grids' table.
-                 */
-                System.out.printf("There previously was not grid(%d,%d) in the database%n",x,y);
-                //request linkId from MapQuest
-                linkIdByXY = MapQuestHandler.requestLinkId(latitude, longitude);
-                System.out.printf("The linkId requested from MapQuest is %d%n",linkIdByXY);
+        /*
+        ditch record if it is indoor, since we do not think those crimes affect our choice of pedestrian navigation
+         */
+        if (crime.getInsideOutside().toUpperCase().startsWith("I")) return null;
 
-                /*
-                Since this grid has never been discovered by either updateCrimes or updateTraffic, we have to calculate
-                the AADT value (the traffic factor that we are to divide the crime weight by) for this grid.
-                */
-                int aadtToAdd = getApproximateGridAADT(x, y);
-                System.out.printf("The approximate AADT for this grid is %d%n", aadtToAdd);
-                System.out.printf("The type of this crime is %s and its type weight is %d%n", type, crimeTypeWeight);
+        double latitude = crime.getLatitude();
+        double longitude = crime.getLongitude();
 
-                double alarmToAdd = crimeTypeWeight * TYPE_WEIGHT_FACTOR/aadtToAdd;
+        /*
+        We only take into consideration crime records that occurs in a relative small area around Homewood. This is enough
+        to display the essence of the project and necessary to cope with MapQuest's access restrictions on non-commercial users.
+        If the coordinate of this crime data entry does not satisfy our location range restriction, ditch the record;
+         */
+        if (!isCoordinateEligibleForCrimeUpdate(latitude, longitude)) return null;
 
-                Grid gridToAdd = new Grid(x,y,linkIdByXY,alarmToAdd, aadtToAdd);
+        return new Crime(date, crime.getLocation(), type, latitude, longitude, 0);
+    }
 
+    /**
+     * Merge the alarms that a crime pipeline aggregated into the grids, and gather its new crimes to be written back
+     * with them, including those that waited for the linkId of their grid, which every lookup has found by now.
+     * @param pipeline the pipeline, once it ran
+     * @param gridTable the grids the pipeline read
+     */
+    private void mergeCells(CrimePipeline pipeline, GridTable gridTable) {
+        mNewCrimes.addAll(pipeline.getLinkedCrimes());
+        for (CrimePipeline.Cell cell : pipeline.getCells()) {
+            int x = cell.getX(), y = cell.getY(), slot = cell.getSlot();
+            int linkId = cell.getLinkIdLookup() == null ? cell.getLinkId() : cell.getLinkIdLookup().join();
+            if (slot < 0) {
                 //We do not put the new grid into the database yet.
-                gridList.add(gridToAdd);
-                System.out.printf("New grid added with alarm %f%n", alarmToAdd);
-
+                gridTable.add(x, y, linkId, cell.getAlarm(), cell.getAADT());
             } else {
-                /*
-                In this situation, there is already a grid(x,y) in the 'grids' table. It can be three different cases:
-                1.The grid has been discovered by an updateTraffics, but by no updateCrimes. Then the grid tuple is in the
-                form of (x,y,0,0,AADT);
-                2.The grid has been discovered by not updateTraffics, byt by at least one updateCrimes. Then the grid tuple
-                is in the form of (x,y,linkId,alarm,AADT), where the AADT is calculated by the approximation algorithm.
-                3.The grid has been discovered by at least one updateTraffics followed by one updateCrimes. The grid tuple
-                is in the form of (x,y,linkId,alarm,AADT), where the AADT is the actual AADT fetched from the traffics data
-                source.
-                 */
-                if (linkIdByXY == 0) {
-                    /*
-                    This belongs to the first case: In this situation, the grid also has never been discovered by any
-                     crimes update. That is saying, no crime record has existed on this grid. Until now :(
-                     */
-                    System.out.printf("There previously was a grid (%d,%d) in the databse, but this grid not yet contain any crime%n", x,y);
-
-                    //we request a linkId for the grid from MapQuest to replace 0
-                    linkIdByXY = MapQuestHandler.requestLinkId(latitude, longitude);
-                    System.out.printf("The new linkId requested from MapQuest is %d%n", linkIdByXY);
-
-                    gridFound.setLinkId(linkIdByXY);
-                    System.out.println("Set the linkId for the grid");
-
-                }
-
-                /*
-                No matter in which of the three cases, after the previous if-block, all we need to do is to update
-                the grid's alarm value.
-                 */
-                double previousAlarm = gridFound.getAlarm();
-                System.out.printf("The alarm for the found grid before updating is %f%n", previousAlarm);
-                System.out.printf("The AADT for the found grid is %d%n", gridFound.getAADT());
-
-                gridFound.setAlarm(previousAlarm + crimeTypeWeight * TYPE_WEIGHT_FACTOR / gridFound.getAADT());
-                System.out.printf("Alarm value for the grid has been updated to %f%n", gridFound.getAlarm());
-
+                mDirtyLinkIds.add(gridTable.getLinkId(slot));
+                gridTable.setAlarm(slot, gridTable.getAlarm(slot) + cell.getAlarm());
+                gridTable.setLinkId(slot, linkId);
             }
+            long key = GridIndex.pack(x, y);
+            mDirtyLinkIds.add(linkId);
+            mDirtyCells.add(key);
+
+            double[] hours = mHourlyAlarms.computeIfAbsent(key, k -> new double[HourlyAlarmIndex.HOURS]);
+            double[] hoursAdded = cell.getHourlyAlarms();
+            for (int h = 0; h < hours.length; h++) {
+                hours[h] += hoursAdded[h];
+            }
+            Map<Integer, Double> months = mMonthlyAlarms.computeIfAbsent(key, k -> new HashMap<>());
+            cell.getMonthlyAlarms().forEach((month, alarm) -> months.merge(month, alarm, Double::sum));
+            mDecayedAlarms.merge(key, cell.getDecayedAlarm(), (previous, added) -> previous.add(added, mHalfLife));
 
-            /*
-            Store the crime data entry into table crimes for future usage. For example, to keep track of all updated
-            crime records' dates so that next updateCrimes only consider the new records;
-             */
-
-            /*
-            Check if there has been a duplicate record already in the database, and if not, insert this crime entry to the
-            crimes table. This operation may be costly since it involves I/O for each crime entry. But since the size of the
-            latest data from the source only contain a few thousands of records, this is some overhead we can tolerate.
-             */
-            String sqlQueryCrimesPrimaryKey = " SELECT date FROM crimes WHERE "
-                    + " date= :dateParam AND "
-                    + " linkId= :linkIdParam AND "
-                    + " type= :typeParam AND "
-                    + " latitude= :latParam AND "
-                    + " longitude= :lngParam; ";
-            Integer datePrevious = mConnection.createQuery(sqlQueryCrimesPrimaryKey)
-                    .addParameter("dateParam", date)
-                    .addParameter("linkIdParam", linkIdByXY)
-                    .addParameter("typeParam", type)
-                    .addParameter("latParam", latitude)
-                    .addParameter("lngParam", longitude)
-                    .executeScalar(Integer.class);
-
-            if (datePrevious == null) {
-                String sqlInsertToCrimes = " INSERT INTO crimes "
-                        + " VALUES( :dateParam, :linkIdParam, :addressParam, :latParam, :lngParam, :typeParam); ";
-
-                mConnection.createQuery(sqlInsertToCrimes)
-                        .addParameter("dateParam", date)
-                        .addParameter("linkIdParam", linkIdByXY)
-                        .addParameter("addressParam", address)
-                        .addParameter("typeParam", type)
-                        .addParameter("latParam", latitude)
-                        .addParameter("lngParam", longitude)
-                        .executeUpdate();
+            for (Crime crime : cell.getCrimesAwaitingLinkId()) {
+                mNewCrimes.add(new Crime(crime.getDate(), crime.getAddress(), crime.getType(), crime.getLat(),
+                        crime.getLng(), linkId));
             }
         }
-        //Write the grids data from memory to db file.
-        putGridsListBackToDB(gridList);
-        /*
-        Update log.
-         */
-        String sqlUpdateCounter = " UPDATE updatelog SET updatecount= updatecount+1 WHERE sourcename='crime'; ";
-        mConnection.createQuery(sqlUpdateCounter).executeUpdate();
     }
 
     /**
@@ -336,7 +480,7 @@ public class DatabaseUpdater {
      *
      * @throws IOException
      */
-    private void updateTraffics() throws IOException {
+    void updateTraffics() throws IOException {
         /*
         Make sure the grids table only get updated once. If there is a count value for 'traffic' in the log, it means updateTraffic
         has been executed before. Abort this invocation.
@@ -353,105 +497,69 @@ public class DatabaseUpdater {
 
             //counter for console log output.
             int counter = 0;
-            System.out.printf("counter: %d%n", counter);
-
-            //fetch data fromm traffics source API
-            ArrayList<Object> trafficList = TrafficAPIHandler.preProcessTrafficData();
-
-            for (Object trafficObj : trafficList) {
-                Map<String, Object> trafficEntry = (Map<String, Object>) trafficObj;
-                Map<String, Object> trafficEntryProperties = (Map<String, Object>) trafficEntry.get("properties");
-
-                Double d = (Double) trafficEntryProperties.get("AADT_2014");
-                double AADT_dbl = (double) d;
-                int AADT = (int) AADT_dbl;
-                System.out.printf("AADT: %d%n", AADT);
-
-                /*
-                if this point is on highway, ditch the point, since highway data is not useful for pedestrian guidance reference.
-                */
-                if (AADT > 50000) continue;
 
-                /*
-                The above AADT value is shared by a list of coordinates, as fetched below;
-                 */
-                Map<String, Object> trafficEntryGeometry = (Map<String, Object>) trafficEntry.get("geometry");
-                ArrayList<Object> trafficCoordinatesList = (ArrayList<Object>) trafficEntryGeometry.get("coordinates");
-
-                for (Object coordinate : trafficCoordinatesList) {
-
-                    counter++;
-                    System.out.printf("counter: %d%n", counter);
-
-                    ArrayList<Object> coordinateSingleList = (ArrayList<Object>) coordinate;
+            /*
+            Fold the traffic coordinates into the grids in memory, keeping the max AADT of each grid, and only write
+            the grids that changed back to the db file once the whole source has been read.
+             */
+            GridTable gridTable = GridTable.load(mConnection);
+            System.out.println("Grids table fetched from database");
 
-                    Object latitudeObj = coordinateSingleList.get(1);
-                    Object longitudeObj = coordinateSingleList.get(0);
+            //stream records from the traffics source API
+            try (TrafficFeedReader traffics = TrafficAPIHandler.openTrafficFeed(mTrafficSourceUrl)) {
+                for (TrafficRecord traffic; (traffic = traffics.next()) != null; ) {
+                    int AADT = traffic.getAADT();
 
                     /*
-                    Some of the data provided by the source API is of poor quality and exceeds the precision limit of
-                    double type. Ditch these coordinate.
-                     */
-                    if (!(latitudeObj instanceof Double) || !(longitudeObj instanceof Double)) {
-                        System.out.println("Not double");
-                        continue;
-                    }
-
-                    Double latitude = (Double) latitudeObj;
-                    Double longitude = (Double) longitudeObj;
-
-                    double lat = (double) latitude;
-                    double lng = (double) longitude;
+                    if this point is on highway, ditch the point, since highway data is not useful for pedestrian guidance reference.
+                    */
+                    if (AADT > 50000) continue;
 
                     /*
-                    For now, we only take in enough traffics data to cover all the crimes in historical crimes and latest
-                    crimes, because all we want to do is divide crime weights aggregated by the AADT shared by those crimes.
+                    The above AADT value is shared by a list of coordinates. Some of the data provided by the source API
+                    is of poor quality and not made of numbers; the reader has already ditched these coordinates.
                      */
-                    if (!isCoordinateEligibleForTrafficUpdate(lat, lng)) continue;
+                    for (int i = 0; i < traffic.size(); i++) {
 
-                    //Get the grid coordinate of this geo-coordinate;
-                    Grid grid = new Grid(latitude, longitude);
-                    int x = grid.getX();
-                    int y = grid.getY();
+                        counter++;
+
+                        double lat = traffic.getLatitude(i);
+                        double lng = traffic.getLongitude(i);
 
-                    //Check to see if this grid has been updated with traffic data;
-                    String sqlQueryGrid = " SELECT AADT FROM grids WHERE x= :xParam AND y= :yParam;";
-                    Integer aadtInGrids = mConnection.createQuery(sqlQueryGrid)
-                            .addParameter("xParam", x)
-                            .addParameter("yParam", y)
-                            .executeScalar(Integer.class);
-
-                    //If this grid has never been updated with traffic data, insert a new tuple for this grid;
-                    if (aadtInGrids == null) {
-                        String sqlInsertCoordinate = "INSERT INTO grids "
-                                + " VALUES(:xParam, :yParam, 0, 0, :aadtParam); ";
-
-                        mConnection.createQuery(sqlInsertCoordinate)
-                                .addParameter("xParam", x)
-                                .addParameter("yParam", y)
-                                .addParameter("aadtParam", AADT)
-                                .executeUpdate();
-                    } else {
                         /*
-                        If this grid has already been updated, with traffic data, update the AADT for this grid if the new
-                        value is larger than the previous value. We make sure the stored AADT for each grid is the max of
-                        AADTs of all traffic coordinates within the grid.
+                        For now, we only take in enough traffics data to cover all the crimes in historical crimes and latest
+                        crimes, because all we want to do is divide crime weights aggregated by the AADT shared by those crimes.
                          */
-
-                        int aadtNew = Math.max(AADT, aadtInGrids);
-
-                        String sqlUpdateGrid = " UPDATE grids SET AADT = :aadtParam WHERE x= :xParam AND y= :yParam; ";
-                        mConnection.createQuery(sqlUpdateGrid)
-                                .addParameter("aadtParam", aadtNew)
-                                .addParameter("xParam", x)
-                                .addParameter("yParam", y)
-                                .executeUpdate();
+                        if (!isCoordinateEligibleForTrafficUpdate(lat, lng)) continue;
+
+                        //Get the grid coordinate of this geo-coordinate;
+                        Grid grid = new Grid(lat, lng);
+                        int x = grid.getX();
+                        int y = grid.getY();
+
+                        //Check to see if this grid has been updated with traffic data;
+                        int slot = gridTable.find(x, y);
+
+                        //If this grid has never been updated with traffic data, add a new grid;
+                        if (slot < 0) {
+                            gridTable.add(x, y, 0, 0, AADT);
+                        } else {
+                            /*
+                            If this grid has already been updated, with traffic data, update the AADT for this grid if the new
+                            value is larger than the previous value. We make sure the stored AADT for each grid is the max of
+                            AADTs of all traffic coordinates within the grid.
+                             */
+                            gridTable.setAADT(slot, Math.max(AADT, gridTable.getAADT(slot)));
+                        }
 
                     }
 
                 }
-
             }
+            System.out.printf("%d traffic coordinates folded into %d grids%n", counter, gridTable.size());
+
+            //Write the added and raised grids from memory to db file, in one transaction.
+            writeBack(gridTable);
 
             /*
             Leave record in the log so that the update for traffic data never get performed again, unless we manually
@@ -462,12 +570,12 @@ public class DatabaseUpdater {
         }
     }
 
-    /**
+    /**
      * After the 'grids' table updated with the updateTraffics, we first put all the historical crime data into consideration
-     * by calculating them into the 'grids' table.
+     * by calculating them into the 'grids' table.
      * @throws IOException
      */
-    private void updateHistoricalCrimes() throws IOException {
+    void updateHistoricalCrimes() throws IOException {
 
         //Query 'updatelog' to see if updateHistoricalCrimes has been executed before.
         String sqlQueryLogHistorical = "SELECT updatecount FROM updatelog WHERE sourcename='historical';";
@@ -478,77 +586,33 @@ public class DatabaseUpdater {
         if (historicalUpdateCount == null) {
             System.out.println("start updating historical data.");
 
-            //Fetch all historical data into memory first to expedite processing.
-            String sqlFetchHistoricalCrimes = " SELECT * from crimes; ";
-            List<Crime> crimeListHistorical = mConnection.createQuery(sqlFetchHistoricalCrimes).executeAndFetch(Crime.class);
-            System.out.println("historical crimes data fetched into memory.");
-
-            //Fetch all grids data into memory as well.
-            String sqlFetchGridsTable = " SELECT * from grids; ";
-            List<Grid> gridList = mConnection.createQuery(sqlFetchGridsTable).executeAndFetch(Grid.class);
+            //Fetch all grids data into memory, to aggregate the historical crimes into.
+            GridTable gridTable = GridTable.load(mConnection);
             System.out.println("grids table with no crime record fetched into memory");
+            AADTApproximation aadtApproximation = AADTApproximation.build(gridTable);
 
-            //Counter for console log output.
-            int counter = 0;
-            System.out.printf("Historical counter: %d%n", counter);
-
-            for (Crime crimeObj : crimeListHistorical) {
-                Grid crimeGrid = new Grid(crimeObj.getLat(), crimeObj.getLng());
-
-                counter++;
-                System.out.printf("historical counter: %d%n", counter);
-
-                //Get the grid index for this crime record's coordinate.
-                int x = crimeGrid.getX();
-                int y = crimeGrid.getY();
-                System.out.printf("x is %d and y is %d%n", x, y);
-
-                //Try to find the grid(x,y) in the current 'grids' table data.
-                Grid gridFoundInTable = fetchGridByXY(x, y, gridList);
-                System.out.println("Is this grid in previously in grids table?");
-
-                if (gridFoundInTable.getX() > 0) {
-                    //Found
-                    System.out.printf("There previously was grid (%d,%d) in the grids table.%n", x, y);
-
-                    /*
-                    Since we intend for one grid (and all the coordinates within it) to share one linkId, we can just
-                    put this historical crime record's linkId into the grids tuple, whether this grid previously has
-                    a valid linkId or not.
-                     */
-                    gridFoundInTable.setLinkId(crimeObj.getLinkId());
-                    System.out.printf("Change its linkId to this crime record's linkId:%d%n", crimeObj.getLinkId());
-
-                    double previousAlarm = gridFoundInTable.getAlarm();
-                    System.out.printf("Before this crime record, the alarm for grid (%d,%d) is %f. The AADT is %d%n", x, y, previousAlarm, gridFoundInTable.getAADT());
-                    System.out.printf("The type weight for this crime is %d%n", getCrimeTypeWeight(crimeObj.getType()));
-                    gridFoundInTable.setAlarm(getCrimeTypeWeight(crimeObj.getType()) * TYPE_WEIGHT_FACTOR / gridFoundInTable.getAADT() + previousAlarm);
-                    System.out.printf("Change the grid's alarm to %f.%n", gridFoundInTable.getAlarm());
-                } else {
-                    //Not found
-                    System.out.printf("There previously was not a grid (%d,%d) in the grids table.%n", x, y);
-
-                    /*
-                    We are trying to put a crime dot into a grid that has not traffic data dot, thus no valid AADT value.
-                    Thus we first get an approximate AADT for the grid.
-                     */
-                    int aadtToAdd = getApproximateGridAADT(x, y);
-                    System.out.printf("The approximate AADT for this grid is %d%n", aadtToAdd);
-                    System.out.printf("The type for this crime is %s and the weight for this crime is %d%n", crimeObj.getType(), getCrimeTypeWeight(crimeObj.getType()));
-
-                    double alarmToAdd = getCrimeTypeWeight(crimeObj.getType()) * TYPE_WEIGHT_FACTOR / aadtToAdd;
-                    Grid gridToAdd = new Grid(x, y, crimeObj.getLinkId(), alarmToAdd, aadtToAdd);
-                    gridList.add(gridToAdd);
-                    System.out.printf("New grid added to the list, with the alarm value of %f%n", alarmToAdd);
-                }
+            /*
+            Stream the historical crimes from the 'crimes' table through the crime pipeline, rather than fetching all of
+            them into memory first. Since we intend for one grid (and all the coordinates within it) to share one
+            linkId, each grid takes the linkId of its last crime, whether it previously had a valid linkId or not.
+             */
+            CrimePipeline pipeline = CrimePipeline.forHistoricalCrimes(gridTable, aadtApproximation, mHalfLife,
+                    mCrimePipelineThreads);
+            try (Statement statement = mConnection.getJdbcConnection().createStatement();
+                 ResultSet rs = statement.executeQuery(SQL_FETCH_HISTORICAL_CRIMES)) {
+                int aggregated = pipeline.run(() -> readCrime(rs), crime -> crime);
+                System.out.printf("%d historical crimes aggregated%n", aggregated);
+            } catch (SQLException e) {
+                throw new Sql2oException("Failed to read the historical crimes", e);
             }
-            System.out.printf("There are currently %d grids in the grid list%n", gridList.size());
+            mergeCells(pipeline, gridTable);
+            System.out.printf("There are currently %d grids in the grid list%n", gridTable.size());
 
             /*
             Write the data of 'grids' table back to db file. Since we did not change anything in the 'crimes' table,
             we do not have to write the crimes data back to database.
              */
-            putGridsListBackToDB(gridList);
+            writeBack(gridTable);
 
             /*
             update the 'updatelog' so that no future invocations of updateHistoricalCrimes would be able to change the
@@ -563,48 +627,335 @@ public class DatabaseUpdater {
 
 
     /**
-     * routine method for puttong grids data from memory back to database.
-     * @param gridList
+     * Write everything an update aggregated back to the database in a single transaction: the new crimes, the changed
+     * grids, their hourly, monthly and decayed alarms, and the risk aggregates of their links. Readers see either the tables from
+     * before the update or from after it, never a mix, and the cost follows the number of changed grids rather than
+     * the size of the tables.
+     * @param gridTable the grids, with the changed ones flagged dirty
+     * @throws Sql2oException when the write fails, in which case nothing is written
      */
-    private void putGridsListBackToDB(List<Grid> gridList) {
+    private void writeBack(GridTable gridTable) {
+        inTransaction(() -> {
+            putNewCrimesBackToDB();
+            putDirtyGridsBackToDB(gridTable);
+            putHourlyAlarmsBackToDB();
+            putMonthlyAlarmsBackToDB();
+            putDecayedAlarmsBackToDB();
+            refreshLinkRisks();
+        }, "Failed to write the grids back to the database");
+        gridTable.markClean();
+    }
+
+    /*
+    Writes that inTransaction commits together.
+     */
+    private interface Transaction {
+        void run() throws SQLException;
+    }
+
+    /**
+     * Run writes on the updater's connection in a single transaction, and roll all of them back when one fails.
+     * @param writes the writes
+     * @param failure message of the exception thrown when they fail
+     * @throws Sql2oException when the writes fail, in which case nothing is written
+     */
+    private void inTransaction(Transaction writes, String failure) {
+        java.sql.Connection jdbc = mConnection.getJdbcConnection();
+        try {
+            boolean autoCommit = jdbc.getAutoCommit();
+            jdbc.setAutoCommit(false);
+            try {
+                writes.run();
+                jdbc.commit();
+            } catch (SQLException | RuntimeException e) {
+                jdbc.rollback();
+                throw e;
+            } finally {
+                jdbc.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new Sql2oException(failure, e);
+        }
+    }
 
-        //Clear the 'grids' table first.
-        String sqlClearGridsTable = " DELETE FROM grids; ";
-        mConnection.createQuery(sqlClearGridsTable).executeUpdate();
+    /**
+     * Store the new crimes gathered by mergeCells into the 'crimes' table.
+     * @throws SQLException when the write fails
+     */
+    private void putNewCrimesBackToDB() throws SQLException {
+        System.out.printf("Storing %d new crimes%n", mNewCrimes.size());
+        CrimePipeline.storeCrimes(mConnection, mNewCrimes);
+        mNewCrimes.clear();
+    }
 
-        int counter = 0;
-        System.out.println("Start putting grid list back into db");
+    /**
+     * Upsert the grids added or changed since the grid table was loaded into the 'grids' table, in JDBC batches.
+     * Grids that did not change are not written.
+     * @param gridTable the grids, with the changed ones flagged dirty
+     * @throws SQLException when the write fails
+     */
+    private void putDirtyGridsBackToDB(GridTable gridTable) throws SQLException {
+        int[] dirtySlots = gridTable.getDirtySlots();
+        System.out.printf("Putting %d changed grids back into db%n", dirtySlots.length);
+
+        String sqlUpsertGrid = " INSERT OR REPLACE INTO grids (x, y, linkId, alarm, AADT) VALUES (?, ?, ?, ?, ?); ";
+        try (PreparedStatement statement = mConnection.getJdbcConnection().prepareStatement(sqlUpsertGrid)) {
+            for (int i = 0; i < dirtySlots.length; i++) {
+                int slot = dirtySlots[i];
+                statement.setInt(1, gridTable.getX(slot));
+                statement.setInt(2, gridTable.getY(slot));
+                statement.setInt(3, gridTable.getLinkId(slot));
+                statement.setDouble(4, gridTable.getAlarm(slot));
+                statement.setInt(5, gridTable.getAADT(slot));
+                statement.addBatch();
+                if ((i + 1) % WRITE_BATCH_SIZE == 0) statement.executeBatch();
+            }
+            statement.executeBatch();
+        }
+    }
 
-        for (Grid eachGrid : gridList) {
-            counter++;
-            System.out.printf("Insert counter: %d%n", counter);
+    /**
+     * Read the next historical crime.
+     * @param rs the crimes, as selected by SQL_FETCH_HISTORICAL_CRIMES
+     * @return the crime, or null after the last one
+     * @throws Sql2oException when the crime cannot be read
+     */
+    private static Crime readCrime(ResultSet rs) throws Sql2oException {
+        try {
+            if (!rs.next()) return null;
+            return new Crime(rs.getInt(1), rs.getString(3), rs.getString(6), rs.getDouble(4), rs.getDouble(5),
+                    rs.getInt(2));
+        } catch (SQLException e) {
+            throw new Sql2oException("Failed to read the historical crimes", e);
+        }
+    }
 
-            String sqlInsertNewGridsTable = " INSERT INTO grids VALUES "
-                    + " ( :xParam, :yParam, :linkIdParam, :alarmParam, :aadtParam ); ";
-            mConnection.createQuery(sqlInsertNewGridsTable)
-                    .addParameter("xParam", eachGrid.getX())
-                    .addParameter("yParam", eachGrid.getY())
-                    .addParameter("linkIdParam", eachGrid.getLinkId())
-                    .addParameter("alarmParam", eachGrid.getAlarm())
-                    .addParameter("aadtParam", eachGrid.getAADT())
-                    .executeUpdate();
+    /**
+     * Add the hourly alarms collected by the crime pipelines to the 'gridhours' table. Only the grids touched by this
+     * updater are written.
+     */
+    void putHourlyAlarmsBackToDB() {
+        System.out.printf("Adding hourly alarms of %d grids%n", mHourlyAlarms.size());
+        try (Query insert = mConnection.createQuery(" INSERT OR IGNORE INTO gridhours (x, y) "
+                + " VALUES ( :xParam, :yParam ); ");
+             Query add = mConnection.createQuery(SQL_ADD_GRID_HOURS)) {
+            int count = 0;
+            for (Map.Entry<Long, double[]> entry : mHourlyAlarms.entrySet()) {
+                int x = (int) (entry.getKey() >> 32), y = (int) (long) entry.getKey();
+                insert.addParameter("xParam", x)
+                        .addParameter("yParam", y)
+                        .addToBatch();
+                add.addParameter("xParam", x)
+                        .addParameter("yParam", y);
+                double[] hours = entry.getValue();
+                for (int hour = 0; hour < hours.length; hour++) {
+                    add.addParameter("h" + hour, hours[hour]);
+                }
+                add.addToBatch();
+                if (++count % WRITE_BATCH_SIZE == 0) executeBatches(insert, add);
+            }
+            executeBatches(insert, add);
+        }
+        mHourlyAlarms.clear();
+    }
+
+    /**
+     * Add alarm to a grid in the month of the crime it comes from. Kept in memory until putMonthlyAlarmsBackToDB.
+     * @param x grid index
+     * @param y grid index
+     * @param date date of the crime
+     * @param alarm alarm to add
+     */
+    private void addMonthlyAlarm(int x, int y, int date, double alarm) {
+        mMonthlyAlarms.computeIfAbsent(GridIndex.pack(x, y), cell -> new HashMap<>())
+                .merge(MonthlyAlarmIndex.monthOf(date), alarm, Double::sum);
+    }
+
+    /**
+     * Add the monthly alarms collected by addMonthlyAlarm to the 'gridmonths' table.
+     */
+    void putMonthlyAlarmsBackToDB() {
+        System.out.printf("Adding monthly alarms of %d grids%n", mMonthlyAlarms.size());
+        try (Query insert = mConnection.createQuery(" INSERT OR IGNORE INTO gridmonths (x, y, month) "
+                + " VALUES ( :xParam, :yParam, :monthParam ); ");
+             Query add = mConnection.createQuery(" UPDATE gridmonths SET alarm = alarm + :alarmParam "
+                     + " WHERE x= :xParam AND y= :yParam AND month= :monthParam; ")) {
+            int count = 0;
+            for (Map.Entry<Long, Map<Integer, Double>> entry : mMonthlyAlarms.entrySet()) {
+                int x = (int) (entry.getKey() >> 32), y = (int) (long) entry.getKey();
+                for (Map.Entry<Integer, Double> month : entry.getValue().entrySet()) {
+                    insert.addParameter("xParam", x)
+                            .addParameter("yParam", y)
+                            .addParameter("monthParam", month.getKey())
+                            .addToBatch();
+                    add.addParameter("alarmParam", month.getValue())
+                            .addParameter("xParam", x)
+                            .addParameter("yParam", y)
+                            .addParameter("monthParam", month.getKey())
+                            .addToBatch();
+                    if (++count % WRITE_BATCH_SIZE == 0) executeBatches(insert, add);
+                }
+            }
+            executeBatches(insert, add);
         }
+        mMonthlyAlarms.clear();
     }
 
     /**
-     * Trying to find a grid in the 'grids' table by the given (x,y)
+     * Add a crime's alarm to the decayed alarm of a grid. Kept in memory until putDecayedAlarmsBackToDB.
      * @param x grid index
      * @param y grid index
-     * @param gridList list that holds in memory all the data of the 'grids' table
-     * @return a Grid object. Its properties' values may indicate whether grid(x,y) is actually found
+     * @param date date of the crime
+     * @param alarm alarm to add
      */
-    private Grid fetchGridByXY(int x, int y, List<Grid> gridList ) {
-        for (Grid eachGrid : gridList ) {
-            if ((eachGrid.getX() == x) && (eachGrid.getY() == y)) return eachGrid;
+    private void addDecayedAlarm(int x, int y, int date, double alarm) {
+        mDecayedAlarms.merge(GridIndex.pack(x, y), new DecayedAlarm(alarm, date),
+                (previous, added) -> previous.add(added, mHalfLife));
+    }
+
+    /**
+     * Add the decayed alarms collected by addDecayedAlarm to the 'griddecay' table. Only the grids touched by this
+     * updater are read and written.
+     */
+    void putDecayedAlarmsBackToDB() {
+        System.out.printf("Adding decayed alarms of %d grids%n", mDecayedAlarms.size());
+        try (Query select = mConnection.createQuery(" SELECT alarm, asOf FROM griddecay "
+                + " WHERE x= :xParam AND y= :yParam; ");
+             Query replace = mConnection.createQuery(" INSERT OR REPLACE INTO griddecay "
+                     + " VALUES( :xParam, :yParam, :alarmParam, :asOfParam, :halfLifeParam); ")) {
+            int count = 0;
+            for (Map.Entry<Long, DecayedAlarm> entry : mDecayedAlarms.entrySet()) {
+                int x = (int) (entry.getKey() >> 32), y = (int) (long) entry.getKey();
+                DecayedAlarm alarm = entry.getValue();
+                //Each grid is only written once, so reading it does not need the batch before it to be executed.
+                List<Row> rows = select.addParameter("xParam", x)
+                        .addParameter("yParam", y)
+                        .executeAndFetchTable().rows();
+                if (!rows.isEmpty()) {
+                    alarm = alarm.add(rows.get(0).getDouble("alarm"), rows.get(0).getInteger("asOf"), mHalfLife);
+                }
+                replace.addParameter("xParam", x)
+                        .addParameter("yParam", y)
+                        .addParameter("alarmParam", alarm.getAlarm())
+                        .addParameter("asOfParam", alarm.getAsOf())
+                        .addParameter("halfLifeParam", mHalfLife)
+                        .addToBatch();
+                if (++count % WRITE_BATCH_SIZE == 0) executeBatches(replace);
+            }
+            executeBatches(replace);
+        }
+        mDecayedAlarms.clear();
+    }
+
+    /**
+     * Fill 'gridmonths' and 'griddecay' from the crimes aggregated into grids before the tables existed, or before
+     * the half-life changed, weighing each crime by the current AADT of its grid. A table is only filled while it is
+     * empty and some alarm has been aggregated, as from then on the updater adds every crime to it itself. The crimes
+     * are streamed from the 'crimes' table rather than fetched into memory.
+     * @throws SQLException when the crimes cannot be read
+     */
+    private void replayAggregatedCrimes() throws SQLException {
+        Integer alarmedGrids = mConnection.createQuery(" SELECT COUNT(*) FROM grids WHERE alarm > 0; ")
+                .executeScalar(Integer.class);
+        if (alarmedGrids == null || alarmedGrids == 0) return;
+        boolean months = isEmpty("gridmonths"), decay = isEmpty("griddecay");
+        if (!months && !decay) return;
+
+        Map<Long, Integer> aadts = new HashMap<>();
+        for (Grid grid : mConnection.createQuery(" SELECT x, y, AADT FROM grids WHERE AADT > 0; ")
+                .executeAndFetch(Grid.class)) {
+            aadts.put(GridIndex.pack(grid.getX(), grid.getY()), grid.getAADT());
         }
-        Grid nullGrid = new Grid();
-        nullGrid.setLinkId(-1);
-        return nullGrid;
+        try (Statement statement = mConnection.getJdbcConnection().createStatement();
+             ResultSet rs = statement.executeQuery(SQL_FETCH_HISTORICAL_CRIMES)) {
+            for (Crime crime = readCrime(rs); crime != null; crime = readCrime(rs)) {
+                int x = (int) Grid.projectX(crime.getLng()), y = (int) Grid.projectY(crime.getLat());
+                Integer aadt = aadts.get(GridIndex.pack(x, y));
+                if (aadt == null) continue;
+                double alarm = getCrimeAlarm(crime.getType(), aadt);
+                if (months) addMonthlyAlarm(x, y, crime.getDate(), alarm);
+                if (decay) addDecayedAlarm(x, y, crime.getDate(), alarm);
+            }
+        }
+        putMonthlyAlarmsBackToDB();
+        putDecayedAlarmsBackToDB();
+    }
+
+    /**
+     * Check whether a table has no tuple.
+     * @param table name of the table
+     * @return true if it is empty
+     */
+    private boolean isEmpty(String table) {
+        return mConnection.createQuery(" SELECT NOT EXISTS (SELECT 1 FROM " + table + "); ")
+                .executeScalar(Integer.class) == 1;
+    }
+
+    /**
+     * Seconds since midnight of the time of a crime from the crime source.
+     * @param crimeTime the time, as HH:MM:SS or HHMM
+     * @return the seconds, or 0 if the time is missing or malformed
+     */
+    static int getSecondsOfDay(String crimeTime) {
+        if (crimeTime == null) return 0;
+        String digits = crimeTime.replace(":", "").trim();
+        if (!digits.matches("\\d{4}(\\d{2})?")) return 0;
+        int hours = Integer.parseInt(digits.substring(0, 2)), minutes = Integer.parseInt(digits.substring(2, 4));
+        int seconds = digits.length() == 6 ? Integer.parseInt(digits.substring(4, 6)) : 0;
+        if (hours > 23 || minutes > 59 || seconds > 59) return 0;
+        return hours * 3600 + minutes * 60 + seconds;
+    }
+
+    /**
+     * Re-aggregate the 'linkrisks' tuple of every link whose grids were changed since the last refresh, from the
+     * grids currently in the database. Only the touched links are read, through the index on grids.linkId, so the
+     * cost follows the size of the update rather than the size of the 'grids' table.
+     */
+    void refreshLinkRisks() {
+        System.out.printf("Refreshing risk aggregates of %d links%n", mDirtyLinkIds.size());
+        try (Query delete = mConnection.createQuery(" DELETE FROM linkrisks WHERE linkId= :linkIdParam; ");
+             Query aggregate = mConnection.createQuery(SQL_AGGREGATE_LINK_RISKS
+                     + " WHERE linkId= :linkIdParam GROUP BY linkId; ")) {
+            int count = 0;
+            for (int linkId : mDirtyLinkIds) {
+                if (linkId <= 0) continue;
+                delete.addParameter("linkIdParam", linkId).addToBatch();
+                aggregate.addParameter("linkIdParam", linkId).addToBatch();
+                if (++count % WRITE_BATCH_SIZE == 0) executeBatches(delete, aggregate);
+            }
+            executeBatches(delete, aggregate);
+        }
+        mDirtyLinkIds.clear();
+    }
+
+    /**
+     * Execute the batches added to queries so far, in order. A query whose tuples depend on those of the query
+     * before it, such as an update after an insert of the same rows, comes after it.
+     * @param queries the queries
+     */
+    private static void executeBatches(Query... queries) {
+        for (Query query : queries) {
+            query.executeBatch();
+        }
+    }
+
+    /**
+     * Mark a link's 'linkrisks' tuple as stale, to be re-aggregated by the next refreshLinkRisks.
+     * @param linkId the linkId
+     */
+    void markLinkDirty(int linkId) {
+        mDirtyLinkIds.add(linkId);
+    }
+
+    /**
+     * Alarm a crime adds to its grid, the same way the updater aggregates it.
+     * @param type the crime type
+     * @param aadt AADT of the grid
+     * @return the alarm, 0 if the grid has no traffic count
+     */
+    static double getCrimeAlarm(String type, int aadt) {
+        if (type == null || aadt <= 0) return 0;
+        return getCrimeTypeWeight(type) * TYPE_WEIGHT_FACTOR / aadt;
     }
 
     /**
@@ -614,7 +965,7 @@ public class DatabaseUpdater {
      * @param type The crime type.
      * @return The weight value for this type of crime.
      */
-    public int getCrimeTypeWeight(String type) {
+    public static int getCrimeTypeWeight(String type) {
         String typeAllCap = type.toUpperCase();
         if (typeAllCap.contains("ASSAULT")) {
             if (typeAllCap.contains("THREAT")) {
@@ -667,69 +1018,4 @@ public class DatabaseUpdater {
         return (latitude < 41.62974) && (latitude > 39.2004) && (longitude < -76.51783) && (longitude > -76.71136);
     }
 
-    /**
-     * For grids that has not been discovered by traffic updates before, thus have no valid AADT value, but is currently
-     * being discovered by crime update, this algorithm calculates the approximate AADT value for the grid,
-     * based on the AADT values around this new grid.
-     *
-     * @param x x index of the to be discovered grid
-     * @param y y index of the to be discovered grid
-     * @return The AADT value for the grid.
-     */
-    private int getApproximateGridAADT(int x, int y) {
-        double leftAADT = discoverClosestAADT(x, y, -1, 0, 10);
-        System.out.printf("Cloeset AADT on the left is %f%n", leftAADT);
-
-        double rightAADT = discoverClosestAADT(x, y, 1, 0, 10);
-        System.out.printf("Cloeset AADT on the right is %f%n", rightAADT);
-
-        double upAADT = discoverClosestAADT(x, y, 0, 1, 10);
-        System.out.printf("Cloeset AADT on the up is %f%n", upAADT);
-
-        double downAADT = discoverClosestAADT(x, y, 0, -1, 10);
-        System.out.printf("Cloeset AADT on the down is %f%n", downAADT);
-
-        //sum up the influences of the closest grids which has its own AADT values from all four directions.
-        int rawAADT = (int) (leftAADT + rightAADT + upAADT + downAADT) * 1/3;
-        if (rawAADT == 0) rawAADT++;
-        return rawAADT;
-    }
-
-    /**
-     * Helper method for getApproximateGridAADT.  Recursive in nature;
-     * Starting from (x,y), and proceed in a direction as specified by the Increment arguments, further and further
-     * until found a grid with valid AADT, or reached the maximum depth as specified by the last argument
-     * @param x                  grid x index
-     * @param y                  grid y index
-     * @param xIncrement         Gave xIncrement a separate argument to increase method's reusablity
-     * @param yIncrement         Gave yIncrement a separate argument to increase method's reusablity
-     * @param maxDistanceCounter A counter to to prevent the algorithm from going too far thus affecting performance
-     * @return
-     */
-    private double discoverClosestAADT(int x, int y, int xIncrement, int yIncrement, int maxDistanceCounter) {
-        System.out.printf("Discovering cloeset AADT for (%d,%d)%n", x,y);
-
-        //If reached max distance of the exploration, return lowest value for AADT;
-        if (maxDistanceCounter == 0) {
-            System.out.printf("Max depth reached, reaching AADT for (%d,%d) as 1%n", x,y);
-            return 1;
-        }
-
-        //Check to the grid we are at has a valid AADT or not. Return if it does.
-        String sqlFetchAADT = "SELECT AADT FROM grids WHERE x= :xParam AND y= :yParam";
-        Integer aadt = mConnection.createQuery(sqlFetchAADT)
-                .addParameter("xParam", x)
-                .addParameter("yParam", y)
-                .executeScalar(Integer.class);
-
-        if (aadt != null) {
-            System.out.printf("Found one closest AADT: %d%n", aadt);
-            return aadt;
-        }
-
-        //Look further if otherwise. Multiply the result of next iteration with a coefficient of 0.8 to indicate distance's influence on AADT values.
-        System.out.printf("No AADT for grid (%d,%d), digging further at (%d,%d)%n", x, y, x+xIncrement,y+yIncrement);
-        return 0.8 * discoverClosestAADT(x + xIncrement, y + yIncrement, xIncrement, yIncrement, maxDistanceCounter - 1);
-    }
-
 }
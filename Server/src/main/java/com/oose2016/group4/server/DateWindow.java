@@ -0,0 +1,41 @@
+package com.oose2016.group4.server;
+
+/**
+ * Inclusive range of crime dates, in seconds of local time since the epoch, that a risk query is restricted to.
+ */
+public class DateWindow {
+	private final int fromDate, toDate;
+
+	/**
+	 * DateWindow constructor
+	 * @param fromDate earliest date
+	 * @param toDate latest date
+	 * @throws IllegalArgumentException if the window ends before it starts
+	 */
+	public DateWindow(int fromDate, int toDate) {
+		if (fromDate > toDate) throw new IllegalArgumentException("The date window ends before it starts");
+		this.fromDate = fromDate;
+		this.toDate = toDate;
+	}
+
+	public int getFromDate() {
+		return fromDate;
+	}
+
+	public int getToDate() {
+		return toDate;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (o == null || getClass() != o.getClass()) return false;
+		DateWindow window = (DateWindow) o;
+		return fromDate == window.fromDate && toDate == window.toDate;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * fromDate + toDate;
+	}
+}
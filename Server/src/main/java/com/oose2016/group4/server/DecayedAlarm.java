@@ -0,0 +1,111 @@
+package com.oose2016.group4.server;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.sql2o.Connection;
+import org.sql2o.Sql2oException;
+
+/**
+ * Alarm of a grid with every crime weighed down by its age, halving every half-life, as kept in the 'griddecay'
+ * table. A grid's alarm is stored together with the date it was last brought up to, and only decayed further when
+ * the grid is written again, so that adding a crime costs the same however long the history of the grid is.
+ *
+ * Decayed alarms are read as of the date of the newest crime in the table rather than the time of the request, so
+ * that they only change with the data, like every other response under the same data version.
+ */
+public class DecayedAlarm {
+	/*
+	Half-life used unless another one is configured: a crime counts half as much after a year.
+	 */
+	public static final int DEFAULT_HALF_LIFE = 365 * 86400;
+
+	private static final String SQL_FETCH_GRID_DECAY = "SELECT x, y, alarm, asOf, halfLife FROM griddecay";
+
+	private final double alarm;
+	private final int asOf;
+
+	/**
+	 * DecayedAlarm constructor
+	 * @param alarm the alarm as of the date
+	 * @param asOf date the alarm was last decayed to
+	 */
+	public DecayedAlarm(double alarm, int asOf) {
+		this.alarm = alarm;
+		this.asOf = asOf;
+	}
+
+	public double getAlarm() {
+		return alarm;
+	}
+
+	public int getAsOf() {
+		return asOf;
+	}
+
+	/**
+	 * Weigh down an alarm by the time that has passed.
+	 * @param alarm the alarm
+	 * @param seconds seconds passed, not negative
+	 * @param halfLife half-life in seconds
+	 * @return the decayed alarm
+	 */
+	static double decay(double alarm, long seconds, int halfLife) {
+		return alarm * Math.pow(0.5, (double) seconds / halfLife);
+	}
+
+	/**
+	 * Add the alarm of a crime, decayed up to whichever of the two dates is later.
+	 * @param alarm alarm of the crime
+	 * @param date date of the crime
+	 * @param halfLife half-life in seconds
+	 * @return the sum
+	 */
+	public DecayedAlarm add(double alarm, int date, int halfLife) {
+		if (date >= asOf) return new DecayedAlarm(decay(this.alarm, (long) date - asOf, halfLife) + alarm, date);
+		return new DecayedAlarm(this.alarm + decay(alarm, (long) asOf - date, halfLife), asOf);
+	}
+
+	/**
+	 * Add another decayed alarm, decayed up to whichever of the two dates is later.
+	 * @param other the other alarm
+	 * @param halfLife half-life in seconds
+	 * @return the sum
+	 */
+	public DecayedAlarm add(DecayedAlarm other, int halfLife) {
+		return add(other.alarm, other.asOf, halfLife);
+	}
+
+	/**
+	 * Load the 'griddecay' table, with every alarm decayed to the newest date in it, over the grids of a grid index.
+	 * Grids without a decayed alarm get 0.
+	 * @param conn database connection
+	 * @param grids the grids
+	 * @return index of the grids with their decayed alarm
+	 * @throws Sql2oException when the table cannot be read
+	 */
+	public static GridIndex load(Connection conn, GridIndex grids) throws Sql2oException {
+		double[] alarms = new double[grids.size()];
+		int[] asOf = new int[grids.size()], halfLives = new int[grids.size()];
+		long newest = Long.MIN_VALUE;
+
+		try (Statement statement = conn.getJdbcConnection().createStatement();
+			 ResultSet rs = statement.executeQuery(SQL_FETCH_GRID_DECAY)) {
+			while (rs.next()) {
+				int slot = grids.find(rs.getInt(1), rs.getInt(2));
+				if (slot < 0) continue;
+				alarms[slot] = rs.getDouble(3);
+				asOf[slot] = rs.getInt(4);
+				halfLives[slot] = rs.getInt(5);
+				newest = Math.max(newest, asOf[slot]);
+			}
+		} catch (SQLException e) {
+			throw new Sql2oException("Failed to load griddecay into memory", e);
+		}
+		for (int slot = 0; slot < alarms.length; slot++) {
+			if (alarms[slot] != 0) alarms[slot] = decay(alarms[slot], newest - asOf[slot], halfLives[slot]);
+		}
+		return grids.withAlarms(alarms, true);
+	}
+}
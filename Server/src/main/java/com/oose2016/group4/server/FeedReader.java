@@ -0,0 +1,76 @@
+package com.oose2016.group4.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Superclass for CrimeFeedReader and TrafficFeedReader.
+ * Decodes the records of a JSON feed one at a time as they are read from the stream, so that only the record being
+ * decoded is ever held in memory, however large the feed.
+ * @param <T> type of the records
+ */
+public abstract class FeedReader<T> implements Closeable {
+	protected final JsonReader json;
+
+	/**
+	 * Start reading a feed.
+	 * @param in stream of the feed, closed along with this reader
+	 */
+	protected FeedReader(Reader in) {
+		json = new JsonReader(in);
+	}
+
+	/**
+	 * Decode the next record.
+	 * @return the record, or null at the end of the feed
+	 * @throws IOException when the stream fails or the feed is malformed
+	 */
+	public abstract T next() throws IOException;
+
+	@Override
+	public void close() throws IOException {
+		json.close();
+	}
+
+	/**
+	 * Read a string or number value as a string.
+	 * @return the value, or null if it is null, an object or an array, which are skipped
+	 * @throws IOException when the stream fails or the feed is malformed
+	 */
+	protected String nextStringOrNull() throws IOException {
+		JsonToken token = json.peek();
+		if (token == JsonToken.STRING || token == JsonToken.NUMBER) return json.nextString();
+		json.skipValue();
+		return null;
+	}
+
+	/**
+	 * Read a GeoJSON position, an array of longitude then latitude.
+	 * @return longitude and latitude, or null if the value is not an array of two numbers, which is skipped
+	 * @throws IOException when the stream fails or the feed is malformed
+	 */
+	protected double[] nextPosition() throws IOException {
+		if (json.peek() != JsonToken.BEGIN_ARRAY) {
+			json.skipValue();
+			return null;
+		}
+		double[] position = new double[2];
+		int count = 0;
+		boolean valid = true;
+		json.beginArray();
+		while (json.hasNext()) {
+			if (valid && count < 2 && json.peek() == JsonToken.NUMBER) {
+				position[count++] = json.nextDouble();
+			} else {
+				valid = false;
+				json.skipValue();
+			}
+		}
+		json.endArray();
+		return valid && count == 2 ? position : null;
+	}
+}
@@ -29,16 +29,32 @@ public class Grid {
      * @param lng longitude of coordinate
      */
     public Grid (double lat, double lng) {
-        double latitudeDegree = lat * Math.PI / 180;
-		double dx = (lng + 180) / 360 * 262144;
-		double dy = (1 - (Math.log(Math.tan(latitudeDegree) + 1 / Math.cos(latitudeDegree)) / Math.PI)) / 2 * 262144;
-		this.x = (int) dx;
-		this.y = (int) dy;
+		this.x = (int) projectX(lng);
+		this.y = (int) projectY(lat);
         linkId = 0;
         alarm = 0;
         AADT = 0;
     }
 
+    /**
+     * Project a longitude onto the grid's x axis without truncating to a grid index.
+     * @param lng longitude of coordinate
+     * @return fractional x index
+     */
+    public static double projectX(double lng) {
+        return (lng + 180) / 360 * 262144;
+    }
+
+    /**
+     * Project a latitude onto the grid's y axis without truncating to a grid index.
+     * @param lat latitude of coordinate
+     * @return fractional y index
+     */
+    public static double projectY(double lat) {
+        double latitudeDegree = lat * Math.PI / 180;
+        return (1 - (Math.log(Math.tan(latitudeDegree) + 1 / Math.cos(latitudeDegree)) / Math.PI)) / 2 * 262144;
+    }
+
     public Grid() {
         x =0 ;
         y = 0 ;
@@ -0,0 +1,259 @@
+package com.oose2016.group4.server;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import org.sql2o.Connection;
+import org.sql2o.Sql2oException;
+
+/**
+ * Read-only, in-memory snapshot of the 'grids' table, laid out in parallel primitive arrays so that the
+ * avoidLinkIds and safety rating endpoints can be answered without going back to SQLite.
+ * Cells are looked up by their packed (x, y) key through an open-addressing hash table.
+ * A snapshot is never modified after it is built; SurvivalService swaps in a fresh one after each update.
+ * Indexes over other alarms of the same grids, such as those of a date window, share its hash table and quadtree
+ * nodes.
+ */
+public class GridIndex {
+	/*
+	Alarm bands used to split linkIds into red and yellow, and the maximum number of linkIds per band.
+	 */
+	static final double RED_ALARM = 2000;
+	static final double YELLOW_ALARM = 1000;
+	static final int MAX_LINK_IDS = 20;
+
+	private static final String SQL_FETCH_GRIDS = "SELECT x, y, linkId, alarm, AADT FROM ";
+
+	private final int size;
+	private final int[] xs, ys, linkIds, aadts;
+	private final double[] alarms;
+
+	/*
+	Max-alarm quadtree used to rank linkIds within a box.
+	 */
+	private final AlarmQuadTree quadTree;
+
+	/*
+	Prefix sums over the alarm raster, or null when the grids are spread too far apart to rasterize.
+	 */
+	private final AlarmSummedAreaTable summedAlarms;
+
+	/*
+	Open-addressing hash table from packed (x, y) to slot + 1; 0 marks an empty bucket.
+	 */
+	private final long[] keys;
+	private final int[] buckets;
+	private final int mask;
+
+	private GridIndex(int size, int[] xs, int[] ys, int[] linkIds, double[] alarms, int[] aadts) {
+		this.size = size;
+		this.xs = xs;
+		this.ys = ys;
+		this.linkIds = linkIds;
+		this.alarms = alarms;
+		this.aadts = aadts;
+
+		int capacity = Integer.highestOneBit(Math.max(size, 1) * 2 + 1) << 1;
+		keys = new long[capacity];
+		buckets = new int[capacity];
+		mask = capacity - 1;
+		for (int slot = 0; slot < size; slot++) {
+			long key = pack(xs[slot], ys[slot]);
+			int i = hash(key) & mask;
+			while (buckets[i] != 0 && keys[i] != key) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			buckets[i] = slot + 1;
+		}
+
+		quadTree = AlarmQuadTree.build(size, xs, ys, linkIds, alarms);
+		summedAlarms = AlarmSummedAreaTable.build(size, xs, ys, alarms);
+	}
+
+	private GridIndex(GridIndex grids, double[] alarms, boolean summed) {
+		size = grids.size;
+		xs = grids.xs;
+		ys = grids.ys;
+		linkIds = grids.linkIds;
+		aadts = grids.aadts;
+		keys = grids.keys;
+		buckets = grids.buckets;
+		mask = grids.mask;
+		this.alarms = alarms;
+		quadTree = grids.quadTree.withAlarms(alarms);
+		summedAlarms = summed ? AlarmSummedAreaTable.build(size, xs, ys, alarms) : null;
+	}
+
+	/**
+	 * An index without any cell, used when the grids table does not exist yet.
+	 * @return empty index
+	 */
+	public static GridIndex empty() {
+		return new GridIndex(0, new int[0], new int[0], new int[0], new double[0], new int[0]);
+	}
+
+	/**
+	 * Load every row of a grids-shaped table into a new index.
+	 * @param conn database connection
+	 * @param table name of the table holding (x, y, linkId, alarm, AADT) rows
+	 * @return the index
+	 * @throws Sql2oException when the table cannot be read
+	 */
+	public static GridIndex load(Connection conn, String table) throws Sql2oException {
+		int capacity = 1024, size = 0;
+		int[] xs = new int[capacity], ys = new int[capacity], linkIds = new int[capacity], aadts = new int[capacity];
+		double[] alarms = new double[capacity];
+
+		try (Statement statement = conn.getJdbcConnection().createStatement();
+			 ResultSet rs = statement.executeQuery(SQL_FETCH_GRIDS + table)) {
+			while (rs.next()) {
+				if (size == capacity) {
+					capacity *= 2;
+					xs = Arrays.copyOf(xs, capacity);
+					ys = Arrays.copyOf(ys, capacity);
+					linkIds = Arrays.copyOf(linkIds, capacity);
+					alarms = Arrays.copyOf(alarms, capacity);
+					aadts = Arrays.copyOf(aadts, capacity);
+				}
+				xs[size] = rs.getInt(1);
+				ys[size] = rs.getInt(2);
+				linkIds[size] = rs.getInt(3);
+				alarms[size] = rs.getDouble(4);
+				aadts[size] = rs.getInt(5);
+				size++;
+			}
+		} catch (SQLException e) {
+			throw new Sql2oException("Failed to load " + table + " into memory", e);
+		}
+		return new GridIndex(size, xs, ys, linkIds, alarms, aadts);
+	}
+
+	/**
+	 * A new index over the same grids, with other alarm values. Only what depends on the alarms is built: the largest
+	 * alarm of each quadtree node and, if asked for, the summed-area table. Without one, rectangle sums probe every
+	 * grid of the rectangle, which suits small rectangles over short-lived indexes.
+	 * @param alarms alarm of each slot of this index
+	 * @param summed whether to build a summed-area table over the alarms
+	 * @return the index
+	 */
+	GridIndex withAlarms(double[] alarms, boolean summed) {
+		return new GridIndex(this, alarms, summed);
+	}
+
+	/**
+	 * Pack a grid index pair into a single long key.
+	 * @param x grid x index
+	 * @param y grid y index
+	 * @return the packed key
+	 */
+	public static long pack(int x, int y) {
+		return ((long) x << 32) | (y & 0xffffffffL);
+	}
+
+	static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	/**
+	 * Find the slot holding grid(x,y).
+	 * @param x grid x index
+	 * @param y grid y index
+	 * @return the slot, or -1 if the grid is not in the index
+	 */
+	public int find(int x, int y) {
+		long key = pack(x, y);
+		int i = hash(key) & mask;
+		while (buckets[i] != 0) {
+			if (keys[i] == key) return buckets[i] - 1;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Number of grids in the index.
+	 * @return size
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int getX(int slot) { return xs[slot]; }
+	public int getY(int slot) { return ys[slot]; }
+	public int getLinkId(int slot) { return linkIds[slot]; }
+	public double getAlarm(int slot) { return alarms[slot]; }
+	public int getAADT(int slot) { return aadts[slot]; }
+
+	/**
+	 * Collect the red and yellow linkIds within a box of grids, highest alarm first, at most MAX_LINK_IDS of each.
+	 * @param fromGrid grid of the top left coordinate
+	 * @param toGrid grid of the bottom right coordinate
+	 * @return linkIds to avoid
+	 */
+	public AvoidLinkIds getAvoidLinkIds(Grid fromGrid, Grid toGrid) {
+		//The 'from' corner has the smaller latitude, thus the larger y index.
+		return quadTree.topLinkIds(fromGrid.getX(), toGrid.getY(), toGrid.getX(), fromGrid.getY(),
+				RED_ALARM, YELLOW_ALARM, MAX_LINK_IDS);
+	}
+
+	/**
+	 * Sum the alarm values of all grids within an inclusive rectangle of grid indices. Takes constant time
+	 * through the summed-area table, and only falls back to probing every grid of the rectangle without one.
+	 * @param fromX smallest x index
+	 * @param fromY smallest y index
+	 * @param toX largest x index
+	 * @param toY largest y index
+	 * @return sum of alarms, 0 if there is no grid in the rectangle
+	 */
+	public double sumAlarm(int fromX, int fromY, int toX, int toY) {
+		if (summedAlarms != null) {
+			return summedAlarms.sum(fromX, fromY, toX, toY);
+		}
+		if (size == 0) return 0;
+
+		double sum = 0;
+		for (int x = fromX; x <= toX; x++) {
+			for (int y = fromY; y <= toY; y++) {
+				int slot = find(x, y);
+				if (slot >= 0) sum += alarms[slot];
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Sum the alarm values of a square raster of square blocks of grids, as drawn on a heatmap tile. Each block
+	 * takes constant time through the summed-area table; without one, every grid is added to its block instead.
+	 * @param fromX x index of the leftmost grids
+	 * @param fromY y index of the topmost grids
+	 * @param block number of grids along each side of a block
+	 * @param side number of blocks along each side of the raster
+	 * @return sum of alarms of each block, row by row
+	 */
+	public double[] sumAlarms(int fromX, int fromY, int block, int side) {
+		double[] sums = new double[side * side];
+		if (summedAlarms != null) {
+			for (int row = 0, y = fromY; row < side; row++, y += block) {
+				for (int column = 0, x = fromX; column < side; column++, x += block) {
+					sums[row * side + column] = summedAlarms.sum(x, y, x + block - 1, y + block - 1);
+				}
+			}
+			return sums;
+		}
+
+		long span = (long) block * side;
+		for (int slot = 0; slot < size; slot++) {
+			long dx = (long) xs[slot] - fromX, dy = (long) ys[slot] - fromY;
+			if (dx >= 0 && dx < span && dy >= 0 && dy < span) {
+				sums[(int) (dy / block) * side + (int) (dx / block)] += alarms[slot];
+			}
+		}
+		return sums;
+	}
+}
@@ -0,0 +1,200 @@
+package com.oose2016.group4.server;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import org.sql2o.Connection;
+import org.sql2o.Sql2oException;
+
+/**
+ * Mutable, in-memory copy of the 'grids' table that the DatabaseUpdater aggregates crimes into. Grids are kept in
+ * parallel primitive arrays, one slot per grid, and looked up by their packed (x, y) key through an open-addressing
+ * hash table, so finding the grid of a crime takes constant time however many grids there are, and no Grid object
+ * is created per grid. Grids added or changed since the table was loaded are flagged dirty, so that only they need to
+ * be written back.
+ */
+public class GridTable {
+	private static final String SQL_FETCH_GRIDS = "SELECT x, y, linkId, alarm, AADT FROM grids";
+
+	private int size;
+	private int[] xs, ys, linkIds, aadts;
+	private double[] alarms;
+
+	/*
+	Slots added or changed since the table was loaded or last marked clean, in the order they were first touched.
+	 */
+	private boolean[] dirty;
+	private int[] dirtySlots;
+	private int dirtyCount;
+
+	/*
+	Open-addressing hash table from packed (x, y) to slot + 1; 0 marks an empty bucket. Kept at most half full.
+	 */
+	private long[] keys;
+	private int[] buckets;
+	private int mask;
+
+	/**
+	 * Create an empty table.
+	 * @param capacity number of grids to make room for
+	 */
+	public GridTable(int capacity) {
+		capacity = Math.max(capacity, 16);
+		xs = new int[capacity];
+		ys = new int[capacity];
+		linkIds = new int[capacity];
+		aadts = new int[capacity];
+		alarms = new double[capacity];
+		dirty = new boolean[capacity];
+		dirtySlots = new int[16];
+		rehash(Integer.highestOneBit(capacity) << 2);
+	}
+
+	/**
+	 * Load every row of the 'grids' table into a new table.
+	 * @param conn database connection
+	 * @return the table
+	 * @throws Sql2oException when the table cannot be read
+	 */
+	public static GridTable load(Connection conn) throws Sql2oException {
+		GridTable table = new GridTable(1024);
+		try (Statement statement = conn.getJdbcConnection().createStatement();
+			 ResultSet rs = statement.executeQuery(SQL_FETCH_GRIDS)) {
+			while (rs.next()) {
+				table.add(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getDouble(4), rs.getInt(5));
+			}
+		} catch (SQLException e) {
+			throw new Sql2oException("Failed to load grids into memory", e);
+		}
+		table.markClean();
+		return table;
+	}
+
+	/**
+	 * Find the slot holding grid(x,y).
+	 * @param x grid x index
+	 * @param y grid y index
+	 * @return the slot, or -1 if the grid is not in the table
+	 */
+	public int find(int x, int y) {
+		long key = GridIndex.pack(x, y);
+		int i = GridIndex.hash(key) & mask;
+		while (buckets[i] != 0) {
+			if (keys[i] == key) return buckets[i] - 1;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Add a grid that is not in the table yet.
+	 * @param x grid x index
+	 * @param y grid y index
+	 * @param linkId linkId of the grid
+	 * @param alarm alarm of the grid
+	 * @param aadt AADT of the grid
+	 * @return the slot of the grid
+	 * @throws IllegalArgumentException if the grid is already in the table
+	 */
+	public int add(int x, int y, int linkId, double alarm, int aadt) {
+		if (find(x, y) >= 0) throw new IllegalArgumentException("Grid (" + x + ", " + y + ") is already in the table");
+		if (size == xs.length) {
+			int capacity = size * 2;
+			xs = Arrays.copyOf(xs, capacity);
+			ys = Arrays.copyOf(ys, capacity);
+			linkIds = Arrays.copyOf(linkIds, capacity);
+			aadts = Arrays.copyOf(aadts, capacity);
+			alarms = Arrays.copyOf(alarms, capacity);
+			dirty = Arrays.copyOf(dirty, capacity);
+		}
+		if ((size + 1) * 2 > buckets.length) rehash(buckets.length * 2);
+
+		int slot = size++;
+		xs[slot] = x;
+		ys[slot] = y;
+		linkIds[slot] = linkId;
+		alarms[slot] = alarm;
+		aadts[slot] = aadt;
+		insert(slot);
+		markDirty(slot);
+		return slot;
+	}
+
+	private void markDirty(int slot) {
+		if (dirty[slot]) return;
+		dirty[slot] = true;
+		if (dirtyCount == dirtySlots.length) dirtySlots = Arrays.copyOf(dirtySlots, dirtyCount * 2);
+		dirtySlots[dirtyCount++] = slot;
+	}
+
+	/**
+	 * Slots of the grids added or changed since the table was loaded or last marked clean.
+	 * @return the slots, in the order they were first touched
+	 */
+	public int[] getDirtySlots() {
+		return Arrays.copyOf(dirtySlots, dirtyCount);
+	}
+
+	/**
+	 * Forget which grids were changed, once they have been written back.
+	 */
+	public void markClean() {
+		for (int i = 0; i < dirtyCount; i++) {
+			dirty[dirtySlots[i]] = false;
+		}
+		dirtyCount = 0;
+	}
+
+	private void rehash(int capacity) {
+		keys = new long[capacity];
+		buckets = new int[capacity];
+		mask = capacity - 1;
+		for (int slot = 0; slot < size; slot++) {
+			insert(slot);
+		}
+	}
+
+	private void insert(int slot) {
+		long key = GridIndex.pack(xs[slot], ys[slot]);
+		int i = GridIndex.hash(key) & mask;
+		while (buckets[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		buckets[i] = slot + 1;
+	}
+
+	/**
+	 * Number of grids in the table.
+	 * @return size
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int getX(int slot) { return xs[slot]; }
+	public int getY(int slot) { return ys[slot]; }
+	public int getLinkId(int slot) { return linkIds[slot]; }
+	public double getAlarm(int slot) { return alarms[slot]; }
+	public int getAADT(int slot) { return aadts[slot]; }
+
+	public void setLinkId(int slot, int linkId) {
+		if (linkIds[slot] == linkId) return;
+		linkIds[slot] = linkId;
+		markDirty(slot);
+	}
+
+	public void setAlarm(int slot, double alarm) {
+		if (alarms[slot] == alarm) return;
+		alarms[slot] = alarm;
+		markDirty(slot);
+	}
+
+	public void setAADT(int slot, int aadt) {
+		if (aadts[slot] == aadt) return;
+		aadts[slot] = aadt;
+		markDirty(slot);
+	}
+}
@@ -0,0 +1,137 @@
+package com.oose2016.group4.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Renders heatmap tiles of the grid alarms in the slippy map layout: at zoom z, the world is 2^z tiles of
+ * TILE_SIZE pixels wide and high, so a tile covers 2^(GRID_ZOOM - z) grids along each side. Every pixel is colored
+ * by the average alarm of the grids under it, from green to yellow at YELLOW_ALARM and red at RED_ALARM, and left
+ * transparent where there is no alarm. Below zoom 10 a pixel covers a block of grids, summed through the grid
+ * index; above it a grid covers a square of pixels.
+ *
+ * Tiles are written as 8-bit palette PNGs, one byte per pixel compressed at the fastest deflate level, which keeps
+ * a render down to a few milliseconds.
+ */
+public class HeatmapTiles {
+	static final int TILE_SIZE = 256;
+	static final int GRID_ZOOM = 18;
+
+	/*
+	Color levels above the transparent entry 0; level LEVELS is RED_ALARM and above.
+	 */
+	private static final int LEVELS = 64;
+	private static final byte[] PALETTE = new byte[(LEVELS + 1) * 3], ALPHAS = new byte[LEVELS + 1];
+	private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+	static {
+		for (int level = 1; level <= LEVELS; level++) {
+			double t = (level - 1) / (double) (LEVELS - 1);
+			PALETTE[level * 3] = (byte) (t < 0.5 ? 510 * t : 255);
+			PALETTE[level * 3 + 1] = (byte) (t < 0.5 ? 200 + 110 * t : 510 * (1 - t));
+			PALETTE[level * 3 + 2] = 0;
+			ALPHAS[level] = (byte) (96 + 128 * t);
+		}
+	}
+
+	/*
+	Every tile without any alarm looks the same.
+	 */
+	static final byte[] EMPTY_TILE = encode(new byte[TILE_SIZE * (TILE_SIZE + 1)]);
+
+	private HeatmapTiles() {
+	}
+
+	/**
+	 * Render a tile.
+	 * @param index grids and their alarm values
+	 * @param x tile column, from 0 at longitude -180
+	 * @param y tile row, from 0 at the north edge
+	 * @param z zoom level, from 0 to GRID_ZOOM
+	 * @return the PNG
+	 * @throws IllegalArgumentException if the tile does not exist
+	 */
+	public static byte[] render(GridIndex index, int x, int y, int z) {
+		if (z < 0 || z > GRID_ZOOM || x < 0 || y < 0 || x >= 1 << z || y >= 1 << z) {
+			throw new IllegalArgumentException("No tile " + x + "-" + y + "-" + z);
+		}
+		int gridsPerTile = 1 << (GRID_ZOOM - z);
+		int block = Math.max(gridsPerTile / TILE_SIZE, 1);
+		int side = gridsPerTile / block;
+		int scale = TILE_SIZE / side;
+
+		double[] sums = index.sumAlarms(x * gridsPerTile, y * gridsPerTile, block, side);
+		double toLevel = (LEVELS - 1) / (GridIndex.RED_ALARM * block * block);
+		boolean empty = true;
+		byte[] levels = new byte[sums.length];
+		for (int i = 0; i < sums.length; i++) {
+			if (sums[i] <= 0) continue;
+			levels[i] = (byte) (1 + Math.min(LEVELS - 1, (int) (sums[i] * toLevel)));
+			empty = false;
+		}
+		if (empty) return EMPTY_TILE;
+
+		//Scanlines start with filter type 0 (none), followed by a palette index per pixel.
+		int stride = TILE_SIZE + 1;
+		byte[] pixels = new byte[TILE_SIZE * stride];
+		for (int row = 0; row < side; row++) {
+			int start = row * scale * stride;
+			for (int column = 0; column < side; column++) {
+				int from = start + 1 + column * scale;
+				Arrays.fill(pixels, from, from + scale, levels[row * side + column]);
+			}
+			for (int copy = 1; copy < scale; copy++) {
+				System.arraycopy(pixels, start, pixels, start + copy * stride, stride);
+			}
+		}
+		return encode(pixels);
+	}
+
+	private static byte[] encode(byte[] scanlines) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(scanlines);
+		deflater.finish();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(scanlines.length / 8);
+		byte[] buffer = new byte[8192];
+		while (!deflater.finished()) {
+			compressed.write(buffer, 0, deflater.deflate(buffer));
+		}
+		deflater.end();
+
+		ByteArrayOutputStream png = new ByteArrayOutputStream(compressed.size() + 512);
+		try {
+			DataOutputStream out = new DataOutputStream(png);
+			out.write(SIGNATURE);
+			ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+			DataOutputStream headerOut = new DataOutputStream(header);
+			headerOut.writeInt(TILE_SIZE);
+			headerOut.writeInt(TILE_SIZE);
+			//8 bits per pixel, palette color, deflate, adaptive filtering, no interlace.
+			headerOut.write(new byte[] {8, 3, 0, 0, 0});
+			writeChunk(out, "IHDR", header.toByteArray());
+			writeChunk(out, "PLTE", PALETTE);
+			writeChunk(out, "tRNS", ALPHAS);
+			writeChunk(out, "IDAT", compressed.toByteArray());
+			writeChunk(out, "IEND", new byte[0]);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return png.toByteArray();
+	}
+
+	private static void writeChunk(DataOutputStream out, String type, byte[] data) throws IOException {
+		byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data);
+		out.writeInt(data.length);
+		out.write(typeBytes);
+		out.write(data);
+		out.writeInt((int) crc.getValue());
+	}
+}
@@ -0,0 +1,193 @@
+package com.oose2016.group4.server;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import org.sql2o.Connection;
+import org.sql2o.Sql2oException;
+
+/**
+ * Read-only, in-memory snapshot of the 'gridhours' table: the alarm of every grid split by the hour of day of its
+ * crimes, so that linkIds and safety ratings can be asked for a given time of day.
+ *
+ * The alarm of a grid at hour h is taken over the three hours around it, h - 1 to h + 1 (wrapping around
+ * midnight), and scaled by 8, so that it averages to the grid's all-day alarm over the day and the red and yellow
+ * thresholds keep their meaning. Crimes without a known time count towards every hour evenly.
+ *
+ * Every hour gets its own max-alarm quadtree and, while the grids are close enough together, its own summed-area
+ * table, so that a query at a time of day costs the same as one without.
+ */
+public class HourlyAlarmIndex {
+	static final int HOURS = 24;
+
+	/*
+	Sentinel for queries at any time of day.
+	 */
+	public static final int ANY_TIME = -1;
+
+	private static final String SQL_FETCH_GRID_HOURS = "SELECT h.x, h.y, g.linkId, " + columns("h.h%d")
+			+ " FROM gridhours h JOIN grids g ON g.x = h.x AND g.y = h.y";
+
+	private final int size;
+	private final AlarmQuadTree[] quadTrees = new AlarmQuadTree[HOURS];
+
+	/*
+	Per-hour prefix sums, or null when the grids are spread too far apart to rasterize 24 times.
+	 */
+	private final AlarmSummedAreaTable[] summedAlarms;
+
+	/*
+	Kept for the fallback when there are no summed-area tables: alarms[hour][slot].
+	 */
+	private final int[] xs, ys;
+	private final double[][] alarms;
+
+	private HourlyAlarmIndex(int size, int[] xs, int[] ys, int[] linkIds, double[][] hourly) {
+		this.size = size;
+		this.xs = xs;
+		this.ys = ys;
+
+		alarms = new double[HOURS][size];
+		for (int hour = 0; hour < HOURS; hour++) {
+			double[] before = hourly[(hour + HOURS - 1) % HOURS], at = hourly[hour], after = hourly[(hour + 1) % HOURS];
+			for (int slot = 0; slot < size; slot++) {
+				alarms[hour][slot] = 8 * (before[slot] + at[slot] + after[slot]);
+			}
+			quadTrees[hour] = AlarmQuadTree.build(size, xs, ys, linkIds, alarms[hour]);
+		}
+
+		AlarmSummedAreaTable[] tables = null;
+		if (size > 0 && boundingCells(size, xs, ys) * HOURS <= AlarmSummedAreaTable.MAX_CELLS) {
+			tables = new AlarmSummedAreaTable[HOURS];
+			for (int hour = 0; hour < HOURS; hour++) {
+				tables[hour] = AlarmSummedAreaTable.build(size, xs, ys, alarms[hour]);
+			}
+		}
+		summedAlarms = tables;
+	}
+
+	/**
+	 * An index without any grid, used when the gridhours table does not exist yet.
+	 * @return empty index
+	 */
+	public static HourlyAlarmIndex empty() {
+		return new HourlyAlarmIndex(0, new int[0], new int[0], new int[0], new double[HOURS][0]);
+	}
+
+	/**
+	 * Load the 'gridhours' table, with the linkIds of the grids, into a new index.
+	 * @param conn database connection
+	 * @return the index
+	 * @throws Sql2oException when the tables cannot be read
+	 */
+	public static HourlyAlarmIndex load(Connection conn) throws Sql2oException {
+		int capacity = 1024, size = 0;
+		int[] xs = new int[capacity], ys = new int[capacity], linkIds = new int[capacity];
+		double[][] hourly = new double[HOURS][capacity];
+
+		try (Statement statement = conn.getJdbcConnection().createStatement();
+			 ResultSet rs = statement.executeQuery(SQL_FETCH_GRID_HOURS)) {
+			while (rs.next()) {
+				if (size == capacity) {
+					capacity *= 2;
+					xs = Arrays.copyOf(xs, capacity);
+					ys = Arrays.copyOf(ys, capacity);
+					linkIds = Arrays.copyOf(linkIds, capacity);
+					for (int hour = 0; hour < HOURS; hour++) {
+						hourly[hour] = Arrays.copyOf(hourly[hour], capacity);
+					}
+				}
+				xs[size] = rs.getInt(1);
+				ys[size] = rs.getInt(2);
+				linkIds[size] = rs.getInt(3);
+				for (int hour = 0; hour < HOURS; hour++) {
+					hourly[hour][size] = rs.getDouble(4 + hour);
+				}
+				size++;
+			}
+		} catch (SQLException e) {
+			throw new Sql2oException("Failed to load gridhours into memory", e);
+		}
+		return new HourlyAlarmIndex(size, xs, ys, linkIds, hourly);
+	}
+
+	/**
+	 * Hour of day of a crime date, which counts seconds of local time since the epoch.
+	 * @param date the date
+	 * @return the hour, or ANY_TIME if the date is at midnight exactly, which is all we know of crimes without a time
+	 */
+	public static int hourOfDay(int date) {
+		int seconds = Math.floorMod(date, 86400);
+		return seconds == 0 ? ANY_TIME : seconds / 3600;
+	}
+
+	/**
+	 * Join one column name per hour, in hour order.
+	 * @param format name of the column, with %d for the hour
+	 * @return the comma separated names
+	 */
+	static String columns(String format) {
+		StringBuilder columns = new StringBuilder();
+		for (int hour = 0; hour < HOURS; hour++) {
+			if (hour > 0) columns.append(", ");
+			columns.append(String.format(format, hour, hour));
+		}
+		return columns.toString();
+	}
+
+	private static long boundingCells(int size, int[] xs, int[] ys) {
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+		for (int i = 0; i < size; i++) {
+			minX = Math.min(minX, xs[i]);
+			minY = Math.min(minY, ys[i]);
+			maxX = Math.max(maxX, xs[i]);
+			maxY = Math.max(maxY, ys[i]);
+		}
+		return ((long) maxX - minX + 2) * ((long) maxY - minY + 2);
+	}
+
+	/**
+	 * Number of grids in the index.
+	 * @return size
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Collect the red and yellow linkIds within a box of grids by their alarm at an hour of day, highest alarm first,
+	 * at most MAX_LINK_IDS of each.
+	 * @param hour hour of day, from 0 to 23
+	 * @param fromGrid grid of the top left coordinate
+	 * @param toGrid grid of the bottom right coordinate
+	 * @return linkIds to avoid
+	 */
+	public AvoidLinkIds getAvoidLinkIds(int hour, Grid fromGrid, Grid toGrid) {
+		//The 'from' corner has the smaller latitude, thus the larger y index.
+		return quadTrees[hour].topLinkIds(fromGrid.getX(), toGrid.getY(), toGrid.getX(), fromGrid.getY(),
+				GridIndex.RED_ALARM, GridIndex.YELLOW_ALARM, GridIndex.MAX_LINK_IDS);
+	}
+
+	/**
+	 * Sum the alarm values at an hour of day of all grids within an inclusive rectangle of grid indices.
+	 * @param hour hour of day, from 0 to 23
+	 * @param fromX smallest x index
+	 * @param fromY smallest y index
+	 * @param toX largest x index
+	 * @param toY largest y index
+	 * @return sum of alarms, 0 if there is no grid in the rectangle
+	 */
+	public double sumAlarm(int hour, int fromX, int fromY, int toX, int toY) {
+		if (summedAlarms != null) {
+			return summedAlarms[hour].sum(fromX, fromY, toX, toY);
+		}
+		double sum = 0;
+		double[] atHour = alarms[hour];
+		for (int slot = 0; slot < size; slot++) {
+			if (xs[slot] >= fromX && xs[slot] <= toX && ys[slot] >= fromY && ys[slot] <= toY) sum += atHour[slot];
+		}
+		return sum;
+	}
+}
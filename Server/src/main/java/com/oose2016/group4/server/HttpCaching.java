@@ -0,0 +1,71 @@
+package com.oose2016.group4.server;
+
+/**
+ * Cache validators and compression for the responses of SurvivalController.
+ * A response depends on the request URL, the data version, the format the client asked for and whether it accepts
+ * gzip; the ETag covers the last three, so it is a strong validator. Bodies are gzipped once they reach
+ * GZIP_THRESHOLD bytes, below which the gzip header and checksum outweigh the savings.
+ */
+public class HttpCaching {
+	static final int GZIP_THRESHOLD = 1024;
+
+	private HttpCaching() {
+	}
+
+	/**
+	 * Build the ETag of a response.
+	 * @param version data version the response is built from
+	 * @param binary whether the response is in the binary format
+	 * @param gzip whether the client accepts gzip
+	 * @return the quoted entity tag
+	 */
+	public static String etag(DataVersion version, boolean binary, boolean gzip) {
+		return "\"" + version.tag() + (binary ? "-bin" : "-json") + (gzip ? "-gz" : "") + "\"";
+	}
+
+	/**
+	 * Check an If-None-Match header against an ETag, with the weak comparison that RFC 7232 prescribes for it.
+	 * @param ifNoneMatch value of the If-None-Match header, may be null
+	 * @param etag quoted entity tag of the current response
+	 * @return true if the client already holds the current response
+	 */
+	public static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) return false;
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.equals("*")) return true;
+			if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+			if (candidate.equals(etag)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether an Accept-Encoding header allows gzip, either by name or through '*'. A quality of 0 rules it
+	 * out, and an entry naming gzip takes precedence over '*'.
+	 * @param acceptEncoding value of the Accept-Encoding header, may be null
+	 * @return true if the response may be gzipped
+	 */
+	public static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null) return false;
+		double gzip = -1, any = -1;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim();
+			double quality = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String parameter = parts[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						quality = Double.parseDouble(parameter.substring(2));
+					} catch (NumberFormatException e) {
+						quality = 0;
+					}
+				}
+			}
+			if (name.equalsIgnoreCase("gzip")) gzip = quality;
+			else if (name.equals("*")) any = quality;
+		}
+		return gzip >= 0 ? gzip > 0 : any > 0;
+	}
+}
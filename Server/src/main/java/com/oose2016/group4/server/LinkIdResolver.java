@@ -0,0 +1,209 @@
+package com.oose2016.group4.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.sql2o.Connection;
+import org.sql2o.Sql2oException;
+
+/**
+ * Resolves the linkIds of grids through MapQuest's findlinkid, for the crime updates.
+ *
+ * The linkId found for a grid is kept in the 'linkids' table, so that no grid is ever looked up twice, even across
+ * updates that failed before writing their grids back. Lookups run concurrently on a few threads while the caller
+ * goes on, at most a set number of requests per second, and all the lookups of a grid share one request.
+ *
+ * resolve, await and persist may be called from any thread, such as the stripes of a CrimePipeline.
+ */
+public class LinkIdResolver implements Closeable {
+	static final double DEFAULT_REQUESTS_PER_SECOND = 5;
+	static final int DEFAULT_CONCURRENCY = 4;
+
+	private static final String SQL_FETCH_LINK_IDS = "SELECT x, y, linkId FROM linkids";
+	private static final String SQL_UPSERT_LINK_ID = "INSERT OR REPLACE INTO linkids (x, y, linkId) VALUES (?, ?, ?)";
+
+	private final String endpoint;
+	private final RateLimiter rateLimiter;
+	private final ExecutorService executor;
+
+	/*
+	linkIds read from 'linkids', and the lookups of this resolver by packed (x, y), done or still running.
+	 */
+	private final Map<Long, Integer> cached;
+	private final Map<Long, CompletableFuture<Integer>> lookups = new HashMap<>();
+
+	/*
+	Packed (x, y) and linkId of the lookups done since the last persist.
+	 */
+	private final ConcurrentLinkedQueue<long[]> resolved = new ConcurrentLinkedQueue<>();
+
+	private LinkIdResolver(String endpoint, double requestsPerSecond, int concurrency, Map<Long, Integer> cached) {
+		if (requestsPerSecond <= 0) throw new IllegalArgumentException("The request rate must be positive");
+		if (concurrency <= 0) throw new IllegalArgumentException("The concurrency must be positive");
+		this.endpoint = endpoint;
+		this.rateLimiter = new RateLimiter(requestsPerSecond);
+		this.cached = cached;
+
+		AtomicInteger threads = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(concurrency, runnable -> {
+			Thread thread = new Thread(runnable, "linkid-resolver-" + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Create a resolver that knows the linkIds in the 'linkids' table.
+	 * @param conn database connection
+	 * @param endpoint findlinkid endpoint, MapQuestHandler.URL_FIND_LINK_ID or a stand-in for it
+	 * @param requestsPerSecond most requests to send per second
+	 * @param concurrency most requests to wait on at once
+	 * @return the resolver, to be closed by the caller
+	 * @throws Sql2oException when the table cannot be read
+	 */
+	public static LinkIdResolver load(Connection conn, String endpoint, double requestsPerSecond, int concurrency)
+			throws Sql2oException {
+		Map<Long, Integer> cached = new HashMap<>();
+		try (Statement statement = conn.getJdbcConnection().createStatement();
+			 ResultSet rs = statement.executeQuery(SQL_FETCH_LINK_IDS)) {
+			while (rs.next()) {
+				cached.put(GridIndex.pack(rs.getInt(1), rs.getInt(2)), rs.getInt(3));
+			}
+		} catch (SQLException e) {
+			throw new Sql2oException("Failed to load linkids into memory", e);
+		}
+		return new LinkIdResolver(endpoint, requestsPerSecond, concurrency, cached);
+	}
+
+	/**
+	 * Resolve the linkId of a grid. A grid already looked up, or being looked up, is not requested again.
+	 * @param x grid x index
+	 * @param y grid y index
+	 * @param lat latitude of a coordinate within the grid, to request the linkId for
+	 * @param lng longitude of that coordinate
+	 * @return the linkId, once resolved
+	 */
+	public synchronized CompletableFuture<Integer> resolve(int x, int y, double lat, double lng) {
+		long key = GridIndex.pack(x, y);
+		CompletableFuture<Integer> lookup = lookups.get(key);
+		if (lookup != null) return lookup;
+
+		Integer linkId = cached.get(key);
+		if (linkId != null) {
+			lookup = CompletableFuture.completedFuture(linkId);
+		} else {
+			lookup = new CompletableFuture<>();
+			CompletableFuture<Integer> pending = lookup;
+			executor.execute(() -> {
+				try {
+					rateLimiter.acquire();
+					int requested = MapQuestHandler.requestLinkId(endpoint, lat, lng);
+					resolved.add(new long[] {key, requested});
+					pending.complete(requested);
+				} catch (IOException | RuntimeException e) {
+					pending.completeExceptionally(e);
+				} catch (InterruptedException e) {
+					pending.completeExceptionally(e);
+					Thread.currentThread().interrupt();
+				}
+			});
+		}
+		lookups.put(key, lookup);
+		return lookup;
+	}
+
+	/**
+	 * Wait for every lookup to finish.
+	 * @throws IOException when a lookup failed
+	 */
+	public void await() throws IOException {
+		List<CompletableFuture<Integer>> running;
+		synchronized (this) {
+			running = new ArrayList<>(lookups.values());
+		}
+		for (CompletableFuture<Integer> lookup : running) {
+			try {
+				lookup.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while resolving linkIds", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+				throw new IOException("Failed to resolve a linkId", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Write the linkIds resolved since the last call into the 'linkids' table.
+	 * @param conn database connection
+	 * @return number of linkIds written
+	 * @throws Sql2oException when the write fails
+	 */
+	public int persist(Connection conn) throws Sql2oException {
+		int count = 0;
+		try (PreparedStatement statement = conn.getJdbcConnection().prepareStatement(SQL_UPSERT_LINK_ID)) {
+			for (long[] entry; (entry = resolved.poll()) != null; count++) {
+				statement.setInt(1, (int) (entry[0] >> 32));
+				statement.setInt(2, (int) entry[0]);
+				statement.setInt(3, (int) entry[1]);
+				statement.addBatch();
+			}
+			if (count > 0) statement.executeBatch();
+		} catch (SQLException e) {
+			throw new Sql2oException("Failed to write linkids", e);
+		}
+		return count;
+	}
+
+	/**
+	 * Stop the lookups still waiting to be sent.
+	 */
+	@Override
+	public void close() {
+		executor.shutdownNow();
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Spaces requests evenly, a fixed interval apart, whichever thread sends them.
+	 */
+	private static class RateLimiter {
+		private final long interval;
+		private long next = System.nanoTime();
+
+		RateLimiter(double requestsPerSecond) {
+			interval = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+		}
+
+		void acquire() throws InterruptedException {
+			long wait;
+			synchronized (this) {
+				long now = System.nanoTime();
+				if (next < now) next = now;
+				wait = next - now;
+				next += interval;
+			}
+			if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package com.oose2016.group4.server;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import org.sql2o.Connection;
+import org.sql2o.Sql2oException;
+
+/**
+ * Read-only, in-memory snapshot of the 'linkrisks' table: the summed alarm and the bounding box of the grids of
+ * every link. Links are kept sorted by descending summed alarm, so the links to avoid within a box are ranked by
+ * walking the list from the top until both bands are full. A link spread over many medium-risk grids thus ranks
+ * above a link that only touches a single hot grid.
+ */
+public class LinkRiskIndex {
+	private static final String SQL_FETCH_LINK_RISKS = "SELECT linkId, alarmSum, minX, minY, maxX, maxY "
+			+ "FROM linkrisks ORDER BY alarmSum DESC";
+
+	private final int size;
+	private final int[] linkIds, minX, minY, maxX, maxY;
+	private final double[] alarmSums;
+
+	private LinkRiskIndex(int size, int[] linkIds, double[] alarmSums,
+						  int[] minX, int[] minY, int[] maxX, int[] maxY) {
+		this.size = size;
+		this.linkIds = linkIds;
+		this.alarmSums = alarmSums;
+		this.minX = minX;
+		this.minY = minY;
+		this.maxX = maxX;
+		this.maxY = maxY;
+	}
+
+	/**
+	 * An index without any link, used when the linkrisks table does not exist or has not been filled yet.
+	 * @return empty index
+	 */
+	public static LinkRiskIndex empty() {
+		return new LinkRiskIndex(0, new int[0], new double[0], new int[0], new int[0], new int[0], new int[0]);
+	}
+
+	/**
+	 * Load the 'linkrisks' table into a new index.
+	 * @param conn database connection
+	 * @return the index
+	 * @throws Sql2oException when the table cannot be read
+	 */
+	public static LinkRiskIndex load(Connection conn) throws Sql2oException {
+		int capacity = 1024, size = 0;
+		int[] linkIds = new int[capacity];
+		int[] minX = new int[capacity], minY = new int[capacity], maxX = new int[capacity], maxY = new int[capacity];
+		double[] alarmSums = new double[capacity];
+
+		try (Statement statement = conn.getJdbcConnection().createStatement();
+			 ResultSet rs = statement.executeQuery(SQL_FETCH_LINK_RISKS)) {
+			while (rs.next()) {
+				if (size == capacity) {
+					capacity *= 2;
+					linkIds = Arrays.copyOf(linkIds, capacity);
+					alarmSums = Arrays.copyOf(alarmSums, capacity);
+					minX = Arrays.copyOf(minX, capacity);
+					minY = Arrays.copyOf(minY, capacity);
+					maxX = Arrays.copyOf(maxX, capacity);
+					maxY = Arrays.copyOf(maxY, capacity);
+				}
+				linkIds[size] = rs.getInt(1);
+				alarmSums[size] = rs.getDouble(2);
+				minX[size] = rs.getInt(3);
+				minY[size] = rs.getInt(4);
+				maxX[size] = rs.getInt(5);
+				maxY[size] = rs.getInt(6);
+				size++;
+			}
+		} catch (SQLException e) {
+			throw new Sql2oException("Failed to load linkrisks into memory", e);
+		}
+		return new LinkRiskIndex(size, linkIds, alarmSums, minX, minY, maxX, maxY);
+	}
+
+	/**
+	 * Number of links in the index.
+	 * @return size
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Rank the links whose grids overlap a box by their summed alarm. Links summing above RED_ALARM are red, and
+	 * links summing above YELLOW_ALARM are yellow, at most MAX_LINK_IDS of each. A link counts as overlapping when
+	 * the bounding box of its grids does, and it is ranked by the alarm of all of its grids.
+	 * @param fromGrid grid of the top left coordinate
+	 * @param toGrid grid of the bottom right coordinate
+	 * @return linkIds to avoid
+	 */
+	public AvoidLinkIds getAvoidLinkIds(Grid fromGrid, Grid toGrid) {
+		//The 'from' corner has the smaller latitude, thus the larger y index.
+		int fromX = fromGrid.getX(), toX = toGrid.getX();
+		int fromY = toGrid.getY(), toY = fromGrid.getY();
+
+		int[] red = new int[GridIndex.MAX_LINK_IDS], yellow = new int[GridIndex.MAX_LINK_IDS];
+		int redCount = 0, yellowCount = 0;
+
+		for (int i = 0; i < size; i++) {
+			double alarm = alarmSums[i];
+			if (alarm <= GridIndex.YELLOW_ALARM) break;
+			if (alarm <= GridIndex.RED_ALARM && yellowCount == GridIndex.MAX_LINK_IDS) break;
+			if (minX[i] > toX || maxX[i] < fromX || minY[i] > toY || maxY[i] < fromY) continue;
+
+			if (alarm > GridIndex.RED_ALARM) {
+				if (redCount < GridIndex.MAX_LINK_IDS) red[redCount++] = linkIds[i];
+			} else {
+				yellow[yellowCount++] = linkIds[i];
+			}
+			if (redCount == GridIndex.MAX_LINK_IDS && yellowCount == GridIndex.MAX_LINK_IDS) break;
+		}
+		return new AvoidLinkIds(Arrays.copyOf(red, redCount), Arrays.copyOf(yellow, yellowCount));
+	}
+}
@@ -1,10 +1,6 @@
 package com.oose2016.group4.server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.Map;
 
 import com.google.gson.Gson;
@@ -17,7 +13,7 @@ public class MapQuestHandler extends RequestHandler {
 	//The developer key needed to use MapQuest functionality
 	private static String MAPQUEST_KEY = "afbtgu28aAJW4kgGbc8yarMCZ3LdWWbh";
 
-	private static String mapquestEndpoint = "http://www.mapquestapi.com/directions/v2/findlinkid";
+	static final String URL_FIND_LINK_ID = "http://www.mapquestapi.com/directions/v2/findlinkid";
 	
 	/**
 	 * GETs the linkId associated with a particular coordinate.
@@ -27,8 +23,19 @@ public class MapQuestHandler extends RequestHandler {
 	 * @throws IOException if GET request doesn't work
 	 */
 	protected static int requestLinkId(double lat, double lng) throws IOException {
-		System.out.println("hi");
-		String url = mapquestEndpoint + "?key=" + MAPQUEST_KEY + "&lat=" + lat + "&lng=" + lng;
+		return requestLinkId(URL_FIND_LINK_ID, lat, lng);
+	}
+
+	/**
+	 * GETs the linkId associated with a particular coordinate from a findlinkid endpoint.
+	 * @param endpoint URL_FIND_LINK_ID or a stand-in for it
+	 * @param lat latitude
+	 * @param lng longitude
+	 * @return the linkId of that crime
+	 * @throws IOException if GET request doesn't work
+	 */
+	protected static int requestLinkId(String endpoint, double lat, double lng) throws IOException {
+		String url = endpoint + "?key=" + MAPQUEST_KEY + "&lat=" + lat + "&lng=" + lng;
 		String response = makeGetRequest(url);
 		Map<String, Object> resp = new Gson().fromJson(response, Map.class);
 		double linkiddble = (double) resp.get("linkId");
@@ -0,0 +1,206 @@
+package com.oose2016.group4.server;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.sql2o.Connection;
+import org.sql2o.Sql2oException;
+
+/**
+ * Read-only, in-memory snapshot of the 'gridmonths' table: the alarm of every grid split by the calendar month of
+ * its crimes, so that linkIds and safety ratings can be asked for any window of dates.
+ *
+ * The alarm of a grid over a window is the sum of its partitions for the months the window covers whole, plus the
+ * alarm of the crimes in the partial months at either edge, which are read from the 'crimes' table by date. Only
+ * those edge days cost a query; a window of whole months never touches the database. The alarms of a window are laid
+ * over the grids of the grid index the snapshot was loaded with, sharing its hash table and quadtree nodes, and the
+ * resulting index is kept for the next queries over the same window until the snapshot is replaced. It has no
+ * summed-area table, whose raster would cost far more than the alarms themselves to build for every window.
+ */
+public class MonthlyAlarmIndex {
+	/*
+	Number of windows whose grid index is kept around.
+	 */
+	static final int MAX_WINDOWS = 8;
+
+	private static final String SQL_FETCH_GRID_MONTHS = "SELECT x, y, month, alarm FROM gridmonths ORDER BY month";
+	private static final String SQL_FETCH_WINDOW_CRIMES = "SELECT latitude, longitude, type FROM crimes "
+			+ "WHERE date >= ? AND date <= ?";
+
+	private final GridIndex grids;
+
+	/*
+	Distinct months in ascending order; the partitions of months[i] are slots[monthStart[i]] to
+	slots[monthStart[i + 1] - 1] of the grid index, with their alarms.
+	 */
+	private final int[] months, monthStart, slots;
+	private final double[] alarms;
+
+	private final Map<DateWindow, GridIndex> windows = new LinkedHashMap<DateWindow, GridIndex>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<DateWindow, GridIndex> eldest) {
+			return size() > MAX_WINDOWS;
+		}
+	};
+
+	private MonthlyAlarmIndex(GridIndex grids, int[] months, int[] monthStart, int[] slots, double[] alarms) {
+		this.grids = grids;
+		this.months = months;
+		this.monthStart = monthStart;
+		this.slots = slots;
+		this.alarms = alarms;
+	}
+
+	/**
+	 * An index without any partition, used when the gridmonths table does not exist yet.
+	 * @param grids the grids the alarms of a window are laid over
+	 * @return empty index
+	 */
+	public static MonthlyAlarmIndex empty(GridIndex grids) {
+		return new MonthlyAlarmIndex(grids, new int[0], new int[] {0}, new int[0], new double[0]);
+	}
+
+	/**
+	 * Load the 'gridmonths' table into a new index. Partitions of grids that are not in the grid index are dropped.
+	 * @param conn database connection
+	 * @param grids the grids the alarms of a window are laid over
+	 * @return the index
+	 * @throws Sql2oException when the table cannot be read
+	 */
+	public static MonthlyAlarmIndex load(Connection conn, GridIndex grids) throws Sql2oException {
+		int capacity = 1024, size = 0, monthCount = 0;
+		int[] slots = new int[capacity];
+		double[] alarms = new double[capacity];
+		int[] months = new int[16], monthStart = new int[17];
+
+		try (Statement statement = conn.getJdbcConnection().createStatement();
+			 ResultSet rs = statement.executeQuery(SQL_FETCH_GRID_MONTHS)) {
+			while (rs.next()) {
+				int slot = grids.find(rs.getInt(1), rs.getInt(2));
+				if (slot < 0) continue;
+				int month = rs.getInt(3);
+				if (monthCount == 0 || months[monthCount - 1] != month) {
+					if (monthCount == months.length) {
+						months = Arrays.copyOf(months, monthCount * 2);
+						monthStart = Arrays.copyOf(monthStart, monthCount * 2 + 1);
+					}
+					months[monthCount] = month;
+					monthStart[monthCount++] = size;
+				}
+				if (size == capacity) {
+					capacity *= 2;
+					slots = Arrays.copyOf(slots, capacity);
+					alarms = Arrays.copyOf(alarms, capacity);
+				}
+				slots[size] = slot;
+				alarms[size] = rs.getDouble(4);
+				size++;
+			}
+		} catch (SQLException e) {
+			throw new Sql2oException("Failed to load gridmonths into memory", e);
+		}
+		monthStart[monthCount] = size;
+		return new MonthlyAlarmIndex(grids, Arrays.copyOf(months, monthCount),
+				Arrays.copyOf(monthStart, monthCount + 1), slots, alarms);
+	}
+
+	/**
+	 * Month of a crime date, which counts seconds of local time since the epoch.
+	 * @param date the date
+	 * @return months since January 1970
+	 */
+	public static int monthOf(int date) {
+		LocalDate day = LocalDate.ofEpochDay(Math.floorDiv(date, 86400));
+		return (day.getYear() - 1970) * 12 + day.getMonthValue() - 1;
+	}
+
+	/**
+	 * First date of a month.
+	 * @param month months since January 1970
+	 * @return seconds since the epoch at midnight of the first day of the month
+	 */
+	static long startOf(int month) {
+		return LocalDate.of(1970 + Math.floorDiv(month, 12), Math.floorMod(month, 12) + 1, 1)
+				.atStartOfDay().toEpochSecond(ZoneOffset.UTC);
+	}
+
+	/**
+	 * Number of months with at least one partition.
+	 * @return number of months
+	 */
+	public int months() {
+		return months.length;
+	}
+
+	/**
+	 * The grids with their alarm summed over a window of dates, from the monthly partitions the window covers whole
+	 * and the crimes of the partial months at its edges.
+	 * @param window the window
+	 * @param conn database connection, only used when the window starts or ends within a month
+	 * @return index of the grids with their alarm over the window
+	 * @throws Sql2oException when the edge crimes cannot be read
+	 */
+	public GridIndex window(DateWindow window, Connection conn) throws Sql2oException {
+		synchronized (windows) {
+			GridIndex index = windows.get(window);
+			if (index != null) return index;
+		}
+
+		double[] sums = new double[grids.size()];
+		long from = window.getFromDate(), to = window.getToDate();
+		int fromMonth = monthOf(window.getFromDate()), toMonth = monthOf(window.getToDate());
+		//Months covered whole by the window.
+		int firstMonth = startOf(fromMonth) == from ? fromMonth : fromMonth + 1;
+		int lastMonth = startOf(toMonth + 1) - 1 == to ? toMonth : toMonth - 1;
+
+		if (firstMonth > lastMonth) {
+			addCrimes(sums, conn, from, to);
+		} else {
+			addMonths(sums, firstMonth, lastMonth);
+			if (from < startOf(firstMonth)) addCrimes(sums, conn, from, startOf(firstMonth) - 1);
+			if (to >= startOf(lastMonth + 1)) addCrimes(sums, conn, startOf(lastMonth + 1), to);
+		}
+
+		//Built outside of the lock, so that the windows already kept are served meanwhile.
+		GridIndex index = grids.withAlarms(sums, false);
+		synchronized (windows) {
+			windows.put(window, index);
+		}
+		return index;
+	}
+
+	private void addMonths(double[] sums, int firstMonth, int lastMonth) {
+		int i = Arrays.binarySearch(months, firstMonth);
+		if (i < 0) i = -i - 1;
+		for (; i < months.length && months[i] <= lastMonth; i++) {
+			for (int p = monthStart[i]; p < monthStart[i + 1]; p++) {
+				sums[slots[p]] += alarms[p];
+			}
+		}
+	}
+
+	private void addCrimes(double[] sums, Connection conn, long from, long to) throws Sql2oException {
+		try (PreparedStatement statement = conn.getJdbcConnection().prepareStatement(SQL_FETCH_WINDOW_CRIMES)) {
+			statement.setLong(1, from);
+			statement.setLong(2, to);
+			try (ResultSet rs = statement.executeQuery()) {
+				while (rs.next()) {
+					int slot = grids.find((int) Grid.projectX(rs.getDouble(2)), (int) Grid.projectY(rs.getDouble(1)));
+					if (slot < 0) continue;
+					sums[slot] += DatabaseUpdater.getCrimeAlarm(rs.getString(3), grids.getAADT(slot));
+				}
+			}
+		} catch (SQLException e) {
+			throw new Sql2oException("Failed to read the crimes at the edges of the date window", e);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package com.oose2016.group4.server;
+
+import java.util.Arrays;
+
+/**
+ * Path decoded from the encoded polyline format used by Google and MapQuest: coordinates at a precision of 1e-5
+ * degrees, each stored as the zigzag delta from the previous one in chunks of 5 bits offset into printable ASCII.
+ */
+public class Polyline {
+	private static final double PRECISION = 1e5;
+
+	private final int size;
+	private final double[] latitudes, longitudes;
+
+	private Polyline(int size, double[] latitudes, double[] longitudes) {
+		this.size = size;
+		this.latitudes = latitudes;
+		this.longitudes = longitudes;
+	}
+
+	/**
+	 * Decode an encoded polyline.
+	 * @param encoded the encoded polyline
+	 * @return the path
+	 * @throws IllegalArgumentException if the string is not a valid polyline
+	 */
+	public static Polyline decode(String encoded) {
+		int capacity = Math.max(encoded.length() / 4, 2), size = 0;
+		double[] latitudes = new double[capacity], longitudes = new double[capacity];
+		int[] position = {0};
+		long lat = 0, lng = 0;
+		while (position[0] < encoded.length()) {
+			lat += readValue(encoded, position);
+			lng += readValue(encoded, position);
+			if (!Coordinate.isValid(lat / PRECISION, lng / PRECISION)) {
+				throw new IllegalArgumentException("Polyline leaves the map at point " + size);
+			}
+			if (size == capacity) {
+				capacity *= 2;
+				latitudes = Arrays.copyOf(latitudes, capacity);
+				longitudes = Arrays.copyOf(longitudes, capacity);
+			}
+			latitudes[size] = lat / PRECISION;
+			longitudes[size] = lng / PRECISION;
+			size++;
+		}
+		return new Polyline(size, latitudes, longitudes);
+	}
+
+	/**
+	 * Encode a path as a polyline.
+	 * @param latitudes latitude of each point
+	 * @param longitudes longitude of each point, in the same order
+	 * @return the encoded polyline
+	 */
+	public static String encode(double[] latitudes, double[] longitudes) {
+		StringBuilder encoded = new StringBuilder();
+		long lat = 0, lng = 0;
+		for (int i = 0; i < latitudes.length; i++) {
+			long nextLat = Math.round(latitudes[i] * PRECISION), nextLng = Math.round(longitudes[i] * PRECISION);
+			writeValue(encoded, nextLat - lat);
+			writeValue(encoded, nextLng - lng);
+			lat = nextLat;
+			lng = nextLng;
+		}
+		return encoded.toString();
+	}
+
+	private static void writeValue(StringBuilder encoded, long value) {
+		value = (value << 1) ^ (value >> 63);
+		while (value >= 0x20) {
+			encoded.append((char) ((0x20 | (value & 0x1f)) + 63));
+			value >>>= 5;
+		}
+		encoded.append((char) (value + 63));
+	}
+
+	private static long readValue(String encoded, int[] position) {
+		long result = 0;
+		for (int shift = 0; ; shift += 5) {
+			if (position[0] == encoded.length() || shift > 30) {
+				throw new IllegalArgumentException("Truncated polyline");
+			}
+			int chunk = encoded.charAt(position[0]++) - 63;
+			if (chunk < 0 || chunk > 63) throw new IllegalArgumentException("Not a polyline character");
+			result |= (long) (chunk & 0x1f) << shift;
+			if (chunk < 0x20) break;
+		}
+		return (result >>> 1) ^ -(result & 1);
+	}
+
+	/**
+	 * Number of points of the path.
+	 * @return size
+	 */
+	public int size() {
+		return size;
+	}
+
+	public double getLatitude(int i) { return latitudes[i]; }
+	public double getLongitude(int i) { return longitudes[i]; }
+}
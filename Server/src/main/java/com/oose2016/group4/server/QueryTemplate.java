@@ -0,0 +1,80 @@
+package com.oose2016.group4.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * The queries SurvivalService runs against a table named in the request. The table name is the only part of the
+ * SQL text that varies: it is checked against the tables of the database before it is spliced in, and every value
+ * is bound as a positional parameter. The text of a query is thus fixed per table, which lets the statement cache
+ * of the connection pool hand back the same compiled statement on every request.
+ */
+enum QueryTemplate {
+	RED_LINK_IDS("SELECT DISTINCT linkId FROM %s WHERE x >= ? AND x <= ? AND y <= ? AND y >= ? "
+			+ "AND alarm > 2000 ORDER BY alarm DESC LIMIT 20"),
+	YELLOW_LINK_IDS("SELECT DISTINCT linkId FROM %s WHERE x >= ? AND x <= ? AND y <= ? AND y >= ? "
+			+ "AND alarm <= 2000 AND alarm > 1000 ORDER BY alarm DESC LIMIT 20"),
+	CRIMES_PAGE("SELECT rowid, date, address, latitude, longitude, type, linkId FROM %s "
+			+ "WHERE latitude >= ? AND latitude <= ? "
+			+ "AND date >= ? AND longitude >= ? AND longitude <= ? AND date <= ? "
+			+ "AND (date > ? OR (date = ? AND rowid > ?)) ORDER BY date, rowid LIMIT ?"),
+	ALARM_SUM("SELECT SUM(alarm) FROM %s WHERE x >= ? AND x <= ? AND y >= ? AND y <= ?");
+
+	private static final Pattern TABLE_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+	private static final String SQL_TABLE_EXISTS = "SELECT 1 FROM sqlite_master WHERE type='table' AND name = ?";
+
+	/*
+	Tables that passed the check once. Only names of tables that exist end up here, so the set stays small.
+	 */
+	private static final Set<String> allowedTables = ConcurrentHashMap.newKeySet();
+
+	private final String format;
+	private final ConcurrentMap<String, String> sqlByTable = new ConcurrentHashMap<>();
+
+	QueryTemplate(String format) {
+		this.format = format;
+	}
+
+	/**
+	 * Prepare the query against a table.
+	 * @param conn database connection
+	 * @param table name of the table
+	 * @return the statement, with all parameters still to be bound
+	 * @throws SQLException if the table is not a table of the database, or the statement cannot be prepared
+	 */
+	PreparedStatement prepare(Connection conn, String table) throws SQLException {
+		String sql = sqlByTable.get(table);
+		if (sql == null) {
+			checkTable(conn, table);
+			sql = String.format(format, table);
+			sqlByTable.put(table, sql);
+		}
+		return conn.prepareStatement(sql);
+	}
+
+	/**
+	 * Make sure a table name is a plain identifier naming an existing table.
+	 * @param conn database connection
+	 * @param table name of the table
+	 * @throws SQLException if it is not
+	 */
+	static void checkTable(Connection conn, String table) throws SQLException {
+		if (table != null && allowedTables.contains(table)) return;
+		if (table == null || !TABLE_NAME.matcher(table).matches()) {
+			throw new SQLException("Invalid table name");
+		}
+		try (PreparedStatement statement = conn.prepareStatement(SQL_TABLE_EXISTS)) {
+			statement.setString(1, table);
+			try (ResultSet rs = statement.executeQuery()) {
+				if (!rs.next()) throw new SQLException("Unknown table " + table);
+			}
+		}
+		allowedTables.add(table);
+	}
+}
@@ -3,11 +3,13 @@ package com.oose2016.group4.server;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 
 /**
- * Superclass for MapQuestHandler and TrafficAPIHandler.
+ * Superclass for MapQuestHandler, CrimeAPIHandler and TrafficAPIHandler.
  * Makes GET requests.
  *
  */
@@ -21,20 +23,25 @@ public abstract class RequestHandler {
 	 * @throws IOException if GET request doesn't work
 	 */
 	protected static String makeGetRequest(String url) throws IOException {
-		URL obj = new URL(url);
-		HttpURLConnection con = (HttpURLConnection) obj.openConnection();
-		
-		con.setRequestMethod("GET");
-		
-		BufferedReader in = new BufferedReader(
-		        new InputStreamReader(con.getInputStream()));
-		String inputLine;
-		String response = "";
-
-		while ((inputLine = in.readLine()) != null) {
-			response += inputLine;
+		StringBuilder response = new StringBuilder();
+		try (Reader in = openGetRequest(url)) {
+			char[] buffer = new char[8192];
+			for (int n; (n = in.read(buffer)) >= 0; ) {
+				response.append(buffer, 0, n);
+			}
 		}
-		in.close();
-		return response;
+		return response.toString();
+	}
+
+	/**
+	 * Makes a GET request and hands back its body as it arrives, for responses too large to hold in memory.
+	 * @param url compose of endpoint and any potential parameters
+	 * @return the body, to be closed by the caller
+	 * @throws IOException if GET request doesn't work
+	 */
+	protected static Reader openGetRequest(String url) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		con.setRequestMethod("GET");
+		return new BufferedReader(new InputStreamReader(con.getInputStream(), StandardCharsets.UTF_8));
 	}
 }
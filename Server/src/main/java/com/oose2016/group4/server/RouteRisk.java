@@ -0,0 +1,138 @@
+package com.oose2016.group4.server;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Risk of a route: the alarm summed over every grid the route passes through, and the share of each segment.
+ * Every segment is walked through the grid raster, so grids between two far apart points count as well. A grid
+ * is only counted once, for the first segment that reaches it, so that routes doubling back are not penalized twice.
+ */
+public class RouteRisk {
+	/*
+	Upper bound on the number of grids walked for a single route, about 30 km of grids at zoom 18 in every direction.
+	Grids walked again by a route doubling back count every time, as walking them costs the same.
+	 */
+	static final int MAX_STEPS = 200000;
+
+	private double risk;
+	private int cells;
+	private double[] segments;
+
+	private RouteRisk(double risk, int cells, double[] segments) {
+		this.risk = risk;
+		this.cells = cells;
+		this.segments = segments;
+	}
+
+	/**
+	 * Score a route against the grids of an index.
+	 * @param index grids and their alarm values
+	 * @param route the route
+	 * @return the risk of the route
+	 * @throws IllegalArgumentException if walking the route takes more than MAX_STEPS grids
+	 */
+	public static RouteRisk score(GridIndex index, Polyline route) {
+		//Every segment walks one grid more than the borders it crosses, see walk.
+		long steps = route.size() == 1 ? 1 : 0;
+		for (int i = 0; i + 1 < route.size() && steps <= MAX_STEPS; i++) {
+			long fromX = (long) Grid.projectX(route.getLongitude(i)), toX = (long) Grid.projectX(route.getLongitude(i + 1));
+			long fromY = (long) Grid.projectY(route.getLatitude(i)), toY = (long) Grid.projectY(route.getLatitude(i + 1));
+			steps += Math.abs(toX - fromX) + Math.abs(toY - fromY) + 1;
+		}
+		if (steps > MAX_STEPS) {
+			throw new IllegalArgumentException("Route walks more than " + MAX_STEPS + " grids");
+		}
+
+		Set<Long> visited = new HashSet<>();
+		double[] segments = new double[Math.max(route.size() - 1, 0)];
+		double[] sum = new double[1];
+		CellVisitor count = (x, y) -> {
+			if (!visited.add(GridIndex.pack(x, y))) return;
+			int slot = index.find(x, y);
+			if (slot >= 0) sum[0] += index.getAlarm(slot);
+		};
+
+		if (route.size() == 1) {
+			count.visit((int) Grid.projectX(route.getLongitude(0)), (int) Grid.projectY(route.getLatitude(0)));
+		}
+		for (int i = 0; i < segments.length; i++) {
+			sum[0] = 0;
+			walk(Grid.projectX(route.getLongitude(i)), Grid.projectY(route.getLatitude(i)),
+					Grid.projectX(route.getLongitude(i + 1)), Grid.projectY(route.getLatitude(i + 1)), count);
+			segments[i] = sum[0];
+		}
+
+		double risk = route.size() == 1 ? sum[0] : 0;
+		for (double segment : segments) risk += segment;
+		return new RouteRisk(risk, visited.size(), segments);
+	}
+
+	/**
+	 * Visit every grid a straight line crosses, in order from its start to its end (Amanatides and Woo). The line
+	 * runs between fractional grid positions, as returned by Grid.projectX and Grid.projectY. A line through the
+	 * exact corner of a grid visits one of the two grids beside the corner, so that consecutive grids always share
+	 * an edge.
+	 * @param fromX fractional x of the start
+	 * @param fromY fractional y of the start
+	 * @param toX fractional x of the end
+	 * @param toY fractional y of the end
+	 * @param visitor called with each grid index pair
+	 */
+	static void walk(double fromX, double fromY, double toX, double toY, CellVisitor visitor) {
+		int x = (int) Math.floor(fromX), y = (int) Math.floor(fromY);
+		int endX = (int) Math.floor(toX), endY = (int) Math.floor(toY);
+		double dx = toX - fromX, dy = toY - fromY;
+
+		int stepX = dx > 0 ? 1 : -1, stepY = dy > 0 ? 1 : -1;
+		//Line parameter t in [0, 1] at which the next vertical and horizontal grid border is crossed.
+		double tDeltaX = dx == 0 ? Double.POSITIVE_INFINITY : Math.abs(1 / dx);
+		double tDeltaY = dy == 0 ? Double.POSITIVE_INFINITY : Math.abs(1 / dy);
+		double tMaxX = dx == 0 ? Double.POSITIVE_INFINITY : (dx > 0 ? x + 1 - fromX : fromX - x) * tDeltaX;
+		double tMaxY = dy == 0 ? Double.POSITIVE_INFINITY : (dy > 0 ? y + 1 - fromY : fromY - y) * tDeltaY;
+
+		visitor.visit(x, y);
+		for (int steps = Math.abs(endX - x) + Math.abs(endY - y); steps > 0; steps--) {
+			if (x != endX && (tMaxX < tMaxY || y == endY)) {
+				x += stepX;
+				tMaxX += tDeltaX;
+			} else {
+				y += stepY;
+				tMaxY += tDeltaY;
+			}
+			visitor.visit(x, y);
+		}
+	}
+
+	/**
+	 * Receives the grids crossed by a line.
+	 */
+	@FunctionalInterface
+	interface CellVisitor {
+		void visit(int x, int y);
+	}
+
+	/**
+	 * Summed alarm of all grids of the route.
+	 * @return the risk
+	 */
+	public double getRisk() {
+		return risk;
+	}
+
+	/**
+	 * Number of distinct grids the route crosses.
+	 * @return the number of grids
+	 */
+	public int getCells() {
+		return cells;
+	}
+
+	/**
+	 * Summed alarm of the grids first reached by each segment, in route order.
+	 * @return risk per segment
+	 */
+	public double[] getSegments() {
+		return segments;
+	}
+}
@@ -0,0 +1,423 @@
+package com.oose2016.group4.server;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.sqlite.SQLiteConfig;
+
+/**
+ * A fixed-size pool of read-only SQLite connections, plus one dedicated writer connection.
+ * The database is switched to write-ahead logging, so readers keep serving from the last committed snapshot while
+ * the writer runs an update, instead of waiting on the database lock. Readers share one page cache and map the
+ * database file into memory.
+ * The pool itself is the DataSource for readers; getWriter() is the DataSource for the DatabaseUpdater. Closing a
+ * connection obtained from either hands it back to the pool instead of closing it.
+ * Every pooled connection also keeps its most recently used prepared statements, keyed by SQL text, so a query
+ * that is run on every request is compiled by SQLite once per connection rather than once per request. Closing a
+ * cached statement resets it and clears its parameters, leaving it ready for the next borrower.
+ */
+public class SQLiteConnectionPool implements DataSource {
+	/*
+	How long to wait for a free connection before giving up, and how much of the database file readers may map.
+	 */
+	private static final long ACQUIRE_TIMEOUT_SECONDS = 30;
+	private static final long MMAP_SIZE = 256L * 1024 * 1024;
+
+	/*
+	Number of prepared statements kept per connection. The service and the updater use a few dozen distinct queries.
+	 */
+	static final int STATEMENT_CACHE_SIZE = 64;
+
+	private final BlockingQueue<PoolEntry> idleReaders;
+	private final BlockingQueue<PoolEntry> idleWriter = new ArrayBlockingQueue<>(1);
+	private final List<PoolEntry> entries = new ArrayList<>();
+	private final DataSource writer = new WriterDataSource();
+
+	/**
+	 * Open the writer connection and the given number of reader connections.
+	 * @param url JDBC url of the database
+	 * @param readers number of reader connections
+	 * @throws SQLException if a connection cannot be opened
+	 */
+	public SQLiteConnectionPool(String url, int readers) throws SQLException {
+		if (readers < 1) throw new IllegalArgumentException("Pool needs at least one reader");
+
+		//The writer goes first, so that the database is in WAL mode by the time readers open it.
+		SQLiteConfig writerConfig = new SQLiteConfig();
+		writerConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+		writerConfig.setBusyTimeout(String.valueOf(TimeUnit.SECONDS.toMillis(ACQUIRE_TIMEOUT_SECONDS)));
+		idleWriter.add(open(writerConfig, url));
+
+		SQLiteConfig readerConfig = new SQLiteConfig();
+		readerConfig.setReadOnly(true);
+		readerConfig.setSharedCache(true);
+		readerConfig.setBusyTimeout(String.valueOf(TimeUnit.SECONDS.toMillis(ACQUIRE_TIMEOUT_SECONDS)));
+		idleReaders = new ArrayBlockingQueue<>(readers);
+		for (int i = 0; i < readers; i++) {
+			PoolEntry reader = open(readerConfig, url);
+			try (Statement statement = reader.connection.createStatement()) {
+				statement.execute("PRAGMA mmap_size=" + MMAP_SIZE);
+			}
+			idleReaders.add(reader);
+		}
+	}
+
+	private PoolEntry open(SQLiteConfig config, String url) throws SQLException {
+		PoolEntry entry = new PoolEntry(config.createConnection(url));
+		entries.add(entry);
+		return entry;
+	}
+
+	/**
+	 * The DataSource handing out the single writer connection. Only one caller holds it at a time.
+	 * @return writer DataSource
+	 */
+	public DataSource getWriter() {
+		return writer;
+	}
+
+	/**
+	 * Close every connection of the pool, whether or not it is currently handed out.
+	 */
+	public void close() {
+		for (PoolEntry entry : entries) {
+			try {
+				entry.closeStatements();
+				entry.connection.close();
+			} catch (SQLException e) {
+				//Nothing left to do with a connection that fails to close.
+			}
+		}
+	}
+
+	/**
+	 * Borrow a read-only connection, waiting for one to be returned if they are all in use.
+	 * @return a reader connection, returned to the pool when closed
+	 * @throws SQLException if no reader becomes available in time
+	 */
+	@Override
+	public Connection getConnection() throws SQLException {
+		return acquire(idleReaders);
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		return getConnection();
+	}
+
+	private static Connection acquire(BlockingQueue<PoolEntry> idle) throws SQLException {
+		PoolEntry entry;
+		try {
+			entry = idle.poll(ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database connection", e);
+		}
+		if (entry == null) {
+			throw new SQLException("Timed out waiting for a database connection");
+		}
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] {Connection.class}, new PooledConnection(entry, idle));
+	}
+
+	/**
+	 * A pooled connection together with its prepared statement cache. The cache is only touched by the borrower of
+	 * the connection, so it needs no locking.
+	 */
+	private static class PoolEntry {
+		private final Connection connection;
+
+		/*
+		Least recently used statements are evicted first. A statement evicted while it is handed out is closed when
+		it is given back.
+		 */
+		private final Map<String, CachedStatement> statements =
+				new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+						if (size() <= STATEMENT_CACHE_SIZE) return false;
+						eldest.getValue().evict();
+						return true;
+					}
+				};
+
+		PoolEntry(Connection connection) {
+			this.connection = connection;
+		}
+
+		/*
+		Hand out the cached statement for this SQL, preparing it on first use. If the borrower already holds the
+		cached one open, it gets a plain statement of its own instead.
+		 */
+		PreparedStatement prepare(String sql, Connection owner) throws SQLException {
+			CachedStatement cached = statements.get(sql);
+			if (cached == null) {
+				cached = new CachedStatement(connection.prepareStatement(sql), owner);
+				statements.put(sql, cached);
+			} else if (cached.inUse) {
+				return connection.prepareStatement(sql);
+			}
+			return cached.borrow(owner);
+		}
+
+		/*
+		Reset every statement the borrower left open, so that none of them keeps a read snapshot alive.
+		 */
+		void releaseStatements() throws SQLException {
+			for (CachedStatement cached : statements.values()) {
+				if (cached.inUse) cached.release();
+			}
+		}
+
+		void closeStatements() throws SQLException {
+			Iterator<CachedStatement> it = statements.values().iterator();
+			while (it.hasNext()) {
+				it.next().statement.close();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Handle of a cached prepared statement. close() resets the statement instead of finalizing it.
+	 */
+	private static class CachedStatement implements InvocationHandler {
+		private final PreparedStatement statement;
+		private final PreparedStatement handle;
+		private Connection owner;
+		private ResultSet resultSet;
+		private boolean inUse, evicted;
+
+		CachedStatement(PreparedStatement statement, Connection owner) {
+			this.statement = statement;
+			this.owner = owner;
+			handle = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+					new Class<?>[] {PreparedStatement.class}, this);
+		}
+
+		PreparedStatement borrow(Connection owner) {
+			this.owner = owner;
+			inUse = true;
+			return handle;
+		}
+
+		void release() throws SQLException {
+			inUse = false;
+			if (resultSet != null) {
+				resultSet.close();
+				resultSet = null;
+			}
+			if (evicted) {
+				statement.close();
+			} else {
+				statement.clearParameters();
+				statement.clearBatch();
+			}
+		}
+
+		void evict() {
+			evicted = true;
+			if (inUse) return;
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				//The statement is dropped from the cache either way.
+			}
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+				case "close":
+					if (inUse) release();
+					return null;
+				case "isClosed":
+					return !inUse || statement.isClosed();
+				case "getConnection":
+					return owner;
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				default:
+					if (!inUse) throw new SQLException("Statement has been closed");
+					Object result;
+					try {
+						result = method.invoke(statement, args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+					if (result instanceof ResultSet) resultSet = (ResultSet) result;
+					return result;
+			}
+		}
+	}
+
+	/**
+	 * Handle of a borrowed connection. Everything but close() is passed on to the underlying connection; close()
+	 * rolls back whatever the borrower left uncommitted, resets the statements it left open and puts the
+	 * connection back into its queue. Statements prepared from SQL text alone come from the statement cache.
+	 */
+	private static class PooledConnection implements InvocationHandler {
+		private final PoolEntry entry;
+		private final Connection connection;
+		private final BlockingQueue<PoolEntry> idle;
+		private boolean closed;
+
+		PooledConnection(PoolEntry entry, BlockingQueue<PoolEntry> idle) {
+			this.entry = entry;
+			this.connection = entry.connection;
+			this.idle = idle;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+				case "close":
+					if (!closed) {
+						closed = true;
+						try {
+							entry.releaseStatements();
+							if (!connection.getAutoCommit()) {
+								connection.rollback();
+								connection.setAutoCommit(true);
+							}
+						} finally {
+							idle.add(entry);
+						}
+					}
+					return null;
+				case "isClosed":
+					return closed || connection.isClosed();
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "prepareStatement":
+					//sql2o asks for generated keys by default, which SQLite ignores for the statement itself.
+					Class<?>[] types = method.getParameterTypes();
+					if (!closed && (types.length == 1 || (types.length == 2 && types[1] == int.class))) {
+						return entry.prepare((String) args[0], (Connection) proxy);
+					}
+					return delegate(method, args);
+				default:
+					return delegate(method, args);
+			}
+		}
+
+		/**
+		 * Invoke a method on the pooled connection, unless it has been returned to the pool.
+		 */
+		private Object delegate(Method method, Object[] args) throws Throwable {
+			if (closed) throw new SQLException("Connection has been returned to the pool");
+			try {
+				return method.invoke(connection, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	/**
+	 * DataSource view of the writer connection.
+	 */
+	private class WriterDataSource implements DataSource {
+		@Override
+		public Connection getConnection() throws SQLException {
+			return acquire(idleWriter);
+		}
+
+		@Override
+		public Connection getConnection(String username, String password) throws SQLException {
+			return getConnection();
+		}
+
+		@Override
+		public PrintWriter getLogWriter() {
+			return null;
+		}
+
+		@Override
+		public void setLogWriter(PrintWriter out) {
+		}
+
+		@Override
+		public void setLoginTimeout(int seconds) {
+		}
+
+		@Override
+		public int getLoginTimeout() {
+			return 0;
+		}
+
+		@Override
+		public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+			throw new SQLFeatureNotSupportedException();
+		}
+
+		@Override
+		public <T> T unwrap(Class<T> iface) throws SQLException {
+			throw new SQLException("Not a wrapper");
+		}
+
+		@Override
+		public boolean isWrapperFor(Class<?> iface) {
+			return false;
+		}
+	}
+
+	@Override
+	public PrintWriter getLogWriter() {
+		return null;
+	}
+
+	@Override
+	public void setLogWriter(PrintWriter out) {
+	}
+
+	@Override
+	public void setLoginTimeout(int seconds) {
+	}
+
+	@Override
+	public int getLoginTimeout() {
+		return 0;
+	}
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		throw new SQLException("Not a wrapper");
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) {
+		return false;
+	}
+}
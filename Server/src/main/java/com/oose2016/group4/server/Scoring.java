@@ -0,0 +1,19 @@
+package com.oose2016.group4.server;
+
+/**
+ * How the alarm of a grid is scored: RAW counts every crime the same however old it is, DECAYED weighs each crime
+ * down by its age, see DecayedAlarm.
+ */
+public enum Scoring {
+	RAW, DECAYED;
+
+	/**
+	 * Parse the optional scoring parameter of a request.
+	 * @param scoring "raw" or "decayed", in any case, or null
+	 * @return the scoring, RAW if it is left out
+	 * @throws IllegalArgumentException if it is neither
+	 */
+	public static Scoring parse(String scoring) {
+		return scoring == null ? RAW : valueOf(scoring.toUpperCase());
+	}
+}
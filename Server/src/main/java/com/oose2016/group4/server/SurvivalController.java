@@ -2,11 +2,30 @@ package com.oose2016.group4.server;
 
 import static spark.Spark.before;
 import static spark.Spark.get;
+import static spark.Spark.post;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sql2o.Sql2oException;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+import spark.Request;
+import spark.Response;
 
 /**
  * Setup the web server and handle all requests and responses.
@@ -14,6 +33,16 @@ import org.slf4j.LoggerFactory;
 public class SurvivalController {
 	private static final String API_CONTEXT = "/v1";
 
+	/*
+	Page size of /v1/crimes when a cursor is given without a limit.
+	 */
+	static final int DEFAULT_PAGE_SIZE = 1000;
+
+	private static final Pattern TILE_NAME = Pattern.compile("(\\d{1,7})-(\\d{1,7})-(\\d{1,2})\\.png");
+
+	private final Gson gson = new Gson();
+	private final JsonTransformer json = new JsonTransformer();
+
 	private SurvivalService survivalService;
 
 	private final Logger logger = LoggerFactory.getLogger(SurvivalController.class);
@@ -31,53 +60,114 @@ public class SurvivalController {
 			response.header("Access-Control-Allow-Origin", "*");
 		});
 		/**
-		 * Retrieve linkIDs to Avoid
+		 * Retrieve linkIDs to Avoid, optionally at an hour of day given as timeOfDay, from the crimes between fromDate
+		 * and toDate, or with scoring=decayed from the alarm with older crimes weighed down. Without any of these,
+		 * links are ranked by the summed alarm of all of their grids. With one of them, links are ranked by the alarm
+		 * of their single worst grid, so a link spread over many medium-risk grids may be red without them and
+		 * missing with them.
 		 */
-		get(API_CONTEXT + "/avoidLinkIds", "application/json", (request, response) -> {
+		get(API_CONTEXT + "/avoidLinkIds", (request, response) -> {
+			if (notModified(request, response)) return "";
 			try {
 				double fromLat = Double.parseDouble(request.queryParams("fromLat"));
 				double fromLng = Double.parseDouble(request.queryParams("fromLng"));
 				double toLat = Double.parseDouble(request.queryParams("toLat"));
 				double toLng = Double.parseDouble(request.queryParams("toLng"));
-				//int timeOfDay = Integer.parseInt(request.queryParams("timeOfDay"));
+				AlarmSelection selection = parseSelection(request);
 				Coordinate from = new Coordinate(fromLat, fromLng);
 				Coordinate to = new Coordinate(toLat, toLng);
 				Coordinate.sortAndExpand(from, to);
 				response.status(200);
-				return survivalService.getAvoidLinkIds(from, to, "grids");
+				return render(request, response,
+						survivalService.getAvoidLinkIds(from, to, selection, "grids"),
+						BinaryCodec::encode);
 			} catch (Exception e) {
 				logger.info("Invalid request", e);
-				response.status(400);
-				return Collections.EMPTY_MAP;
+				return badRequest(response);
 			}
-		}, new JsonTransformer());
+		});
 		
 		
 		/**
-		 * Get Crime List.
+		 * Get Crime List. Crimes are streamed into the response as they are read, ordered by date.
+		 * Without 'limit' and 'cursor' the response is the array of all matching crimes. With either of them, it is
+		 * one page of at most 'limit' crimes (DEFAULT_PAGE_SIZE if left out) as {"crimes": [...], "next": cursor},
+		 * where 'next' is only present when there are more crimes; pass it as 'cursor' to get the next page.
+		 * Binary clients get a BinaryCodec CRIMES message, which carries the next cursor itself. Crimes are listed at
+		 * every time of day; a 'timeOfDay' parameter is accepted for older clients but not needed.
 		 */
-		get(API_CONTEXT + "/crimes", "application/json", (request, response) -> {
+		get(API_CONTEXT + "/crimes", (request, response) -> {
+			if (notModified(request, response)) return "";
+			Crime from, to;
+			int limit;
+			CrimeCursor after;
+			boolean paged;
 			try {
 				double fromLat = Double.parseDouble(request.queryParams("fromLat"));
 				double fromLng = Double.parseDouble(request.queryParams("fromLng"));
 				double toLat = Double.parseDouble(request.queryParams("toLat"));
 				double toLng = Double.parseDouble(request.queryParams("toLng"));
-				int timeOfDay = Integer.parseInt(request.queryParams("timeOfDay"));
 				int fromDate = Integer.parseInt(request.queryParams("fromDate"));
 				int toDate = Integer.parseInt(request.queryParams("toDate"));
 
+				String limitParam = request.queryParams("limit"), cursorParam = request.queryParams("cursor");
+				paged = limitParam != null || cursorParam != null;
+				limit = limitParam != null ? Integer.parseInt(limitParam) : paged ? DEFAULT_PAGE_SIZE : -1;
+				if (paged && limit < 1) throw new IllegalArgumentException("Limit must be positive");
+				after = cursorParam != null ? CrimeCursor.decode(cursorParam) : CrimeCursor.START;
+
 				//types: <Comma separated Strings>
 				//get array of crimes (int date, String addr, double lat, double lng, String type
-				Crime from = new Crime(fromDate, fromLat, fromLng);
-				Crime to = new Crime(toDate, toLat, toLng);
-				response.status(200);
-				return survivalService.getCrimes(from, to, timeOfDay, "crimes");
+				from = new Crime(fromDate, fromLat, fromLng);
+				to = new Crime(toDate, toLat, toLng);
 			} catch (Exception e) {
 				logger.info("Invalid request", e);
 				response.status(404); //unsupported location
-				return Collections.EMPTY_MAP;
+				return renderJson(response, Collections.EMPTY_MAP);
 			}
-		}, new JsonTransformer());
+
+			HttpServletResponse raw = response.raw();
+			response.status(200);
+			try {
+				//Crime listings are rarely small, so they are gzipped whenever the client accepts it.
+				OutputStream body = raw.getOutputStream();
+				if (HttpCaching.acceptsGzip(request.headers("Accept-Encoding"))) {
+					response.header("Content-Encoding", "gzip");
+					body = new GZIPOutputStream(body, true);
+				}
+				if (wantsBinary(request)) {
+					response.type(BinaryCodec.MEDIA_TYPE);
+					OutputStream out = new BufferedOutputStream(body);
+					BinaryCodec.CrimeWriter writer = new BinaryCodec.CrimeWriter(out);
+					writer.finish(survivalService.streamCrimes(from, to, after, limit, "crimes", writer));
+					out.close();
+					return "";
+				}
+				response.type("application/json");
+				JsonWriter writer = new JsonWriter(new BufferedWriter(
+						new OutputStreamWriter(body, StandardCharsets.UTF_8)));
+				if (paged) writer.beginObject().name("crimes");
+				writer.beginArray();
+				CrimeCursor next = survivalService.streamCrimes(from, to, after, limit, "crimes",
+						crime -> gson.toJson(crime, Crime.class, writer));
+				writer.endArray();
+				if (paged) {
+					if (next != null) writer.name("next").value(next.encode());
+					writer.endObject();
+				}
+				writer.close();
+			} catch (Sql2oException e) {
+				logger.error("Failed to stream crimes", e);
+				if (!raw.isCommitted()) {
+					raw.resetBuffer();
+					response.status(500);
+					return renderJson(response, Collections.EMPTY_MAP);
+				}
+				//Part of the crimes are out already; ending the response here leaves it unterminated.
+				raw.getOutputStream().close();
+			}
+			return "";
+		});
 		
 		/**
 		 * Retrive data from data source, store them into the database with proper Weighting Algorithm
@@ -90,15 +180,217 @@ public class SurvivalController {
 		
 		/**
 		 * return a particular coordinate's safety rating based on the crime level evaluation data stored
-		 * in the database.
+		 * in the database, optionally at an hour of day given as timeOfDay, from the crimes between fromDate and
+		 * toDate, or with scoring=decayed from the alarm with older crimes weighed down.
 		 */
-		get(API_CONTEXT + "/safety/rating", "application/json", (request, response) -> {
-			double lat = Double.parseDouble(request.queryParams("lat"));
-			double lng = Double.parseDouble(request.queryParams("lng"));
-			Coordinate c = new Coordinate(lat, lng);
-			return survivalService.getSafetyRating(c, "grids");
-		}, new JsonTransformer());
+		get(API_CONTEXT + "/safety/rating", (request, response) -> {
+			if (notModified(request, response)) return "";
+			try {
+				double lat = Double.parseDouble(request.queryParams("lat"));
+				double lng = Double.parseDouble(request.queryParams("lng"));
+				String radiusParam = request.queryParams("radius");
+				int radius = radiusParam == null
+						? SurvivalService.DEFAULT_RATING_RADIUS : Integer.parseInt(radiusParam);
+				Coordinate c = new Coordinate(lat, lng);
+				return render(request, response,
+						survivalService.getSafetyRating(c, radius, parseSelection(request), "grids"),
+						BinaryCodec::encodeRating);
+			} catch (Exception e) {
+				logger.info("Invalid request", e);
+				return badRequest(response);
+			}
+		});
+
+		/**
+		 * Return the safety ratings of many coordinates at once, in the order given. The body is a JSON array of
+		 * [lat, lng] pairs, at most MAX_BATCH_RATINGS of them. Takes timeOfDay, fromDate and toDate, and scoring
+		 * like /safety/rating.
+		 */
+		post(API_CONTEXT + "/safety/ratings", (request, response) -> {
+			try {
+				String radiusParam = request.queryParams("radius");
+				int radius = radiusParam == null
+						? SurvivalService.DEFAULT_RATING_RADIUS : Integer.parseInt(radiusParam);
+				double[][] pairs = gson.fromJson(request.body(), double[][].class);
+				double[] latitudes = new double[pairs.length], longitudes = new double[pairs.length];
+				for (int i = 0; i < pairs.length; i++) {
+					if (pairs[i] == null || pairs[i].length != 2 || !Coordinate.isValid(pairs[i][0], pairs[i][1])) {
+						throw new IllegalArgumentException("Not a valid coordinate at index " + i);
+					}
+					latitudes[i] = pairs[i][0];
+					longitudes[i] = pairs[i][1];
+				}
+				return render(request, response,
+						survivalService.getSafetyRatings(latitudes, longitudes, radius, parseSelection(request),
+								"grids"),
+						BinaryCodec::encodeRatings);
+			} catch (Exception e) {
+				logger.info("Invalid request", e);
+				return badRequest(response);
+			}
+		});
+
+		/**
+		 * Return a heatmap tile of the current grid alarms, named {x}-{y}-{z}.png like the pre-rendered ones under
+		 * /v1/heatmap, at any zoom level up to the grids'.
+		 */
+		get(API_CONTEXT + "/tiles/:tile", (request, response) -> {
+			if (notModified(request, response)) return "";
+			Matcher tile = TILE_NAME.matcher(request.params(":tile"));
+			try {
+				if (!tile.matches()) throw new IllegalArgumentException("Not a tile name");
+				byte[] png = survivalService.getTile(Integer.parseInt(tile.group(1)), Integer.parseInt(tile.group(2)),
+						Integer.parseInt(tile.group(3)));
+				response.type("image/png");
+				return png;
+			} catch (IllegalArgumentException e) {
+				logger.info("Invalid request", e);
+				return badRequest(response);
+			}
+		});
+
+		/**
+		 * Score alternative routes by the grids they pass through. The body is a JSON array of encoded polylines,
+		 * at most MAX_ROUTES of them, and the response holds the total and per-segment risk of each route.
+		 */
+		post(API_CONTEXT + "/route/risk", (request, response) -> {
+			try {
+				String[] encoded = gson.fromJson(request.body(), String[].class);
+				Polyline[] routes = new Polyline[encoded.length];
+				for (int i = 0; i < encoded.length; i++) {
+					routes[i] = Polyline.decode(encoded[i]);
+				}
+				String body = renderJson(response, survivalService.getRouteRisks(routes));
+				gzipIfLarge(request, response, body.length());
+				return body;
+			} catch (Exception e) {
+				logger.info("Invalid request", e);
+				return badRequest(response);
+			}
+		});
+
+	}
+
+	/**
+	 * The alarm a risk query reads, from the optional timeOfDay, fromDate and toDate, and scoring parameters. At most
+	 * one of a time of day, a date window and decayed scoring can be asked for.
+	 * @param request the request
+	 * @return the selection, AlarmSelection.ALL if they are all left out
+	 * @throws IllegalArgumentException if they are invalid or more than one is given
+	 */
+	private static AlarmSelection parseSelection(Request request) {
+		int timeOfDay = parseTimeOfDay(request);
+		DateWindow window = parseDateWindow(request);
+		Scoring scoring = Scoring.parse(request.queryParams("scoring"));
+		int given = (timeOfDay != HourlyAlarmIndex.ANY_TIME ? 1 : 0) + (window != null ? 1 : 0)
+				+ (scoring == Scoring.DECAYED ? 1 : 0);
+		if (given > 1) {
+			throw new IllegalArgumentException("A time of day, a date window and decayed scoring cannot be combined");
+		}
+		if (timeOfDay != HourlyAlarmIndex.ANY_TIME) return AlarmSelection.atHour(timeOfDay);
+		if (window != null) return AlarmSelection.within(window);
+		return scoring == Scoring.DECAYED ? AlarmSelection.DECAYED : AlarmSelection.ALL;
+	}
+
+	/**
+	 * The optional timeOfDay parameter, the hour of day from 0 to 23.
+	 * @param request the request
+	 * @return the hour, or HourlyAlarmIndex.ANY_TIME if it is left out
+	 */
+	private static int parseTimeOfDay(Request request) {
+		String timeOfDay = request.queryParams("timeOfDay");
+		return timeOfDay == null ? HourlyAlarmIndex.ANY_TIME : Integer.parseInt(timeOfDay);
+	}
+
+	/**
+	 * The optional fromDate and toDate parameters, the inclusive window of crime dates to rate from.
+	 * @param request the request
+	 * @return the window, or null if both are left out
+	 * @throws IllegalArgumentException if only one of them is given
+	 */
+	private static DateWindow parseDateWindow(Request request) {
+		String fromDate = request.queryParams("fromDate"), toDate = request.queryParams("toDate");
+		if (fromDate == null && toDate == null) return null;
+		if (fromDate == null || toDate == null) {
+			throw new IllegalArgumentException("fromDate and toDate must be given together");
+		}
+		return new DateWindow(Integer.parseInt(fromDate), Integer.parseInt(toDate));
+	}
+
+	/**
+	 * Whether the client asked for the binary encoding, with format=bin or by accepting BinaryCodec.MEDIA_TYPE.
+	 * The format parameter takes precedence over the Accept header.
+	 * @param request the request
+	 * @return true for binary, false for JSON
+	 */
+	static boolean wantsBinary(Request request) {
+		String format = request.queryParams("format");
+		if (format != null) return "bin".equals(format);
+		String accept = request.headers("Accept");
+		return accept != null && accept.contains(BinaryCodec.MEDIA_TYPE);
+	}
+
+	/**
+	 * Tag the response with the ETag of the current data version, and answer 304 Not Modified when the client
+	 * already holds that version. The version is read before the data, so a response is never tagged with a
+	 * version newer than the data in it.
+	 * @param request the request
+	 * @param response the response
+	 * @return true if the response is a 304 and needs no body
+	 */
+	private boolean notModified(Request request, Response response) {
+		String etag = HttpCaching.etag(survivalService.getDataVersion(), wantsBinary(request),
+				HttpCaching.acceptsGzip(request.headers("Accept-Encoding")));
+		response.header("ETag", etag);
+		response.header("Vary", "Accept, Accept-Encoding");
+		if (!HttpCaching.matches(request.headers("If-None-Match"), etag)) return false;
+		response.status(304);
+		return true;
+	}
+
+	/**
+	 * Render a response body in the format the client asked for. Missing results are always sent as JSON null.
+	 * Bodies of at least GZIP_THRESHOLD bytes are gzipped for clients that accept it.
+	 * @param request the request
+	 * @param response the response
+	 * @param model the result
+	 * @param binary binary encoding of the result
+	 * @return body of the response
+	 */
+	private <T> Object render(Request request, Response response, T model, Function<T, byte[]> binary) {
+		if (model != null && wantsBinary(request)) {
+			response.type(BinaryCodec.MEDIA_TYPE);
+			byte[] body = binary.apply(model);
+			gzipIfLarge(request, response, body.length);
+			return body;
+		}
+		String body = renderJson(response, model);
+		gzipIfLarge(request, response, body.length());
+		return body;
+	}
+
+	/*
+	Spark gzips the body on its way out once the Content-Encoding header asks for it.
+	 */
+	private static void gzipIfLarge(Request request, Response response, int length) {
+		if (length >= HttpCaching.GZIP_THRESHOLD && HttpCaching.acceptsGzip(request.headers("Accept-Encoding"))) {
+			response.header("Content-Encoding", "gzip");
+		}
+	}
+
+	/**
+	 * Answer an invalid request with 400 Bad Request and an empty JSON object.
+	 * @param response the response
+	 * @return the body
+	 */
+	private String badRequest(Response response) {
+		response.status(400);
+		return renderJson(response, Collections.EMPTY_MAP);
+	}
 
+	private String renderJson(Response response, Object model) {
+		response.type("application/json");
+		return json.render(model);
 	}
 
 
@@ -1,14 +1,16 @@
 package com.oose2016.group4.server;
 
 import java.io.IOException;
-import java.util.List;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
 
 import javax.sql.DataSource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sql2o.Connection;
-import org.sql2o.Query;
 import org.sql2o.Sql2o;
 import org.sql2o.Sql2oException;
 
@@ -16,13 +18,77 @@ import org.sql2o.Sql2oException;
  * Class which runs the survival service.
  */
 public class SurvivalService {
+	/*
+	The table that is mirrored in memory by the grid index. Requests against other tables go to the database.
+	 */
+	static final String GRIDS_TABLE = "grids";
+	static final String LINK_RISKS_TABLE = "linkrisks";
+	static final String CRIMES_TABLE = "crimes";
+	static final String GRID_HOURS_TABLE = "gridhours";
+	static final String GRID_MONTHS_TABLE = "gridmonths";
+	static final String GRID_DECAY_TABLE = "griddecay";
+
+	/*
+	Radius of the square of grids considered by the safety rating by default (3x3), and the largest one allowed.
+	 */
+	static final int DEFAULT_RATING_RADIUS = 1;
+	static final int MAX_RATING_RADIUS = 50;
+	static final int MAX_BATCH_RATINGS = 5000;
+	static final int MAX_ROUTES = 16;
+
 	private Sql2o db;
 
+	/*
+	Separate handle on the database for the DatabaseUpdater, so that updates never take a connection from readers.
+	 */
+	private Sql2o writerDb;
+
+	private volatile GridIndex gridIndex = GridIndex.empty();
+	private volatile LinkRiskIndex linkRiskIndex = LinkRiskIndex.empty();
+	private volatile HourlyAlarmIndex hourlyAlarmIndex = HourlyAlarmIndex.empty();
+	private volatile MonthlyAlarmIndex monthlyAlarmIndex = MonthlyAlarmIndex.empty(GridIndex.empty());
+
+	/*
+	The grids with their decayed alarm, and the half-life the DatabaseUpdater decays new crimes by.
+	 */
+	private volatile GridIndex decayedGridIndex = GridIndex.empty();
+	private volatile int halfLife = DecayedAlarm.DEFAULT_HALF_LIFE;
+	private volatile double linkIdRequestsPerSecond = LinkIdResolver.DEFAULT_REQUESTS_PER_SECOND;
+
+	/*
+	In-memory copy of the crimes table, or null while there is none and requests go to the database.
+	 */
+	private volatile CrimeStore crimeStore;
+
+	private final DataVersion dataVersion = new DataVersion();
+	private final AvoidLinkIdsCache avoidLinkIdsCache = new AvoidLinkIdsCache();
+	private final TileCache tileCache = new TileCache();
+
+	/*
+	On-disk heatmap tiles re-rendered by each database update, or null if there are none.
+	 */
+	private volatile TilePyramid tilePyramid;
 
 	private static Logger logger = LoggerFactory.getLogger(SurvivalService.class);
 
+	/**
+	 * Create the service on a single data source, used both to serve requests and to update the database.
+	 * @param dataSource the data source
+	 */
 	public SurvivalService(DataSource dataSource) {
-		db = new Sql2o(dataSource);
+		this(dataSource, dataSource);
+	}
+
+	/**
+	 * Create the service with separate data sources for serving requests and for updating the database.
+	 * @param readers data source used to serve requests
+	 * @param writer data source used by the DatabaseUpdater
+	 */
+	public SurvivalService(DataSource readers, DataSource writer) {
+		db = new Sql2o(readers);
+		writerDb = new Sql2o(writer);
+		reloadGridIndex();
+		reloadCrimeStore();
 	}
 
 	public Sql2o getDb() {
@@ -30,16 +96,53 @@ public class SurvivalService {
 	}
 	
 	/**
-	 * Get linkIds to avoid
+	 * Get linkIds to avoid. For the grids table, links are ranked by their aggregated risk once the updater has
+	 * filled 'linkrisks', and by the alarm of their single worst grid before that, and results are cached per pair of
+	 * corner grids until the next update. At a given time of day, links are ranked by the alarm of their worst grid
+	 * at that hour. Within a window of crime dates or with the decayed alarm, links are ranked by that alarm of their
+	 * worst grid, which is not cached. Other tables only have the raw alarm of all crimes and ignore the selection.
 	 * @param from top left coordinate
 	 * @param to bottom right coordinate
+	 * @param selection the alarm to rank links by
 	 * @param table table in database
 	 * @return linkIds
 	 */
-	public AvoidLinkIds getAvoidLinkIds(Coordinate from, Coordinate to, String table) {
+	public AvoidLinkIds getAvoidLinkIds(Coordinate from, Coordinate to, AlarmSelection selection, String table) {
+		int timeOfDay = selection.getTimeOfDay();
+		if (GRIDS_TABLE.equals(table) && (selection.getWindow() != null || selection.getScoring() == Scoring.DECAYED)) {
+			GridIndex index = gridsFor(selection);
+			if (index == null) return null;
+			return index.getAvoidLinkIds(new Grid(from.getLatitude(), from.getLongitude()),
+					new Grid(to.getLatitude(), to.getLongitude()));
+		}
+		if (GRIDS_TABLE.equals(table)) {
+			try {
+				Grid fromGrid = new Grid(from.getLatitude(), from.getLongitude());
+				Grid toGrid = new Grid(to.getLatitude(), to.getLongitude());
+				long version = dataVersion.getCounter();
+				AvoidLinkIds ids = avoidLinkIdsCache.get(version, timeOfDay, fromGrid, toGrid);
+				if (ids == null) {
+					LinkRiskIndex links = linkRiskIndex;
+					if (timeOfDay != HourlyAlarmIndex.ANY_TIME) {
+						ids = hourlyAlarmIndex.getAvoidLinkIds(timeOfDay, fromGrid, toGrid);
+					} else if (links.size() > 0) {
+						ids = links.getAvoidLinkIds(fromGrid, toGrid);
+					} else {
+						ids = gridIndex.getAvoidLinkIds(fromGrid, toGrid);
+					}
+					avoidLinkIdsCache.put(version, timeOfDay, fromGrid, toGrid, ids);
+				}
+				return ids;
+			} catch (NullPointerException e) {
+				logger.error("Null pointer, failed to fetch linkIds", e);
+				return null;
+			}
+		}
 		try (Connection conn = db.open()) {
-			int[] red = fetchLinkIds(conn, from, to, "alarm > 2000", table);
-			int[] yellow = fetchLinkIds(conn, from, to, "alarm <= 2000 AND alarm >1000 ", table);
+			Grid fromGrid = new Grid(from.getLatitude(), from.getLongitude());
+			Grid toGrid = new Grid(to.getLatitude(), to.getLongitude());
+			int[] red = fetchLinkIds(conn, fromGrid, toGrid, QueryTemplate.RED_LINK_IDS, table);
+			int[] yellow = fetchLinkIds(conn, fromGrid, toGrid, QueryTemplate.YELLOW_LINK_IDS, table);
 			return new AvoidLinkIds(red, yellow);
 		} catch (Sql2oException e) {
 			logger.error("Failed to fetch linkIds", e);
@@ -53,81 +156,102 @@ public class SurvivalService {
 	/**
 	 * Create and execute database query
 	 * @param conn database connection
-	 * @param from top left coordinate
-	 * @param to bottom right coordinate
-	 * @param predicate condition
+	 * @param fromGrid grid of the top left coordinate
+	 * @param toGrid grid of the bottom right coordinate
+	 * @param template query of one alarm band
+	 * @param table table in database
 	 * @return array of linkIds
 	 * @throws Sql2oException when query fails
 	 */
-	private int[] fetchLinkIds(Connection conn, Coordinate from, Coordinate to, String predicate, String table)
-			throws Sql2oException, NullPointerException {
-
-		Grid fromGrid = new Grid(from.getLatitude(),from.getLongitude());
-		Grid toGrid = new Grid(to.getLatitude(),to.getLongitude());
-
-		String sqlGetAvoidLindIds = "SELECT DISTINCT linkId FROM "
-				+ table
-				+ " WHERE "
-				+ "x >= :fromX AND x <= :toX AND "
-				+ "y <= :fromY AND y >= :toY AND "
-				+ predicate + " ORDER BY alarm DESC LIMIT 20";
-		Query queryGetAvoidLindIds = conn.createQuery(sqlGetAvoidLindIds);
-
-		List<Integer> avoidLindIds = queryGetAvoidLindIds
-				.addParameter("fromX", fromGrid.getX())
-				.addParameter("toX", toGrid.getX())
-				.addParameter("fromY", fromGrid.getY())
-				.addParameter("toY", toGrid.getY())
-				.executeAndFetch(Integer.class);
-		
-		int size = avoidLindIds.size();
-		int[] linkIds = new int[size];
-		for (int i = 0; i<size; i++ ) {
-			linkIds[i] = avoidLindIds.get(i);
-		}
-		return linkIds;
+	private int[] fetchLinkIds(Connection conn, Grid fromGrid, Grid toGrid, QueryTemplate template, String table)
+			throws Sql2oException {
+		try (PreparedStatement statement = template.prepare(conn.getJdbcConnection(), table)) {
+			statement.setInt(1, fromGrid.getX());
+			statement.setInt(2, toGrid.getX());
+			statement.setInt(3, fromGrid.getY());
+			statement.setInt(4, toGrid.getY());
+
+			int[] linkIds = new int[GridIndex.MAX_LINK_IDS];
+			int size = 0;
+			try (ResultSet rs = statement.executeQuery()) {
+				while (rs.next()) {
+					if (size == linkIds.length) linkIds = Arrays.copyOf(linkIds, size * 2);
+					linkIds[size++] = rs.getInt(1);
+				}
+			}
+			return Arrays.copyOf(linkIds, size);
+		} catch (SQLException e) {
+			throw new Sql2oException("Failed to fetch linkIds from " + table, e);
+		}
 	}
 	
 	/**
-	 * Retrieve all the crimes in the database within a certain time, latitude and longitude 
-	 * range.
+	 * Stream the crimes within a certain time, latitude and longitude range in (date, rowid) order, one page at a
+	 * time. Crimes are handed to the visitor as they are read, from the crime store when it covers the range and
+	 * from the database otherwise, so memory use does not depend on how many crimes match.
 	 * @param from starting crime point
 	 * @param to ending crime point
-	 * @param timeOfDay the time of day
+	 * @param after cursor to continue after, CrimeCursor.START for the first page
+	 * @param limit largest number of crimes in the page, negative for no limit
 	 * @param table table in database
-	 * @return the results of our query to the database
+	 * @param visitor receives the crimes
+	 * @return cursor of the next page, or null if this was the last one
+	 * @throws IOException when the visitor fails
+	 * @throws Sql2oException when the query fails
 	 */
-	public List<Crime> getCrimes(Crime from, Crime to, int timeOfDay, String table) {
-		try (Connection conn = db.open()) {
-			String sql = "SELECT date, address, latitude, longitude, type FROM " + table + " WHERE "
-					+ "latitude >= :fromLat AND latitude <= :toLat AND date >= :fromDate AND "
-					+ "longitude >= :fromLng AND longitude <= :toLng AND date <= :toDate;";
-
-			Query query = conn.createQuery(sql);
-			query.addParameter("fromLat", from.getLat())
-					.addParameter("toLat", to.getLat())
-					.addParameter("fromLng", from.getLng())
-					.addParameter("toLng", to.getLng())
-					.addParameter("fromDate", from.getDate())
-					.addParameter("toDate", to.getDate());
-
-			List<Crime> results = query.executeAndFetch(Crime.class);
-			return results;
-		} catch (Sql2oException e) {
-			logger.error("Failed to get crimes", e);
+	public CrimeCursor streamCrimes(Crime from, Crime to, CrimeCursor after, int limit, String table,
+									CrimeVisitor visitor) throws IOException, Sql2oException {
+		if (limit == 0) throw new IllegalArgumentException("Limit must not be 0");
+		CrimeStore crimes = crimeStore;
+		if (CRIMES_TABLE.equals(table) && crimes != null && crimes.covers(from.getDate())) {
+			return crimes.forEachCrime(from.getLat(), to.getLat(), from.getLng(), to.getLng(),
+					from.getDate(), to.getDate(), after, limit, visitor);
+		}
+		try (Connection conn = db.open();
+			 PreparedStatement statement = QueryTemplate.CRIMES_PAGE.prepare(conn.getJdbcConnection(), table)) {
+			statement.setDouble(1, from.getLat());
+			statement.setDouble(2, to.getLat());
+			statement.setInt(3, from.getDate());
+			statement.setDouble(4, from.getLng());
+			statement.setDouble(5, to.getLng());
+			statement.setInt(6, to.getDate());
+			statement.setInt(7, after.getDate());
+			statement.setInt(8, after.getDate());
+			statement.setLong(9, after.getRowId());
+			//One more than the page, to tell whether there is a next one. SQLite reads a negative limit as none.
+			statement.setLong(10, limit < 0 ? -1 : limit + 1L);
+
+			int count = 0, lastDate = 0;
+			long lastRowId = 0;
+			try (ResultSet rs = statement.executeQuery()) {
+				while (rs.next()) {
+					if (count == limit) return new CrimeCursor(lastDate, lastRowId);
+					lastRowId = rs.getLong(1);
+					lastDate = rs.getInt(2);
+					visitor.visit(new Crime(lastDate, rs.getString(3), rs.getString(6),
+							rs.getDouble(4), rs.getDouble(5), rs.getInt(7)));
+					count++;
+				}
+			}
 			return null;
-		}	
+		} catch (SQLException e) {
+			throw new Sql2oException("Failed to stream crimes from " + table, e);
+		}
 	}
-	
+
 	/**
 	 * Creates or updates the server.db database that holds all of the crime data.
 	 * Only includes data that has all of the fields we need and doesn't have a matching
 	 * compound primary key in the existing data: (date, linkId, type).
+	 * The data version moves on once the in-memory indexes have been rebuilt from the updated tables.
 	 * @param table table in database
 	 */
 	public void updateDB(String table) {
-		try (Connection conn = db.open()){
+		try (Connection conn = writerDb.open()){
 			DatabaseUpdater DatabaseUpdater = new DatabaseUpdater(conn);
+			DatabaseUpdater.setTilePyramid(tilePyramid);
+			DatabaseUpdater.setHalfLife(halfLife);
+			DatabaseUpdater.setLinkIdRequestsPerSecond(linkIdRequestsPerSecond);
 			DatabaseUpdater.initialUpdate();
 			DatabaseUpdater.update();
 		} catch (IOException e) {
@@ -135,42 +259,323 @@ public class SurvivalService {
 		} catch (Sql2oException e) {
 			logger.error("Failed to get crimes", e);
 		}
+		reloadGridIndex();
+		reloadCrimeStore();
+		//Also after a failed update, which may have committed part of its writes before failing.
+		dataVersion.increment();
 	}
 
 	/**
-	 * Based on the sum of alarm values of the grid the input coordinate in and the eight grids surrounding it, determine
-	 * a safety rating of one of red/yellow/green to denote a safety level for the input coordinate.
+	 * Keep an on-disk heatmap tile pyramid up to date with each database update.
+	 * @param tilePyramid the tiles, or null to stop
+	 */
+	public void setTilePyramid(TilePyramid tilePyramid) {
+		this.tilePyramid = tilePyramid;
+	}
+
+	/**
+	 * Set the half-life of the decayed alarm. Takes effect with the next database update, which rebuilds the decayed
+	 * alarms from the crimes if they were built with another half-life.
+	 * @param halfLife half-life in seconds
+	 */
+	public void setAlarmHalfLife(int halfLife) {
+		if (halfLife <= 0) throw new IllegalArgumentException("The half-life must be positive");
+		this.halfLife = halfLife;
+	}
+
+	/**
+	 * Set how many linkId requests the database updates send to MapQuest per second at most.
+	 * @param requestsPerSecond the rate
+	 */
+	public void setLinkIdRequestsPerSecond(double requestsPerSecond) {
+		if (requestsPerSecond <= 0) throw new IllegalArgumentException("The request rate must be positive");
+		this.linkIdRequestsPerSecond = requestsPerSecond;
+	}
+
+	/**
+	 * Cache of avoidLinkIds results for the grids table, with its hit, miss and eviction counters.
+	 * @return the cache
+	 */
+	public AvoidLinkIdsCache getAvoidLinkIdsCache() {
+		return avoidLinkIdsCache;
+	}
+
+	/**
+	 * Cache of rendered heatmap tiles, with its hit, miss and eviction counters.
+	 * @return the cache
+	 */
+	public TileCache getTileCache() {
+		return tileCache;
+	}
+
+	/**
+	 * Version of the data served, which changes with every database update.
+	 * @return the data version
+	 */
+	public DataVersion getDataVersion() {
+		return dataVersion;
+	}
+
+	/**
+	 * Rebuild the in-memory grid and link risk indexes from the 'grids' and 'linkrisks' tables and swap them in for
+	 * subsequent requests.
+	 * Requests already in flight keep using the snapshot they started with.
+	 */
+	public void reloadGridIndex() {
+		try (Connection conn = db.open()) {
+			if (!tableExists(conn, GRIDS_TABLE)) {
+				logger.info("There is no {} table yet, serving from an empty grid index", GRIDS_TABLE);
+				return;
+			}
+			gridIndex = GridIndex.load(conn, GRIDS_TABLE);
+			logger.info("Loaded {} grids into memory", gridIndex.size());
+			if (tableExists(conn, LINK_RISKS_TABLE)) {
+				linkRiskIndex = LinkRiskIndex.load(conn);
+				logger.info("Loaded {} link risks into memory", linkRiskIndex.size());
+			}
+			if (tableExists(conn, GRID_HOURS_TABLE)) {
+				hourlyAlarmIndex = HourlyAlarmIndex.load(conn);
+				logger.info("Loaded hourly alarms of {} grids into memory", hourlyAlarmIndex.size());
+			}
+			if (tableExists(conn, GRID_MONTHS_TABLE)) {
+				monthlyAlarmIndex = MonthlyAlarmIndex.load(conn, gridIndex);
+				logger.info("Loaded alarms of {} months into memory", monthlyAlarmIndex.months());
+			}
+			if (tableExists(conn, GRID_DECAY_TABLE)) {
+				decayedGridIndex = DecayedAlarm.load(conn, gridIndex);
+				logger.info("Loaded decayed alarms into memory");
+			}
+		} catch (Sql2oException e) {
+			logger.error("Failed to load grids into memory, keeping the previous index", e);
+		}
+	}
+
+	/**
+	 * Score alternative routes by the alarm of the grids they pass through, all against the same grid index
+	 * snapshot so that they can be compared with each other.
+	 * @param routes the routes
+	 * @return the risk of each route, in the same order
+	 * @throws IllegalArgumentException if there are more than MAX_ROUTES routes or a route is too long
+	 */
+	public RouteRisk[] getRouteRisks(Polyline[] routes) {
+		if (routes.length > MAX_ROUTES) {
+			throw new IllegalArgumentException("At most " + MAX_ROUTES + " routes may be scored at once");
+		}
+		GridIndex index = gridIndex;
+		RouteRisk[] risks = new RouteRisk[routes.length];
+		for (int i = 0; i < routes.length; i++) {
+			risks[i] = RouteRisk.score(index, routes[i]);
+		}
+		return risks;
+	}
+
+	/**
+	 * Get a heatmap tile of the current grid alarms, rendered on the first request for it after each update.
+	 * @param x tile column
+	 * @param y tile row
+	 * @param z zoom level, up to the zoom level of the grids
+	 * @return the PNG
+	 * @throws IllegalArgumentException if the tile does not exist
+	 */
+	public byte[] getTile(int x, int y, int z) {
+		long version = dataVersion.getCounter();
+		byte[] tile = tileCache.get(version, x, y, z);
+		if (tile == null) {
+			tile = HeatmapTiles.render(gridIndex, x, y, z);
+			tileCache.put(version, x, y, z, tile);
+		}
+		return tile;
+	}
+
+	/**
+	 * Reload the in-memory crime store from the 'crimes' table and swap it in for subsequent requests.
+	 */
+	public void reloadCrimeStore() {
+		try (Connection conn = db.open()) {
+			if (!tableExists(conn, CRIMES_TABLE)) return;
+			CrimeStore crimes = CrimeStore.load(conn);
+			crimeStore = crimes;
+			logger.info("Loaded {} crimes into memory", crimes.size());
+		} catch (Sql2oException e) {
+			logger.error("Failed to load crimes into memory, keeping the previous store", e);
+		}
+	}
+
+	/**
+	 * Determine the safety rating of a coordinate from the sum of alarm values of the square of grids within the
+	 * given radius around the grid of the coordinate. The rating thresholds are scaled by the size of the square,
+	 * so that a radius of 1 (DEFAULT_RATING_RADIUS) rates exactly like the 3x3 block. Only the grids table has alarm
+	 * by time of day, by date and decayed; other tables ignore the selection.
 	 * @param c Coordinate
+	 * @param radius number of grids on each side of the coordinate's grid to include
+	 * @param selection the alarm to rate from
 	 * @param table name of the table in the database to use to fetch the data used for the rating algorithm
 	 * @return one of red/yellow/green to indicate the alarm/safety level of the given coordinate location
 	 */
-	public String getSafetyRating(Coordinate c, String table) {
-		try (Connection conn = db.open()) {
-			Grid grid = new Grid(c.getLatitude(), c.getLongitude());
-			int x = grid.getX();
-			int y = grid.getY();
-			
-			String sql = "SELECT SUM(alarm) FROM " + table + " WHERE "
-					+ "x <= :x + 1 AND x >= :x - 1 AND y <= :y + 1 AND y >= :y - 1;";
-
-			Query query = conn.createQuery(sql);
-
-			query.addParameter("x", x).addParameter("y", y);
-
-			double result = query.executeScalar(Double.class);
-			
-			if (result > 18000) {
-				return "red";
-			} else if (result > 9000) {
-				return "yellow";
-			} else {
-				return "green";
+	public String getSafetyRating(Coordinate c, int radius, AlarmSelection selection, String table) {
+		checkRadius(radius);
+		int timeOfDay = selection.getTimeOfDay();
+		int x = (int) Grid.projectX(c.getLongitude()), y = (int) Grid.projectY(c.getLatitude());
+		if (GRIDS_TABLE.equals(table) && timeOfDay != HourlyAlarmIndex.ANY_TIME) {
+			return rate(hourlyAlarmIndex, timeOfDay, x, y, radius);
+		}
+		if (GRIDS_TABLE.equals(table)) {
+			GridIndex index = gridsFor(selection);
+			return index == null ? null : rate(index, x, y, radius);
+		}
+		try (Connection conn = db.open();
+			 PreparedStatement statement = QueryTemplate.ALARM_SUM.prepare(conn.getJdbcConnection(), table)) {
+			return rate(statement, x, y, radius);
+		} catch (SQLException | Sql2oException e) {
+			logger.error("Failed to get sum", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Determine the safety ratings of many coordinates at once, like getSafetyRating does for one. All coordinates
+	 * are projected to grids up front and rated against the same grid index snapshot, or through a single
+	 * connection and statement for other tables.
+	 * @param latitudes latitude of each coordinate
+	 * @param longitudes longitude of each coordinate, in the same order
+	 * @param radius number of grids on each side of a coordinate's grid to include
+	 * @param selection the alarm to rate from
+	 * @param table name of the table in the database to use to fetch the data used for the rating algorithm
+	 * @return one of red/yellow/green per coordinate, in the same order, or null if the table cannot be read
+	 */
+	public String[] getSafetyRatings(double[] latitudes, double[] longitudes, int radius, AlarmSelection selection,
+									 String table) {
+		checkRadius(radius);
+		int timeOfDay = selection.getTimeOfDay();
+		if (latitudes.length != longitudes.length) {
+			throw new IllegalArgumentException("Every latitude needs a longitude");
+		}
+		if (latitudes.length > MAX_BATCH_RATINGS) {
+			throw new IllegalArgumentException("At most " + MAX_BATCH_RATINGS + " coordinates may be rated at once");
+		}
+		int count = latitudes.length;
+		int[] xs = new int[count], ys = new int[count];
+		for (int i = 0; i < count; i++) {
+			xs[i] = (int) Grid.projectX(longitudes[i]);
+			ys[i] = (int) Grid.projectY(latitudes[i]);
+		}
+
+		String[] ratings = new String[count];
+		if (GRIDS_TABLE.equals(table) && timeOfDay != HourlyAlarmIndex.ANY_TIME) {
+			HourlyAlarmIndex index = hourlyAlarmIndex;
+			for (int i = 0; i < count; i++) {
+				ratings[i] = rate(index, timeOfDay, xs[i], ys[i], radius);
 			}
-			
-		} catch (Sql2oException e) {
+			return ratings;
+		}
+		if (GRIDS_TABLE.equals(table)) {
+			GridIndex index = gridsFor(selection);
+			if (index == null) return null;
+			for (int i = 0; i < count; i++) {
+				ratings[i] = rate(index, xs[i], ys[i], radius);
+			}
+			return ratings;
+		}
+
+		try (Connection conn = db.open();
+			 PreparedStatement statement = QueryTemplate.ALARM_SUM.prepare(conn.getJdbcConnection(), table)) {
+			for (int i = 0; i < count; i++) {
+				ratings[i] = rate(statement, xs[i], ys[i], radius);
+			}
+			return ratings;
+		} catch (SQLException | Sql2oException e) {
 			logger.error("Failed to get sum", e);
 			return null;
-		}	
+		}
+	}
+
+	private static void checkRadius(int radius) {
+		if (radius < 0 || radius > MAX_RATING_RADIUS) {
+			throw new IllegalArgumentException("Radius must be between 0 and " + MAX_RATING_RADIUS);
+		}
+	}
+
+	/**
+	 * The grids with the alarm a rating is made from: raw over all crimes, within a window of crime dates, or decayed.
+	 * @param selection any selection but one at a time of day
+	 * @return index of the grids, or null if it cannot be read
+	 */
+	private GridIndex gridsFor(AlarmSelection selection) {
+		if (selection.getScoring() == Scoring.DECAYED) return decayedGridIndex;
+		if (selection.getWindow() != null) return gridsIn(selection.getWindow());
+		return gridIndex;
+	}
+
+	/**
+	 * The grids with their alarm within a window of crime dates.
+	 * @param window the window
+	 * @return index of the grids, or null if the crimes at the edges of the window cannot be read
+	 */
+	private GridIndex gridsIn(DateWindow window) {
+		try (Connection conn = db.open()) {
+			return monthlyAlarmIndex.window(window, conn);
+		} catch (Sql2oException e) {
+			logger.error("Failed to sum the alarms within the date window", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Check whether a table exists in the database.
+	 * @param conn database connection
+	 * @param table name of the table
+	 * @return true if the table exists
+	 */
+	static boolean tableExists(Connection conn, String table) {
+		String sql = "SELECT COUNT(*) FROM sqlite_master WHERE type='table' AND name= :name";
+		Integer count = conn.createQuery(sql).addParameter("name", table).executeScalar(Integer.class);
+		return count != null && count > 0;
+	}
+
+	private static String rate(GridIndex index, int x, int y, int radius) {
+		return rate(index.sumAlarm(x - radius, y - radius, x + radius, y + radius), radius);
+	}
+
+	private static String rate(HourlyAlarmIndex index, int timeOfDay, int x, int y, int radius) {
+		return rate(index.sumAlarm(timeOfDay, x - radius, y - radius, x + radius, y + radius), radius);
+	}
+
+	/**
+	 * Rate the square of grids around a grid from a table other than the grids one.
+	 * @param statement ALARM_SUM of the table
+	 * @param x x index of the grid
+	 * @param y y index of the grid
+	 * @param radius radius of the square
+	 * @return one of red/yellow/green
+	 * @throws SQLException when the query fails
+	 */
+	private static String rate(PreparedStatement statement, int x, int y, int radius) throws SQLException {
+		statement.setInt(1, x - radius);
+		statement.setInt(2, x + radius);
+		statement.setInt(3, y - radius);
+		statement.setInt(4, y + radius);
+		try (ResultSet rs = statement.executeQuery()) {
+			return rate(rs.next() ? rs.getDouble(1) : 0, radius);
+		}
+	}
+
+	/**
+	 * Map the sum of alarm values of a square of grids to a safety rating. The thresholds are set for a 3x3 block
+	 * and grow with the number of grids in the square.
+	 * @param alarmSum sum of alarm values
+	 * @param radius radius of the square
+	 * @return one of red/yellow/green
+	 */
+	private static String rate(double alarmSum, int radius) {
+		int side = 2 * radius + 1;
+		double scale = side * side / 9.0;
+		if (alarmSum > 18000 * scale) {
+			return "red";
+		} else if (alarmSum > 9000 * scale) {
+			return "yellow";
+		} else {
+			return "green";
+		}
 	}
 
 
@@ -0,0 +1,114 @@
+package com.oose2016.group4.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory-bounded cache of rendered heatmap tiles. Tiles belong to the data version they were rendered from, and
+ * the whole cache is dropped as soon as a newer version shows up. Beyond the byte capacity, the least recently
+ * used tiles are evicted.
+ */
+public class TileCache {
+	/*
+	Rendered tiles are a few KB each, so this holds several thousand of them.
+	 */
+	static final long DEFAULT_CAPACITY = 32L << 20;
+
+	private final long capacity;
+	private final Map<Long, byte[]> tiles = new LinkedHashMap<>(256, 0.75f, true);
+	private long version = Long.MIN_VALUE;
+	private long bytes;
+	private long hits, misses, evictions;
+
+	/**
+	 * Create a cache of DEFAULT_CAPACITY bytes.
+	 */
+	public TileCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create a cache.
+	 * @param capacity largest number of bytes of tiles held
+	 */
+	public TileCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Look up a tile.
+	 * @param version data version of the caller
+	 * @param x tile column
+	 * @param y tile row
+	 * @param z zoom level
+	 * @return the PNG, or null if it is not cached for this version
+	 */
+	public synchronized byte[] get(long version, int x, int y, int z) {
+		moveTo(version);
+		byte[] tile = version == this.version ? tiles.get(key(x, y, z)) : null;
+		if (tile != null) hits++;
+		else misses++;
+		return tile;
+	}
+
+	/**
+	 * Cache a tile. Tiles of a version older than the cache's are dropped.
+	 * @param version data version the tile was rendered from
+	 * @param x tile column
+	 * @param y tile row
+	 * @param z zoom level
+	 * @param tile the PNG
+	 */
+	public synchronized void put(long version, int x, int y, int z, byte[] tile) {
+		moveTo(version);
+		if (version != this.version || tile.length > capacity) return;
+		byte[] previous = tiles.put(key(x, y, z), tile);
+		bytes += tile.length - (previous == null ? 0 : previous.length);
+		for (Iterator<byte[]> eldest = tiles.values().iterator(); bytes > capacity; evictions++) {
+			bytes -= eldest.next().length;
+			eldest.remove();
+		}
+	}
+
+	private void moveTo(long version) {
+		if (version > this.version) {
+			tiles.clear();
+			bytes = 0;
+			this.version = version;
+		}
+	}
+
+	/*
+	Tile indices stay below 2^GRID_ZOOM.
+	 */
+	private static long key(int x, int y, int z) {
+		return ((long) z << 48) | ((long) x << 24) | y;
+	}
+
+	public synchronized int size() {
+		return tiles.size();
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d tiles in %d bytes, %d hits, %d misses, %d evictions", tiles.size(), bytes, hits,
+				misses, evictions);
+	}
+}
@@ -0,0 +1,197 @@
+package com.oose2016.group4.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On-disk pyramid of heatmap tiles, {x}-{y}-{z}.png for every zoom level up to the grids', kept up to date after each
+ * database update by re-rendering only the tiles over grids whose alarm changed. Tiles are rendered in parallel on
+ * a fork-join pool, and each is written to a temporary file first and moved over the old one, so readers never see
+ * a partial tile. Tiles that end up without any alarm are deleted.
+ *
+ * The pyramid is only complete once a first build has rendered every tile over a known grid; until the COMPLETE
+ * marker exists, an update rebuilds all of them.
+ */
+public class TilePyramid {
+	static final String COMPLETE = ".complete";
+
+	/*
+	Tiles rendered by a task before it stops splitting its range.
+	 */
+	private static final int TILES_PER_TASK = 8;
+
+	private static final Logger logger = LoggerFactory.getLogger(TilePyramid.class);
+
+	private final Path directory;
+	private final ForkJoinPool pool;
+
+	/**
+	 * Create a pyramid rendered with one thread per processor.
+	 * @param directory directory holding the tiles, created if needed
+	 */
+	public TilePyramid(Path directory) {
+		this(directory, new ForkJoinPool());
+	}
+
+	/**
+	 * Create a pyramid.
+	 * @param directory directory holding the tiles, created if needed
+	 * @param pool pool to render on
+	 */
+	public TilePyramid(Path directory, ForkJoinPool pool) {
+		this.directory = directory;
+		this.pool = pool;
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Re-render the tiles over changed grids, at every zoom level. Without a complete pyramid, every tile over a grid
+	 * of the index is rendered instead.
+	 * @param index grids and their alarm values after the update
+	 * @param dirtyCells packed (x, y) indices of the grids whose alarm changed, see GridIndex.pack
+	 * @return number of tiles written or deleted
+	 * @throws IOException when a tile cannot be written; the pyramid is then rebuilt on the next update
+	 */
+	public int update(GridIndex index, Collection<Long> dirtyCells) throws IOException {
+		long start = System.nanoTime();
+		Files.createDirectories(directory);
+		Path marker = directory.resolve(COMPLETE);
+		boolean complete = Files.exists(marker);
+
+		long[] cells;
+		if (complete) {
+			cells = new long[dirtyCells.size()];
+			int i = 0;
+			for (long cell : dirtyCells) cells[i++] = cell;
+		} else {
+			cells = new long[index.size()];
+			for (int slot = 0; slot < cells.length; slot++) {
+				cells[slot] = GridIndex.pack(index.getX(slot), index.getY(slot));
+			}
+		}
+		long[] tiles = tilesOver(cells);
+
+		//A failure leaves some tiles stale, which only a full rebuild will catch.
+		Files.deleteIfExists(marker);
+		int written;
+		try {
+			written = pool.invoke(new RenderTask(index, tiles, 0, tiles.length));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		Files.write(marker, new byte[0]);
+		logger.info("Rendered {} heatmap tiles over {} grids in {} ms", written, cells.length,
+				(System.nanoTime() - start) / 1000000);
+		return written;
+	}
+
+	/**
+	 * Every tile over a set of grids, at each zoom level, without duplicates.
+	 * @param cells packed (x, y) grid indices
+	 * @return tiles as (z, x, y) packed by tileKey, in ascending order
+	 */
+	static long[] tilesOver(long[] cells) {
+		long[] tiles = new long[cells.length * (HeatmapTiles.GRID_ZOOM + 1)];
+		int count = 0;
+		for (long cell : cells) {
+			int x = (int) (cell >> 32), y = (int) cell;
+			for (int z = 0; z <= HeatmapTiles.GRID_ZOOM; z++) {
+				int shift = HeatmapTiles.GRID_ZOOM - z;
+				tiles[count++] = tileKey(x >> shift, y >> shift, z);
+			}
+		}
+		Arrays.sort(tiles, 0, count);
+		int distinct = 0;
+		for (int i = 0; i < count; i++) {
+			if (distinct == 0 || tiles[i] != tiles[distinct - 1]) tiles[distinct++] = tiles[i];
+		}
+		return Arrays.copyOf(tiles, distinct);
+	}
+
+	static long tileKey(int x, int y, int z) {
+		return ((long) z << 48) | ((long) x << 24) | y;
+	}
+
+	/**
+	 * Path of the file of a tile.
+	 * @param x tile column
+	 * @param y tile row
+	 * @param z zoom level
+	 * @return the path
+	 */
+	public Path tilePath(int x, int y, int z) {
+		return directory.resolve(x + "-" + y + "-" + z + ".png");
+	}
+
+	private void write(GridIndex index, long tile) throws IOException {
+		int z = (int) (tile >>> 48), x = (int) (tile >>> 24) & 0xffffff, y = (int) tile & 0xffffff;
+		Path path = tilePath(x, y, z);
+		byte[] png = HeatmapTiles.render(index, x, y, z);
+		if (png == HeatmapTiles.EMPTY_TILE) {
+			Files.deleteIfExists(path);
+			return;
+		}
+		Path temporary = Files.createTempFile(directory, ".tile", ".tmp");
+		try {
+			Files.write(temporary, png);
+			try {
+				Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	/**
+	 * Renders a range of tiles, splitting it in halves until it is small enough.
+	 */
+	private class RenderTask extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = 1L;
+
+		private final GridIndex index;
+		private final long[] tiles;
+		private final int from, to;
+
+		RenderTask(GridIndex index, long[] tiles, int from, int to) {
+			this.index = index;
+			this.tiles = tiles;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Integer compute() {
+			if (to - from > TILES_PER_TASK) {
+				int middle = (from + to) >>> 1;
+				RenderTask left = new RenderTask(index, tiles, from, middle);
+				left.fork();
+				int right = new RenderTask(index, tiles, middle, to).compute();
+				return left.join() + right;
+			}
+			try {
+				for (int i = from; i < to; i++) {
+					write(index, tiles[i]);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return to - from;
+		}
+	}
+}
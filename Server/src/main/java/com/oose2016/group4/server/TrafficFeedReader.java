@@ -0,0 +1,116 @@
+package com.oose2016.group4.server;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Reads the traffic source, a GeoJSON feature collection, one TrafficRecord per feature. Features without a numeric
+ * 'AADT_2014' property are skipped, and so are coordinates that are not plain [longitude, latitude] positions.
+ */
+public class TrafficFeedReader extends FeedReader<TrafficRecord> {
+	private boolean started, ended;
+
+	/**
+	 * Start reading a traffic feed.
+	 * @param in stream of the feed, closed along with this reader
+	 */
+	public TrafficFeedReader(Reader in) {
+		super(in);
+	}
+
+	@Override
+	public TrafficRecord next() throws IOException {
+		if (ended) return null;
+		if (!started) {
+			started = true;
+			json.beginObject();
+			if (!skipTo("features")) return end();
+			json.beginArray();
+		}
+		while (json.hasNext()) {
+			TrafficRecord record = nextFeature();
+			if (record != null) return record;
+		}
+		json.endArray();
+		return end();
+	}
+
+	private TrafficRecord end() throws IOException {
+		while (json.hasNext()) {
+			json.nextName();
+			json.skipValue();
+		}
+		json.endObject();
+		ended = true;
+		return null;
+	}
+
+	/**
+	 * Skip the members of the current object up to the value of a name.
+	 * @param name the name
+	 * @return true if the name was found, false at the end of the object
+	 * @throws IOException when the stream fails or the feed is malformed
+	 */
+	private boolean skipTo(String name) throws IOException {
+		while (json.hasNext()) {
+			if (json.nextName().equals(name)) return true;
+			json.skipValue();
+		}
+		return false;
+	}
+
+	private TrafficRecord nextFeature() throws IOException {
+		if (json.peek() != JsonToken.BEGIN_OBJECT) {
+			json.skipValue();
+			return null;
+		}
+		Double aadt = null;
+		int count = 0;
+		double[] latitudes = new double[16], longitudes = new double[16];
+
+		json.beginObject();
+		while (json.hasNext()) {
+			String name = json.nextName();
+			if (name.equals("properties") && json.peek() == JsonToken.BEGIN_OBJECT) {
+				json.beginObject();
+				while (json.hasNext()) {
+					if (json.nextName().equals("AADT_2014") && json.peek() == JsonToken.NUMBER) {
+						aadt = json.nextDouble();
+					} else {
+						json.skipValue();
+					}
+				}
+				json.endObject();
+			} else if (name.equals("geometry") && json.peek() == JsonToken.BEGIN_OBJECT) {
+				json.beginObject();
+				while (json.hasNext()) {
+					if (!json.nextName().equals("coordinates") || json.peek() != JsonToken.BEGIN_ARRAY) {
+						json.skipValue();
+						continue;
+					}
+					json.beginArray();
+					while (json.hasNext()) {
+						double[] position = nextPosition();
+						if (position == null) continue;
+						if (count == latitudes.length) {
+							latitudes = Arrays.copyOf(latitudes, count * 2);
+							longitudes = Arrays.copyOf(longitudes, count * 2);
+						}
+						longitudes[count] = position[0];
+						latitudes[count++] = position[1];
+					}
+					json.endArray();
+				}
+				json.endObject();
+			} else {
+				json.skipValue();
+			}
+		}
+		json.endObject();
+		if (aadt == null) return null;
+		return new TrafficRecord((int) (double) aadt, Arrays.copyOf(latitudes, count), Arrays.copyOf(longitudes, count));
+	}
+}
@@ -0,0 +1,42 @@
+package com.oose2016.group4.server;
+
+/**
+ * One feature of the traffic source, as decoded by TrafficFeedReader: the AADT of a stretch of road and the
+ * coordinates along it.
+ */
+public class TrafficRecord {
+	private final int aadt;
+	private final double[] latitudes, longitudes;
+
+	/**
+	 * TrafficRecord constructor
+	 * @param aadt 'AADT_2014' of the feature
+	 * @param latitudes latitude of each coordinate
+	 * @param longitudes longitude of each coordinate, in the same order
+	 */
+	public TrafficRecord(int aadt, double[] latitudes, double[] longitudes) {
+		this.aadt = aadt;
+		this.latitudes = latitudes;
+		this.longitudes = longitudes;
+	}
+
+	public int getAADT() {
+		return aadt;
+	}
+
+	/**
+	 * Number of coordinates.
+	 * @return size
+	 */
+	public int size() {
+		return latitudes.length;
+	}
+
+	public double getLatitude(int i) {
+		return latitudes[i];
+	}
+
+	public double getLongitude(int i) {
+		return longitudes[i];
+	}
+}
@@ -7,8 +7,8 @@ var map = L.map('map', {
 L.tileLayer('https://maps.wikimedia.org/osm-intl/{z}/{x}/{y}.png', {
 	maxZoom: 18
 }).addTo(map);
-L.tileLayer(server + '/v1/heatmap/{x}-{y}-{z}.png', {
-	maxZoom: 12
+L.tileLayer(server + '/v1/tiles/{x}-{y}-{z}.png', {
+	maxZoom: 18
 }).addTo(map);
 myControl = L.control({position: 'bottomleft'});
 myControl.onAdd = function(map) {
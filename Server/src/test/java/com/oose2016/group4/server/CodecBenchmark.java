@@ -0,0 +1,64 @@
+package com.oose2016.group4.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.google.gson.Gson;
+
+/**
+ * Compares the size and the encode plus decode time of a crime list in JSON and in the binary encoding.
+ * Not part of the test suite; run its main() on a warmed-up JVM, e.g. from the IDE.
+ */
+public class CodecBenchmark {
+	private static final int CRIMES = 5000, ROUNDS = 20, WARMUP = 5;
+
+	public static void main(String[] args) throws IOException {
+		Random random = new Random(9);
+		List<Crime> crimes = new ArrayList<>();
+		int date = 1400000000;
+		for (int i = 0; i < CRIMES; i++) {
+			date += random.nextInt(3600);
+			crimes.add(new Crime(date, random.nextInt(400) + " N CHARLES ST", "type" + random.nextInt(12),
+					39.2 + random.nextDouble() * 0.2, -76.7 + random.nextDouble() * 0.2, random.nextInt(50000000)));
+		}
+		Gson gson = new Gson();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		for (int run = 0; run < WARMUP + 1; run++) {
+			long start = System.nanoTime();
+			int jsonBytes = 0;
+			for (int round = 0; round < ROUNDS; round++) {
+				String json = gson.toJson(crimes);
+				jsonBytes = json.getBytes(StandardCharsets.UTF_8).length;
+				gson.fromJson(json, Crime[].class);
+			}
+			long jsonTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int round = 0; round < ROUNDS; round++) {
+				out.reset();
+				BinaryCodec.CrimeWriter writer = new BinaryCodec.CrimeWriter(out);
+				for (Crime crime : crimes) {
+					writer.visit(crime);
+				}
+				writer.finish(null);
+				BinaryCodec.CrimeReader reader = new BinaryCodec.CrimeReader(new ByteArrayInputStream(out.toByteArray()));
+				while (reader.next() != null) {
+					//decode every crime
+				}
+			}
+			long binaryTime = System.nanoTime() - start;
+
+			if (run == WARMUP) {
+				System.out.printf("%d crimes: JSON %d bytes, binary %d bytes%n", CRIMES, jsonBytes, out.size());
+				System.out.printf("%d round trips: JSON %d ms, binary %d ms%n", ROUNDS,
+						jsonTime / 1000000, binaryTime / 1000000);
+			}
+		}
+	}
+}
@@ -8,17 +8,52 @@ import org.sqlite.SQLiteDataSource;
 
 import spark.Spark;
 
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpServer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.ImageIO;
 
 import org.junit.*;
+import org.junit.rules.TemporaryFolder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static org.junit.Assert.*;
 
 import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
@@ -28,12 +63,21 @@ import org.powermock.modules.junit4.PowerMockRunner;
  */
 @RunWith(PowerMockRunner.class)
 @PrepareForTest({MapQuestHandler.class, CrimeAPIHandler.class})
+@PowerMockIgnore({"com.sun.net.httpserver.*", "sun.net.httpserver.*"})
 public class ServerTest {
 	
 	private final Logger logger = LoggerFactory.getLogger(ServerTest.class);
 	private final String TESTCRIMES = "TestCrimes";
+	private final String TESTGRIDS = "TestGrids";
 	
 	SQLiteDataSource dSource;
+
+	/**
+	 * Holds the temporary databases, with their -wal and -shm files, and tile directories of a test. It is deleted
+	 * after every test.
+	 */
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
 	// ------------------------------------------------------------------------//
 	// Setup - based on To-Do server unit tests.
 	// ------------------------------------------------------------------------//
@@ -174,8 +218,8 @@ public class ServerTest {
 			Coordinate from = new Coordinate(0, 0);
 			Coordinate to = new Coordinate(120, 120);
 			
-			int[] red = s.getAvoidLinkIds(from, to, TESTCRIMES).getRed();
-			int[] yellow = s.getAvoidLinkIds(from, to, TESTCRIMES).getYellow();
+			int[] red = s.getAvoidLinkIds(from, to, AlarmSelection.ALL, TESTCRIMES).getRed();
+			int[] yellow = s.getAvoidLinkIds(from, to, AlarmSelection.ALL, TESTCRIMES).getYellow();
 		
 			int[] redTarget = {0};
 			int[] yellowTarget = {1}; 
@@ -185,7 +229,7 @@ public class ServerTest {
 			
 			Coordinate from1 = null;
 			Coordinate to1 = null;
-			assertEquals(s.getAvoidLinkIds(from1, to1, TESTCRIMES), null);
+			assertEquals(s.getAvoidLinkIds(from1, to1, AlarmSelection.ALL, TESTCRIMES), null);
 		} catch (Sql2oException e) {
 			logger.error("Failed to get avoid linkIds in ServerTest", e);
 		} catch (Exception e) {
@@ -194,11 +238,12 @@ public class ServerTest {
 	}
 	
 	/**
-	 * Test getting getCrimes method within a specific range of coordinates from the
+	 * Test streaming the crimes within a specific range of coordinates from the
 	 * database.
+	 * @throws IOException if the crimes cannot be streamed
 	 */
 	@Test
-	public void testGetCrimes() {
+	public void testGetCrimes() throws IOException {
 		SurvivalService s = new SurvivalService(dSource);
 		
 		try (Connection conn = s.getDb().open()){
@@ -244,11 +289,12 @@ public class ServerTest {
 			double toLat = 400;
 			int fromDate = 20;
 			int toDate = 40;
-			int timeOfDay = 1000;
 			
 			Crime from = new Crime(fromDate, fromLat, fromLng);
 			Crime to = new Crime(toDate, toLat, toLng);
-			List<Crime> crimes = s.getCrimes(from, to, timeOfDay, "TestCrimes");
+			List<Crime> crimes = new ArrayList<>();
+			s.streamCrimes(from, to, CrimeCursor.START, -1, "TestCrimes", crimes::add);
+			assertEquals(3, crimes.size());
 			
 			crimes.forEach(crime -> {
 				assertTrue(crime.getLat() >= fromLat && crime.getLat() <= toLat
@@ -304,9 +350,13 @@ public class ServerTest {
 			});
 			
 			try {
-				assertEquals("green", s.getSafetyRating(new Coordinate(39.5, 76.5), table));
-				assertEquals("yellow", s.getSafetyRating(new Coordinate(29.5, 66.5), table));
-				assertEquals("red", s.getSafetyRating(new Coordinate(19.5, 56.5), table));
+				assertEquals("green", s.getSafetyRating(new Coordinate(39.5, 76.5), 1, AlarmSelection.ALL, table));
+				assertEquals("yellow", s.getSafetyRating(new Coordinate(29.5, 66.5), 1, AlarmSelection.ALL, table));
+				assertEquals("red", s.getSafetyRating(new Coordinate(19.5, 56.5), 1, AlarmSelection.ALL, table));
+				assertEquals("yellow", s.getSafetyRating(new Coordinate(19.5, 56.5), 2, AlarmSelection.ALL, table));
+				assertArrayEquals(new String[] {"red", "green", "yellow", "red"}, s.getSafetyRatings(
+						new double[] {19.5, 39.5, 29.5, 19.5}, new double[] {56.5, 76.5, 66.5, 56.5}, 1,
+						AlarmSelection.ALL, table));
 				
 			} catch (Exception e) {
 				logger.error("Failed to get safety rating", e);
@@ -314,10 +364,1650 @@ public class ServerTest {
 		}
 	}
 	
+	/**
+	 * Tests that the in-memory grid index answers the same avoid linkIds and alarm sums as the grids table.
+	 */
+	@Test
+	public void testGridIndex() {
+		SurvivalService s = new SurvivalService(dSource);
+		try (Connection conn = s.getDb().open()) {
+			createTestGrids(conn);
+			insertTestGrid(conn, new Grid(100, 200, 11, 2500, 1));
+			insertTestGrid(conn, new Grid(101, 200, 12, 3000, 1));
+			insertTestGrid(conn, new Grid(101, 201, 12, 2200, 1));
+			insertTestGrid(conn, new Grid(102, 199, 13, 1500, 1));
+			insertTestGrid(conn, new Grid(103, 199, 14, 900, 1));
+			insertTestGrid(conn, new Grid(300, 300, 15, 5000, 1));
+
+			GridIndex index = GridIndex.load(conn, TESTGRIDS);
+			assertEquals(6, index.size());
+			assertEquals(-1, index.find(99, 200));
+			assertEquals(12, index.getLinkId(index.find(101, 201)));
+
+			AvoidLinkIds ids = index.getAvoidLinkIds(new Grid(100, 201), new Grid(103, 199));
+			assertArrayEquals(new int[] {12, 11}, ids.getRed());
+			assertArrayEquals(new int[] {13}, ids.getYellow());
+
+			assertEquals(2500 + 3000 + 2200, index.sumAlarm(99, 199, 101, 201), 0);
+			assertEquals(0, index.sumAlarm(0, 0, 10, 10), 0);
+		}
+	}
+
+	/**
+	 * Tests that rectangle sums from the summed-area table match summing every grid of the rectangle.
+	 */
+	@Test
+	public void testSummedAreaTable() {
+		Random random = new Random(4);
+		int size = 500;
+		int[] xs = new int[size], ys = new int[size];
+		double[] alarms = new double[size];
+		for (int i = 0; i < size; i++) {
+			xs[i] = 1000 + random.nextInt(60);
+			ys[i] = 2000 + random.nextInt(40);
+			alarms[i] = random.nextInt(5000);
+		}
+		AlarmSummedAreaTable table = AlarmSummedAreaTable.build(size, xs, ys, alarms);
+
+		for (int n = 0; n < 200; n++) {
+			int fromX = 990 + random.nextInt(80), toX = fromX + random.nextInt(20);
+			int fromY = 1990 + random.nextInt(60), toY = fromY + random.nextInt(20);
+			double expected = 0;
+			for (int i = 0; i < size; i++) {
+				if (xs[i] >= fromX && xs[i] <= toX && ys[i] >= fromY && ys[i] <= toY) expected += alarms[i];
+			}
+			assertEquals(expected, table.sum(fromX, fromY, toX, toY), 0);
+		}
+		assertNull(AlarmSummedAreaTable.build(0, xs, ys, alarms));
+
+		//Decayed alarms are fractional, mixing large and tiny values: sums stay within the documented bound
+		for (int i = 0; i < size; i++) {
+			xs[i] = 1000 + random.nextInt(600);
+			ys[i] = 2000 + random.nextInt(400);
+			alarms[i] = random.nextDouble() * Math.pow(10, random.nextInt(8) - 3);
+		}
+		table = AlarmSummedAreaTable.build(size, xs, ys, alarms);
+		assertTrue(table.errorBound() < 1e-3);
+		for (int n = 0; n < 200; n++) {
+			int fromX = 990 + random.nextInt(620), toX = fromX + random.nextInt(100);
+			int fromY = 1990 + random.nextInt(420), toY = fromY + random.nextInt(100);
+			double expected = 0;
+			for (int i = 0; i < size; i++) {
+				if (xs[i] >= fromX && xs[i] <= toX && ys[i] >= fromY && ys[i] <= toY) expected += alarms[i];
+			}
+			assertEquals(expected, table.sum(fromX, fromY, toX, toY), table.errorBound());
+		}
+	}
+
+	/**
+	 * Tests that the best-first quadtree traversal ranks linkIds exactly like sorting every grid of the box by alarm.
+	 */
+	@Test
+	public void testAlarmQuadTree() {
+		Random random = new Random(3);
+		int size = 5000;
+		int[] xs = new int[size], ys = new int[size], linkIds = new int[size];
+		double[] alarms = new double[size];
+		for (int i = 0; i < size; i++) {
+			xs[i] = 70000 + random.nextInt(300);
+			ys[i] = 100000 + random.nextInt(300);
+			linkIds[i] = random.nextInt(400);
+			alarms[i] = i * 0.5 + (i % 7) * 1000;
+		}
+		AlarmQuadTree tree = AlarmQuadTree.build(size, xs, ys, linkIds, alarms);
+
+		for (int n = 0; n < 50; n++) {
+			int fromX = 70000 + random.nextInt(300), toX = fromX + random.nextInt(150);
+			int fromY = 100000 + random.nextInt(300), toY = fromY + random.nextInt(150);
+
+			List<Integer> inBox = new LinkedList<>();
+			for (int i = 0; i < size; i++) {
+				if (xs[i] >= fromX && xs[i] <= toX && ys[i] >= fromY && ys[i] <= toY) inBox.add(i);
+			}
+			inBox.sort((a, b) -> Double.compare(alarms[b], alarms[a]));
+			List<Integer> red = new LinkedList<>(), yellow = new LinkedList<>();
+			for (int i : inBox) {
+				List<Integer> band = alarms[i] > 2000 ? red : alarms[i] > 1000 ? yellow : null;
+				if (band != null && band.size() < 20 && !band.contains(linkIds[i])) band.add(linkIds[i]);
+			}
+
+			AvoidLinkIds ids = tree.topLinkIds(fromX, fromY, toX, toY, 2000, 1000, 20);
+			assertArrayEquals(red.stream().mapToInt(Integer::intValue).toArray(), ids.getRed());
+			assertArrayEquals(yellow.stream().mapToInt(Integer::intValue).toArray(), ids.getYellow());
+		}
+
+		//A tree over other alarms of the same grids, sharing the nodes, ranks like one built from scratch.
+		double[] others = new double[size];
+		for (int i = 0; i < size; i++) {
+			others[i] = alarms[size - 1 - i];
+		}
+		AlarmQuadTree shared = tree.withAlarms(others), built = AlarmQuadTree.build(size, xs, ys, linkIds, others);
+		for (int n = 0; n < 10; n++) {
+			int fromX = 70000 + random.nextInt(300), fromY = 100000 + random.nextInt(300);
+			AvoidLinkIds expected = built.topLinkIds(fromX, fromY, fromX + 100, fromY + 100, 2000, 1000, 20);
+			AvoidLinkIds ids = shared.topLinkIds(fromX, fromY, fromX + 100, fromY + 100, 2000, 1000, 20);
+			assertArrayEquals(expected.getRed(), ids.getRed());
+			assertArrayEquals(expected.getYellow(), ids.getYellow());
+		}
+	}
+
+	/**
+	 * Tests that the updater fills and refreshes the per-link risk aggregates, and that links are ranked by them.
+	 * @throws Exception if the temporary database cannot be created
+	 */
+	@Test
+	public void testLinkRisks() throws Exception {
+		Sql2o db = new Sql2o(tempDataSource());
+		try (Connection conn = db.open()) {
+			DatabaseUpdater updater = new DatabaseUpdater(conn);
+			updater.initialUpdate();
+			String sql = "INSERT INTO grids VALUES(:x, :y, :linkId, :alarm, :AADT);";
+			conn.createQuery(sql).bind(new Grid(100, 200, 7, 800, 1)).executeUpdate();
+			conn.createQuery(sql).bind(new Grid(101, 200, 7, 700, 1)).executeUpdate();
+			conn.createQuery(sql).bind(new Grid(102, 200, 8, 2500, 1)).executeUpdate();
+			for (int i = 0; i < 4; i++) {
+				conn.createQuery(sql).bind(new Grid(100 + i, 201, 9, 600, 1)).executeUpdate();
+			}
+			conn.createQuery(sql).bind(new Grid(500, 500, 10, 9000, 1)).executeUpdate();
+
+			//The aggregates are filled from the existing grids on the next run.
+			updater.initialUpdate();
+			Grid from = new Grid(100, 201), to = new Grid(103, 200);
+			AvoidLinkIds ids = LinkRiskIndex.load(conn).getAvoidLinkIds(from, to);
+			assertArrayEquals(new int[] {8, 9}, ids.getRed());
+			assertArrayEquals(new int[] {7}, ids.getYellow());
+
+			conn.createQuery("UPDATE grids SET alarm = 1500 WHERE x = 100 AND y = 200").executeUpdate();
+			updater.markLinkDirty(7);
+			updater.refreshLinkRisks();
+			ids = LinkRiskIndex.load(conn).getAvoidLinkIds(from, to);
+			assertArrayEquals(new int[] {8, 9, 7}, ids.getRed());
+			assertArrayEquals(new int[0], ids.getYellow());
+		}
+	}
+
+	/**
+	 * Tests that avoidLinkIds ranks links by their summed alarm by default, and by their single worst grid when an
+	 * alarm selection is given, as documented at the endpoint.
+	 * @throws Exception if the temporary database cannot be created
+	 */
+	@Test
+	public void testAvoidLinkIdsRanking() throws Exception {
+		SQLiteDataSource dataSource = tempDataSource();
+		double lat = 39.3, lng = -76.6, gridWidth = 360.0 / 262144;
+		int x = (int) Grid.projectX(lng), y = (int) Grid.projectY(lat);
+		try (Connection conn = new Sql2o(dataSource).open()) {
+			DatabaseUpdater updater = new DatabaseUpdater(conn);
+			updater.initialUpdate();
+			String sql = "INSERT INTO grids VALUES(:x, :y, :linkId, :alarm, :AADT);";
+			conn.createQuery(sql).bind(new Grid(x, y, 5, 2500, 1)).executeUpdate();
+			for (int i = 1; i <= 3; i++) {
+				conn.createQuery(sql).bind(new Grid(x + i, y, 6, 800, 1)).executeUpdate();
+			}
+			updater.initialUpdate();
+			//Decayed alarms as of the same date as the raw ones, thus not weighed down.
+			conn.createQuery("INSERT INTO griddecay SELECT x, y, alarm, 0, 86400 FROM grids").executeUpdate();
+		}
+
+		SurvivalService s = new SurvivalService(dataSource);
+		Coordinate from = new Coordinate(lat, lng), to = new Coordinate(lat, lng + 3 * gridWidth);
+		Coordinate.sortAndExpand(from, to);
+		AvoidLinkIds summed = s.getAvoidLinkIds(from, to, AlarmSelection.ALL, "grids");
+		assertArrayEquals(new int[] {5, 6}, summed.getRed());
+		assertArrayEquals(new int[0], summed.getYellow());
+		AvoidLinkIds worst = s.getAvoidLinkIds(from, to, AlarmSelection.DECAYED, "grids");
+		assertArrayEquals(new int[] {5}, worst.getRed());
+		assertArrayEquals(new int[0], worst.getYellow());
+	}
+
+	/**
+	 * Tests that pooled readers keep reading the last committed data while the writer holds a transaction open,
+	 * and that readers cannot write.
+	 * @throws Exception if the temporary database cannot be created
+	 */
+	@Test
+	public void testConnectionPool() throws Exception {
+		File file = File.createTempFile("survival", ".db", temp.getRoot());
+		SQLiteConnectionPool pool = new SQLiteConnectionPool("jdbc:sqlite:" + file.getAbsolutePath(), 1);
+		Sql2o readers = new Sql2o(pool), writer = new Sql2o(pool.getWriter());
+		try {
+			try (Connection conn = writer.open()) {
+				conn.createQuery("CREATE TABLE pooltest (value INTEGER NOT NULL)").executeUpdate();
+				conn.createQuery("INSERT INTO pooltest VALUES (1)").executeUpdate();
+			}
+
+			try (Connection update = writer.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+				update.createQuery("INSERT INTO pooltest VALUES (2)").executeUpdate();
+				try (Connection conn = readers.open()) {
+					assertEquals(1, (int) conn.createQuery("SELECT COUNT(*) FROM pooltest").executeScalar(Integer.class));
+				}
+				update.commit();
+			}
+
+			//The single reader has been handed back, and now sees the committed row.
+			try (Connection conn = readers.open()) {
+				assertEquals(2, (int) conn.createQuery("SELECT COUNT(*) FROM pooltest").executeScalar(Integer.class));
+				try {
+					conn.createQuery("INSERT INTO pooltest VALUES (3)").executeUpdate();
+					fail("Readers should be read-only");
+				} catch (Sql2oException e) {
+					//expected
+				}
+			}
+		} finally {
+			pool.close();
+		}
+	}
+
+	/**
+	 * Tests that pooled connections hand back the same prepared statement for the same SQL, and that queries against
+	 * tables named in a request only run against tables of the database.
+	 */
+	@Test
+	public void testStatementCache() throws Exception {
+		File file = File.createTempFile("survival", ".db", temp.getRoot());
+		SQLiteConnectionPool pool = new SQLiteConnectionPool("jdbc:sqlite:" + file.getAbsolutePath(), 1);
+		Coordinate c = new Coordinate(39.3, -76.6);
+		Grid home = new Grid(c.getLatitude(), c.getLongitude());
+		try {
+			try (Connection conn = new Sql2o(pool.getWriter()).open()) {
+				createTestGrids(conn);
+				insertTestGrid(conn, new Grid(home.getX(), home.getY(), 11, 9000, 1));
+				insertTestGrid(conn, new Grid(home.getX() + 1, home.getY(), 12, 9500, 1));
+			}
+
+			String sql = "SELECT SUM(alarm) FROM " + TESTGRIDS + " WHERE x >= ?";
+			java.sql.PreparedStatement first;
+			try (java.sql.Connection conn = pool.getConnection()) {
+				first = conn.prepareStatement(sql);
+				first.setInt(1, 0);
+				java.sql.ResultSet rs = first.executeQuery();
+				assertTrue(rs.next());
+				assertEquals(18500, rs.getDouble(1), 0);
+				first.close();
+				assertTrue(first.isClosed());
+
+				//Still held open by the borrower, so a second one gets a statement of its own.
+				java.sql.PreparedStatement held = conn.prepareStatement(sql);
+				java.sql.PreparedStatement other = conn.prepareStatement(sql);
+				assertNotSame(held, other);
+				other.close();
+			}
+			try (java.sql.Connection conn = pool.getConnection()) {
+				java.sql.PreparedStatement again = conn.prepareStatement(sql);
+				assertSame(first, again);
+				again.setInt(1, home.getX() + 1);
+				try (java.sql.ResultSet rs = again.executeQuery()) {
+					assertTrue(rs.next());
+					assertEquals(9500, rs.getDouble(1), 0);
+				}
+				again.close();
+			}
+
+			SurvivalService s = new SurvivalService(pool, pool.getWriter());
+			assertEquals("red", s.getSafetyRating(c, 1, AlarmSelection.ALL, TESTGRIDS));
+			assertEquals("red", s.getSafetyRating(c, 1, AlarmSelection.ALL, TESTGRIDS));
+			assertNull(s.getSafetyRating(c, 1, AlarmSelection.ALL, "NoSuchTable"));
+			assertNull(s.getSafetyRating(c, 1, AlarmSelection.ALL, TESTGRIDS + " WHERE 1=1; --"));
+			assertNull(s.getAvoidLinkIds(c, c, AlarmSelection.ALL, TESTGRIDS + ", sqlite_master"));
+			assertNotNull(s.getAvoidLinkIds(c, c, AlarmSelection.ALL, TESTGRIDS));
+		} finally {
+			pool.close();
+		}
+	}
+
+	/**
+	 * Tests that the in-memory crime store returns the same crimes as filtering every crime, and that a store cut
+	 * off at its size limit only claims to cover the dates it holds.
+	 * @throws Exception if the temporary database cannot be created
+	 */
+	@Test
+	public void testCrimeStore() throws Exception {
+		SQLiteDataSource dataSource = tempDataSource();
+		Random random = new Random(7);
+		List<Crime> all = insertRandomCrimes(dataSource, random, 2000);
+
+		SurvivalService s = new SurvivalService(dataSource);
+		for (int trial = 0; trial < 50; trial++) {
+			double fromLat = 39.2 + random.nextDouble() * 0.2, fromLng = -76.7 + random.nextDouble() * 0.2;
+			double toLat = fromLat + random.nextDouble() * 0.1, toLng = fromLng + random.nextDouble() * 0.1;
+			int fromDate = random.nextInt(1000) * 86400, toDate = fromDate + random.nextInt(500) * 86400;
+
+			List<Integer> expected = new ArrayList<>();
+			for (Crime c : all) {
+				if (c.getLat() >= fromLat && c.getLat() <= toLat && c.getLng() >= fromLng && c.getLng() <= toLng
+						&& c.getDate() >= fromDate && c.getDate() <= toDate) {
+					expected.add(c.getLinkId());
+				}
+			}
+			List<Integer> actual = new ArrayList<>();
+			s.streamCrimes(new Crime(fromDate, fromLat, fromLng), new Crime(toDate, toLat, toLng),
+					CrimeCursor.START, -1, "crimes", c -> actual.add(c.getLinkId()));
+			expected.sort(null);
+			actual.sort(null);
+			assertEquals(expected, actual);
+		}
+
+		try (Connection conn = new Sql2o(dataSource).open()) {
+			CrimeStore half = CrimeStore.load(conn, 1000);
+			assertEquals(1000, half.size());
+			assertFalse(half.covers(0));
+			assertTrue(half.covers(999 * 86400 + 1));
+			assertTrue(CrimeStore.load(conn).covers(0));
+		}
+	}
+
+	/**
+	 * Tests that paging through crimes with a cursor lists every matching crime once, in (date, rowid) order, both
+	 * from the crime store and from the database, with the same fields, and that no time of day is needed.
+	 * @throws Exception if the temporary database cannot be created
+	 */
+	@Test
+	public void testCrimePages() throws Exception {
+		SQLiteDataSource dataSource = tempDataSource();
+		Random random = new Random(8);
+		List<Crime> all = insertRandomCrimes(dataSource, random, 1500);
+		try (Connection conn = new Sql2o(dataSource).open()) {
+			conn.createQuery("CREATE TABLE " + TESTCRIMES + " AS SELECT * FROM crimes ORDER BY rowid").executeUpdate();
+		}
+		SurvivalService s = new SurvivalService(dataSource);
+
+		Crime from = new Crime(200 * 86400, 39.25, -76.65), to = new Crime(800 * 86400, 39.35, -76.55);
+		List<Integer> expected = new ArrayList<>();
+		all.stream()
+				.filter(c -> c.getLat() >= from.getLat() && c.getLat() <= to.getLat() && c.getLng() >= from.getLng()
+						&& c.getLng() <= to.getLng() && c.getDate() >= from.getDate() && c.getDate() <= to.getDate())
+				.sorted((a, b) -> a.getDate() != b.getDate()
+						? Integer.compare(a.getDate(), b.getDate()) : Integer.compare(a.getLinkId(), b.getLinkId()))
+				.forEach(c -> expected.add(c.getLinkId()));
+		assertTrue(expected.size() > 20);
+
+		for (String table : new String[] {"crimes", TESTCRIMES}) {
+			List<Integer> listed = new ArrayList<>();
+			List<Integer> dates = new ArrayList<>();
+			CrimeCursor cursor = CrimeCursor.START;
+			int pages = 0;
+			do {
+				int before = dates.size();
+				cursor = s.streamCrimes(from, to, cursor, 7, table, c -> dates.add(c.getDate()));
+				assertTrue(dates.size() - before <= 7);
+				if (cursor != null) cursor = CrimeCursor.decode(cursor.encode());
+				pages++;
+			} while (cursor != null);
+			assertEquals((expected.size() + 6) / 7, pages);
+
+			s.streamCrimes(from, to, CrimeCursor.START, -1, table, c -> listed.add(c.getDate()));
+			assertEquals(expected.size(), listed.size());
+			assertEquals(listed, dates);
+		}
+
+		for (String table : new String[] {"crimes", TESTCRIMES}) {
+			List<Integer> stored = new ArrayList<>();
+			s.streamCrimes(from, to, CrimeCursor.START, -1, table, c -> stored.add(c.getLinkId()));
+			assertEquals(expected, stored);
+		}
+
+		//Crimes are listed at every time of day, so the endpoint does not take a request without one as invalid.
+		String url = "http://localhost:" + Bootstrap.getPort() + "/v1/crimes?fromLat=39.25&fromLng=-76.65"
+				+ "&toLat=39.35&toLng=-76.55&fromDate=0&limit=1";
+		assertEquals(404, ((HttpURLConnection) new URL(url).openConnection()).getResponseCode());
+		assertNotEquals(404, ((HttpURLConnection) new URL(url + "&toDate=1").openConnection()).getResponseCode());
+	}
+
+	/**
+	 * Tests that the binary encoding gives back what was encoded, that it is much smaller than JSON, and that the
+	 * server picks it through the Accept header or the format parameter. Encoding speed is compared by
+	 * CodecBenchmark, outside of the instrumenting test runner.
+	 * @throws Exception if encoding fails or the server cannot be reached
+	 */
+	@Test
+	public void testBinaryCodec() throws Exception {
+		Random random = new Random(9);
+		int[] red = new int[20], yellow = new int[7];
+		for (int i = 0; i < red.length; i++) red[i] = random.nextInt();
+		for (int i = 0; i < yellow.length; i++) yellow[i] = 30000000 + random.nextInt(100000);
+		AvoidLinkIds ids = BinaryCodec.decodeAvoidLinkIds(new ByteArrayInputStream(
+				BinaryCodec.encode(new AvoidLinkIds(red, yellow))));
+		assertArrayEquals(red, ids.getRed());
+		assertArrayEquals(yellow, ids.getYellow());
+		ids = BinaryCodec.decodeAvoidLinkIds(new ByteArrayInputStream(
+				BinaryCodec.encode(new AvoidLinkIds(new int[0], new int[0]))));
+		assertEquals(0, ids.getRed().length + ids.getYellow().length);
+
+		for (String rating : new String[] {"green", "yellow", "red"}) {
+			assertEquals(rating, BinaryCodec.decodeRating(new ByteArrayInputStream(BinaryCodec.encodeRating(rating))));
+		}
+		try {
+			BinaryCodec.decodeRating(new ByteArrayInputStream(BinaryCodec.encode(new AvoidLinkIds(red, yellow))));
+			fail("A linkIds message is not a rating");
+		} catch (IOException e) {
+			//expected
+		}
+
+		List<Crime> crimes = new ArrayList<>();
+		int date = 1400000000;
+		for (int i = 0; i < 5000; i++) {
+			date += random.nextInt(3600);
+			String type = i % 97 == 0 ? null : "type" + random.nextInt(12);
+			crimes.add(new Crime(date, random.nextInt(400) + " N CHARLES ST", type,
+					39.2 + random.nextDouble() * 0.2, -76.7 + random.nextDouble() * 0.2, random.nextInt(50000000)));
+		}
+		CrimeCursor cursor = new CrimeCursor(date, 123456789L);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryCodec.CrimeWriter writer = new BinaryCodec.CrimeWriter(out);
+		for (Crime crime : crimes) writer.visit(crime);
+		writer.finish(cursor);
+		byte[] binary = out.toByteArray();
+
+		BinaryCodec.CrimeReader reader = new BinaryCodec.CrimeReader(new ByteArrayInputStream(binary));
+		for (Crime expected : crimes) {
+			Crime actual = reader.next();
+			assertEquals(expected.getDate(), actual.getDate());
+			assertEquals(expected.getLat(), actual.getLat(), 1e-6);
+			assertEquals(expected.getLng(), actual.getLng(), 1e-6);
+			assertEquals(expected.getLinkId(), actual.getLinkId());
+			assertEquals(expected.getAddress(), actual.getAddress());
+			assertEquals(expected.getType() == null ? "" : expected.getType(), actual.getType());
+		}
+		assertNull(reader.next());
+		assertEquals(cursor.getDate(), reader.getNextCursor().getDate());
+		assertEquals(cursor.getRowId(), reader.getNextCursor().getRowId());
+
+		Gson gson = new Gson();
+		String json = gson.toJson(crimes);
+		logger.info("{} crimes: {} bytes of JSON, {} bytes binary", crimes.size(),
+				json.getBytes(StandardCharsets.UTF_8).length, binary.length);
+		assertTrue(binary.length * 4 < json.getBytes(StandardCharsets.UTF_8).length);
+
+		//Content negotiation on the running server, which has no grids and thus rates everything green.
+		String url = "http://localhost:" + Bootstrap.getPort() + "/v1/safety/rating?lat=39.3&lng=-76.6";
+		HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+		conn.setRequestProperty("Accept", BinaryCodec.MEDIA_TYPE);
+		assertEquals(BinaryCodec.MEDIA_TYPE, conn.getContentType());
+		assertEquals("green", BinaryCodec.decodeRating(conn.getInputStream()));
+		conn = (HttpURLConnection) new URL(url + "&format=bin").openConnection();
+		assertEquals("green", BinaryCodec.decodeRating(conn.getInputStream()));
+		conn = (HttpURLConnection) new URL(url).openConnection();
+		assertTrue(conn.getContentType().startsWith("application/json"));
+		try (Scanner scanner = new Scanner(conn.getInputStream(), "UTF-8")) {
+			assertEquals("\"green\"", scanner.useDelimiter("\\A").next());
+		}
+	}
+
+	/**
+	 * Tests the cache validators and gzip negotiation, and that the running server answers a request for the data
+	 * version the client already holds with 304.
+	 * @throws Exception if the server cannot be reached
+	 */
+	@Test
+	public void testHttpCaching() throws Exception {
+		DataVersion version = new DataVersion();
+		String etag = HttpCaching.etag(version, false, true);
+		assertTrue(HttpCaching.matches(etag, etag));
+		assertTrue(HttpCaching.matches("\"other\", W/" + etag, etag));
+		assertTrue(HttpCaching.matches("*", etag));
+		assertFalse(HttpCaching.matches(null, etag));
+		assertFalse(HttpCaching.matches(HttpCaching.etag(version, false, false), etag));
+		assertFalse(HttpCaching.matches(HttpCaching.etag(version, true, true), etag));
+		version.increment();
+		assertFalse(HttpCaching.matches(etag, HttpCaching.etag(version, false, true)));
+
+		assertTrue(HttpCaching.acceptsGzip("gzip, deflate"));
+		assertTrue(HttpCaching.acceptsGzip("deflate, GZIP;q=0.5"));
+		assertTrue(HttpCaching.acceptsGzip("*"));
+		assertFalse(HttpCaching.acceptsGzip(null));
+		assertFalse(HttpCaching.acceptsGzip("identity"));
+		assertFalse(HttpCaching.acceptsGzip("gzip;q=0"));
+		assertFalse(HttpCaching.acceptsGzip("*, gzip;q=0"));
+
+		String url = "http://localhost:" + Bootstrap.getPort() + "/v1/safety/rating?lat=39.3&lng=-76.6";
+		HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+		assertEquals(200, conn.getResponseCode());
+		String served = conn.getHeaderField("ETag");
+		assertNotNull(served);
+		//Too small to be worth compressing.
+		assertNull(conn.getHeaderField("Content-Encoding"));
+
+		conn = (HttpURLConnection) new URL(url).openConnection();
+		conn.setRequestProperty("If-None-Match", served);
+		assertEquals(304, conn.getResponseCode());
+		conn = (HttpURLConnection) new URL(url + "&format=bin").openConnection();
+		conn.setRequestProperty("If-None-Match", served);
+		assertEquals(200, conn.getResponseCode());
+	}
+
+	/**
+	 * Tests that the running server rates a batch of coordinates in order, in JSON and binary, and rejects invalid
+	 * coordinates.
+	 * @throws Exception if the server cannot be reached
+	 */
+	@Test
+	public void testBatchSafetyRatings() throws Exception {
+		String url = "http://localhost:" + Bootstrap.getPort() + "/v1/safety/ratings";
+		StringBuilder body = new StringBuilder("[");
+		for (int i = 0; i < 3000; i++) {
+			body.append(i == 0 ? "" : ",").append("[39.").append(i).append(",-76.6]");
+		}
+		body.append("]");
+
+		HttpURLConnection conn = postJson(url, body.toString());
+		assertEquals(200, conn.getResponseCode());
+		try (Scanner scanner = new Scanner(conn.getInputStream(), "UTF-8")) {
+			String[] ratings = new Gson().fromJson(scanner.useDelimiter("\\A").next(), String[].class);
+			assertEquals(3000, ratings.length);
+			assertEquals("green", ratings[2999]);
+		}
+		conn = postJson(url + "?format=bin", "[[39.3,-76.6],[39.4,-76.5]]");
+		assertArrayEquals(new String[] {"green", "green"}, BinaryCodec.decodeRatings(conn.getInputStream()));
+		assertEquals(400, postJson(url, "[[39.3,-76.6],[91,0]]").getResponseCode());
+		assertEquals(400, postJson(url, "[[39.3]]").getResponseCode());
+	}
+
+	/**
+	 * Tests polyline decoding, that walking a line visits a connected chain of grids from its start to its end, and
+	 * that routes count every grid they cross once.
+	 */
+	@Test
+	public void testRouteRisk() {
+		Polyline example = Polyline.decode("_p~iF~ps|U_ulLnnqC_mqNvxq`@");
+		assertEquals(3, example.size());
+		assertEquals(40.7, example.getLatitude(1), 1e-9);
+		assertEquals(-126.453, example.getLongitude(2), 1e-9);
+		try {
+			Polyline.decode("_p~iF~ps|U_ulL");
+			fail("A polyline needs a longitude for every latitude");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+
+		Random random = new Random(13);
+		for (int n = 0; n < 200; n++) {
+			double fromX = 1000 + random.nextDouble() * 50, fromY = 2000 + random.nextDouble() * 50;
+			double toX = n % 10 == 0 ? fromX : 1000 + random.nextDouble() * 50, toY = 2000 + random.nextDouble() * 50;
+			List<long[]> cells = new ArrayList<>();
+			RouteRisk.walk(fromX, fromY, toX, toY, (x, y) -> cells.add(new long[] {x, y}));
+			assertArrayEquals(new long[] {(long) fromX, (long) fromY}, cells.get(0));
+			assertArrayEquals(new long[] {(long) toX, (long) toY}, cells.get(cells.size() - 1));
+			assertEquals(Math.abs((int) toX - (int) fromX) + Math.abs((int) toY - (int) fromY) + 1, cells.size());
+			for (int i = 1; i < cells.size(); i++) {
+				long[] a = cells.get(i - 1), b = cells.get(i);
+				assertEquals(1, Math.abs(a[0] - b[0]) + Math.abs(a[1] - b[1]));
+			}
+		}
+
+		SurvivalService s = new SurvivalService(dSource);
+		try (Connection conn = s.getDb().open()) {
+			createTestGrids(conn);
+			double lat = 39.3, width = 360.0 / 262144;
+			int x = (int) Grid.projectX(-76.6), y = (int) Grid.projectY(lat);
+			//Middle of grid x, so that rounding to polyline precision keeps to the same grids.
+			double lng = (x + 0.5) * width - 180;
+			for (int i = 0; i < 10; i++) {
+				insertTestGrid(conn, new Grid(x + i, y, 20 + i, 100, 1));
+			}
+			insertTestGrid(conn, new Grid(x, y + 1, 40, 5000, 1));
+			GridIndex index = GridIndex.load(conn, TESTGRIDS);
+
+			//East across 10 grids, then back west over the same ones.
+			double east = lng + 9 * width;
+			Polyline route = Polyline.decode(Polyline.encode(new double[] {lat, lat, lat}, new double[] {lng, east, lng}));
+			RouteRisk risk = RouteRisk.score(index, route);
+			assertEquals(1000, risk.getRisk(), 0);
+			assertArrayEquals(new double[] {1000, 0}, risk.getSegments(), 0);
+			assertEquals(10, risk.getCells());
+			assertEquals(0, RouteRisk.score(index, Polyline.decode("")).getRisk(), 0);
+
+			//Back and forth between two far apart points, over the same grids every time.
+			double[] lats = new double[41], lngs = new double[41];
+			for (int i = 0; i < lats.length; i++) {
+				lats[i] = lat;
+				lngs[i] = i % 2 == 0 ? lng : lng + 5000 * width;
+			}
+			try {
+				RouteRisk.score(index, Polyline.decode(Polyline.encode(lats, lngs)));
+				fail("Walking 40 segments of 5000 grids is over the limit");
+			} catch (IllegalArgumentException e) {
+				//expected
+			}
+		}
+	}
+
+	/**
+	 * Tests that heatmap tiles are valid PNGs coloring the grids under each pixel, at zoom levels above and below
+	 * one pixel per grid, that the tile cache stays within its byte capacity, and that the server serves tiles.
+	 * @throws Exception if a tile cannot be decoded or the server cannot be reached
+	 */
+	@Test
+	public void testHeatmapTiles() throws Exception {
+		SurvivalService s = new SurvivalService(dSource);
+		try (Connection conn = s.getDb().open()) {
+			createTestGrids(conn);
+			//Grid (75000, 100000) is pixel (248, 160) of tile 292-390-10, and pixels (128..143, 0..15) of 4687-6250-14.
+			insertTestGrid(conn, new Grid(75000, 100000, 1, 2500, 1));
+			insertTestGrid(conn, new Grid(75001, 100000, 2, 1000, 1));
+			GridIndex index = GridIndex.load(conn, TESTGRIDS);
+
+			long start = System.nanoTime();
+			BufferedImage tile = ImageIO.read(new ByteArrayInputStream(HeatmapTiles.render(index, 292, 390, 10)));
+			logger.info("Rendered a tile in {} us", (System.nanoTime() - start) / 1000);
+			assertEquals(256, tile.getWidth());
+			assertEquals(0xffff0000, tile.getRGB(248, 160) | 0xff000000);
+			//Yellow, just short of YELLOW_ALARM.
+			assertTrue((tile.getRGB(249, 160) & 0xffff00) > 0xf0f000 && (tile.getRGB(249, 160) & 0xff) == 0);
+			assertEquals(0, tile.getRGB(250, 160) >>> 24);
+
+			tile = ImageIO.read(new ByteArrayInputStream(HeatmapTiles.render(index, 4687, 6250, 14)));
+			assertEquals(tile.getRGB(128, 0), tile.getRGB(143, 15));
+			assertEquals(tile.getRGB(144, 0), tile.getRGB(159, 15));
+			assertNotEquals(tile.getRGB(128, 0), tile.getRGB(144, 0));
+			assertEquals(0, tile.getRGB(160, 0) >>> 24);
+			assertEquals(0, tile.getRGB(128, 16) >>> 24);
+
+			//At zoom 8, a pixel averages 4x4 grids.
+			tile = ImageIO.read(new ByteArrayInputStream(HeatmapTiles.render(index, 73, 97, 8)));
+			assertNotEquals(0, tile.getRGB(62, 168) >>> 24);
+			try {
+				HeatmapTiles.render(index, 4, 0, 2);
+				fail("Zoom 2 has 4 columns of tiles");
+			} catch (IllegalArgumentException e) {
+				//expected
+			}
+		}
+
+		TileCache cache = new TileCache(250);
+		cache.put(0, 1, 1, 1, new byte[100]);
+		cache.put(0, 0, 1, 1, new byte[100]);
+		assertNotNull(cache.get(0, 1, 1, 1));
+		cache.put(0, 1, 0, 1, new byte[100]);
+		assertNull(cache.get(0, 0, 1, 1));
+		assertEquals(200, cache.getBytes());
+		assertEquals(1, cache.getEvictions());
+		assertNull(cache.get(1, 1, 1, 1));
+		assertEquals(0, cache.getBytes());
+
+		String url = "http://localhost:" + Bootstrap.getPort() + "/v1/tiles/";
+		HttpURLConnection conn = (HttpURLConnection) new URL(url + "1175-1527-12.png").openConnection();
+		assertEquals("image/png", conn.getContentType());
+		assertEquals(256, ImageIO.read(conn.getInputStream()).getHeight());
+		assertEquals(400, ((HttpURLConnection) new URL(url + "1175-1527-99.png").openConnection()).getResponseCode());
+		assertEquals(400, ((HttpURLConnection) new URL(url + "1175-1527.png").openConnection()).getResponseCode());
+	}
+
+	/**
+	 * Tests that the first pyramid update renders every tile over a grid, and later ones only the tiles over changed
+	 * grids, deleting those left without alarm.
+	 * @throws Exception if the tiles cannot be written
+	 */
+	@Test
+	public void testTilePyramid() throws Exception {
+		Path directory = temp.newFolder("tiles").toPath();
+		TilePyramid pyramid = new TilePyramid(directory);
+		SurvivalService s = new SurvivalService(dSource);
+		try (Connection conn = s.getDb().open()) {
+			createTestGrids(conn);
+			insertTestGrid(conn, new Grid(75000, 100000, 1, 2500, 1));
+			insertTestGrid(conn, new Grid(75001, 100000, 2, 1000, 1));
+			insertTestGrid(conn, new Grid(76000, 100000, 3, 1000, 1));
+
+			//The two nearby grids share their tiles up to zoom 17, and the third one shares theirs up to zoom 6.
+			assertEquals(20 + 12, pyramid.update(GridIndex.load(conn, TESTGRIDS), Collections.emptySet()));
+			assertTrue(Files.exists(pyramid.tilePath(75000, 100000, 18)));
+			assertTrue(Files.exists(pyramid.tilePath(292, 390, 10)));
+			assertArrayEquals(HeatmapTiles.render(GridIndex.load(conn, TESTGRIDS), 0, 0, 0),
+					Files.readAllBytes(pyramid.tilePath(0, 0, 0)));
+
+			conn.createQuery("UPDATE " + TESTGRIDS + " SET alarm = 0 WHERE x = 76000").executeUpdate();
+			assertEquals(19, pyramid.update(GridIndex.load(conn, TESTGRIDS),
+					Collections.singleton(GridIndex.pack(76000, 100000))));
+			assertFalse(Files.exists(pyramid.tilePath(76000, 100000, 18)));
+			assertTrue(Files.exists(pyramid.tilePath(0, 0, 0)));
+			assertEquals(20, Files.list(directory).filter(p -> p.toString().endsWith(".png")).count());
+		}
+	}
+
+	/**
+	 * Tests that alarms split by hour of day rate grids and rank linkIds by the crimes around that hour, that grids
+	 * aggregated before there were hourly alarms count evenly over the day, and how crime times are read.
+	 * @throws Exception if the temporary database cannot be created
+	 */
+	@Test
+	public void testHourlyAlarms() throws Exception {
+		assertEquals(HourlyAlarmIndex.ANY_TIME, HourlyAlarmIndex.hourOfDay(86400 * 17000));
+		assertEquals(21, HourlyAlarmIndex.hourOfDay(86400 * 17000 + 77700));
+		assertEquals(77700, DatabaseUpdater.getSecondsOfDay("21:35:00"));
+		assertEquals(77700, DatabaseUpdater.getSecondsOfDay("2135"));
+		assertEquals(0, DatabaseUpdater.getSecondsOfDay("25:00:00"));
+		assertEquals(0, DatabaseUpdater.getSecondsOfDay(null));
+
+		SQLiteDataSource dataSource = tempDataSource();
+		double lat = 39.3, lng = -76.6;
+		int x = (int) Grid.projectX(lng), y = (int) Grid.projectY(lat);
+		try (Connection conn = new Sql2o(dataSource).open()) {
+			DatabaseUpdater updater = new DatabaseUpdater(conn);
+			updater.initialUpdate();
+			String sql = "INSERT INTO grids VALUES(:x, :y, :linkId, :alarm, :AADT);";
+			conn.createQuery(sql).bind(new Grid(x, y, 5, 2400, 1)).executeUpdate();
+			conn.createQuery(sql).bind(new Grid(x + 1, y, 6, 2400, 1)).executeUpdate();
+			//Spreads the existing alarms over the day.
+			updater.initialUpdate();
+			assertEquals(100, conn.createQuery("SELECT h7 FROM gridhours WHERE x = " + x)
+					.executeScalar(Double.class), 1e-9);
+			//All crimes of the first grid happened at 22h.
+			conn.createQuery("UPDATE gridhours SET " + HourlyAlarmIndex.columns("h%d = 0") + " WHERE x = " + x)
+					.executeUpdate();
+			conn.createQuery("UPDATE gridhours SET h22 = 2400 WHERE x = " + x).executeUpdate();
+		}
+
+		SurvivalService s = new SurvivalService(dataSource);
+		Coordinate c = new Coordinate(lat, lng);
+		assertEquals("red", s.getSafetyRating(c, 0, AlarmSelection.ALL, "grids"));
+		assertEquals("red", s.getSafetyRating(c, 0, AlarmSelection.atHour(23), "grids"));
+		assertEquals("green", s.getSafetyRating(c, 0, AlarmSelection.atHour(10), "grids"));
+		double nextLng = (x + 1.5) * 360 / 262144 - 180;
+		assertArrayEquals(new String[] {"green", "red"},
+				s.getSafetyRatings(new double[] {lat, lat}, new double[] {lng, nextLng}, 0, AlarmSelection.atHour(10),
+					"grids"));
+
+		Coordinate from = new Coordinate(lat, lng), to = new Coordinate(lat, lng);
+		Coordinate.sortAndExpand(from, to);
+		assertArrayEquals(new int[] {6}, s.getAvoidLinkIds(from, to, AlarmSelection.atHour(10), "grids").getRed());
+		assertArrayEquals(new int[] {5, 6}, s.getAvoidLinkIds(from, to, AlarmSelection.atHour(22), "grids").getRed());
+		try {
+			AlarmSelection.atHour(24);
+			fail("There is no hour 24");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+
+	/**
+	 * Tests that the crimes aggregated before 'gridmonths' existed are partitioned by month, and that risk over a
+	 * date window adds up the whole months and the crimes of the partial months at its edges.
+	 */
+	@Test
+	public void testDateWindowAlarms() throws Exception {
+		int january = MonthlyAlarmIndex.monthOf((int) LocalDate.of(2016, 1, 31).toEpochDay() * 86400 + 86399);
+		assertEquals(46 * 12, january);
+		assertEquals(LocalDate.of(2016, 2, 1).toEpochDay() * 86400, MonthlyAlarmIndex.startOf(january + 1));
+
+		SQLiteDataSource dataSource = tempDataSource();
+		double lat = 39.3, lng = -76.6;
+		int x = (int) Grid.projectX(lng), y = (int) Grid.projectY(lat);
+		try (Connection conn = new Sql2o(dataSource).open()) {
+			DatabaseUpdater updater = new DatabaseUpdater(conn);
+			updater.initialUpdate();
+			conn.createQuery("INSERT INTO grids VALUES(:x, :y, :linkId, :alarm, :AADT);")
+					.bind(new Grid(x, y, 9, 5900, 1000)).executeUpdate();
+			String sql = "INSERT INTO crimes VALUES(:date, 9, '', :lat, :lng, :type);";
+			conn.createQuery(sql).addParameter("date", day(2016, 1, 15)).addParameter("lat", lat)
+					.addParameter("lng", lng).addParameter("type", "HOMICIDE").executeUpdate();
+			conn.createQuery(sql).addParameter("date", day(2016, 2, 10) + 3600).addParameter("lat", lat)
+					.addParameter("lng", lng).addParameter("type", "HOMICIDE").executeUpdate();
+			conn.createQuery(sql).addParameter("date", day(2016, 3, 20)).addParameter("lat", lat)
+					.addParameter("lng", lng).addParameter("type", "COMMON ASSAULT").executeUpdate();
+			//Partitions the existing crimes by month, only once.
+			updater.initialUpdate();
+			updater.initialUpdate();
+			assertEquals(3, (int) conn.createQuery("SELECT COUNT(*) FROM gridmonths").executeScalar(Integer.class));
+			assertEquals(5900, conn.createQuery("SELECT SUM(alarm) FROM gridmonths")
+					.executeScalar(Double.class), 1e-9);
+		}
+
+		SurvivalService s = new SurvivalService(dataSource);
+		Coordinate c = new Coordinate(lat, lng);
+		DateWindow wholeJanuary = new DateWindow(day(2016, 1, 1), day(2016, 2, 1) - 1);
+		DateWindow afterFebruaryTenth = new DateWindow(day(2016, 2, 11), day(2016, 4, 1) - 1);
+		DateWindow acrossEdges = new DateWindow(day(2016, 1, 20), day(2016, 2, 10) + 7200);
+		DateWindow beforeTheCrime = new DateWindow(day(2016, 2, 10), day(2016, 2, 10) + 3599);
+		assertEquals("red", s.getSafetyRating(c, 0, AlarmSelection.within(wholeJanuary), "grids"));
+		assertEquals("green", s.getSafetyRating(c, 0, AlarmSelection.within(afterFebruaryTenth), "grids"));
+		assertEquals("red", s.getSafetyRating(c, 0, AlarmSelection.within(acrossEdges), "grids"));
+		assertEquals("green", s.getSafetyRating(c, 0, AlarmSelection.within(beforeTheCrime), "grids"));
+		assertArrayEquals(new String[] {"red", "green"}, s.getSafetyRatings(new double[] {lat, lat},
+				new double[] {lng, lng + 0.01}, 0, AlarmSelection.within(wholeJanuary), "grids"));
+
+		Coordinate from = new Coordinate(lat, lng), to = new Coordinate(lat, lng);
+		Coordinate.sortAndExpand(from, to);
+		assertArrayEquals(new int[] {9},
+				s.getAvoidLinkIds(from, to, AlarmSelection.within(acrossEdges), "grids").getRed());
+		AvoidLinkIds march = s.getAvoidLinkIds(from, to, AlarmSelection.within(afterFebruaryTenth), "grids");
+		assertEquals(0, march.getRed().length);
+		assertEquals(0, march.getYellow().length);
+		//A time of day cannot be combined with a date window
+		String url = "http://localhost:" + Bootstrap.getPort() + "/v1/safety/rating?lat=39.3&lng=-76.6&timeOfDay=10"
+				+ "&fromDate=" + wholeJanuary.getFromDate() + "&toDate=" + wholeJanuary.getToDate();
+		assertEquals(400, ((HttpURLConnection) new URL(url).openConnection()).getResponseCode());
+	}
+
+	/**
+	 * Tests that decayed alarms weigh crimes down by their age as of the newest crime, are rebuilt from the crimes
+	 * when the half-life changes, and can be asked for instead of the raw alarm.
+	 */
+	@Test
+	public void testDecayedAlarms() throws Exception {
+		int halfLife = 30 * 86400;
+		DecayedAlarm newer = new DecayedAlarm(100, 0).add(100, halfLife, halfLife);
+		assertEquals(150, newer.getAlarm(), 1e-9);
+		assertEquals(halfLife, newer.getAsOf());
+		DecayedAlarm older = new DecayedAlarm(100, halfLife).add(100, 0, halfLife);
+		assertEquals(150, older.getAlarm(), 1e-9);
+		assertEquals(halfLife, older.getAsOf());
+		assertEquals(Scoring.RAW, Scoring.parse(null));
+		assertEquals(Scoring.DECAYED, Scoring.parse("decayed"));
+
+		SQLiteDataSource dataSource = tempDataSource();
+		double lat = 39.3, lng = -76.6, nextLng = lng + 360.0 / 262144;
+		int x = (int) Grid.projectX(lng), y = (int) Grid.projectY(lat);
+		try (Connection conn = new Sql2o(dataSource).open()) {
+			DatabaseUpdater updater = new DatabaseUpdater(conn);
+			updater.setHalfLife(halfLife);
+			updater.initialUpdate();
+			String sql = "INSERT INTO grids VALUES(:x, :y, :linkId, :alarm, :AADT);";
+			conn.createQuery(sql).bind(new Grid(x, y, 5, 2500, 1000)).executeUpdate();
+			conn.createQuery(sql).bind(new Grid(x + 1, y, 6, 2500, 1000)).executeUpdate();
+			sql = "INSERT INTO crimes VALUES(:date, 0, '', :lat, :lng, 'HOMICIDE');";
+			conn.createQuery(sql).addParameter("date", day(2016, 1, 1)).addParameter("lat", lat)
+					.addParameter("lng", lng).executeUpdate();
+			conn.createQuery(sql).addParameter("date", day(2016, 12, 31)).addParameter("lat", lat)
+					.addParameter("lng", nextLng).executeUpdate();
+			updater.initialUpdate();
+			assertEquals(2500, conn.createQuery("SELECT alarm FROM griddecay WHERE x = " + x)
+					.executeScalar(Double.class), 1e-9);
+		}
+
+		SurvivalService s = new SurvivalService(dataSource);
+		Coordinate c = new Coordinate(lat, lng), next = new Coordinate(lat, nextLng);
+		assertEquals("red", s.getSafetyRating(c, 0, AlarmSelection.ALL, "grids"));
+		assertEquals("green", s.getSafetyRating(c, 0, AlarmSelection.DECAYED, "grids"));
+		assertEquals("red", s.getSafetyRating(next, 0, AlarmSelection.DECAYED, "grids"));
+		Coordinate from = new Coordinate(lat, lng), to = new Coordinate(lat, nextLng);
+		Coordinate.sortAndExpand(from, to);
+		assertArrayEquals(new int[] {6}, s.getAvoidLinkIds(from, to, AlarmSelection.DECAYED, "grids").getRed());
+		//Decayed scoring cannot be combined with a time of day
+		String url = "http://localhost:" + Bootstrap.getPort() + "/v1/safety/rating?lat=39.3&lng=-76.6&timeOfDay=10"
+				+ "&scoring=decayed";
+		assertEquals(400, ((HttpURLConnection) new URL(url).openConnection()).getResponseCode());
+
+		//A year later a crime counts half as much.
+		try (Connection conn = new Sql2o(dataSource).open()) {
+			DatabaseUpdater updater = new DatabaseUpdater(conn);
+			updater.setHalfLife(365 * 86400);
+			updater.initialUpdate();
+			assertEquals(365 * 86400, (int) conn.createQuery("SELECT MIN(halfLife) FROM griddecay")
+					.executeScalar(Integer.class));
+			GridIndex grids = GridIndex.load(conn, "grids"), decayed = DecayedAlarm.load(conn, grids);
+			assertEquals(1250, decayed.getAlarm(grids.find(x, y)), 1e-9);
+			assertEquals(2500, decayed.getAlarm(grids.find(x + 1, y)), 1e-9);
+		}
+	}
+
+	/**
+	 * Tests that the avoidLinkIds cache shares entries between boxes with the same corner grids, evicts the least
+	 * recently used entry and drops everything when the data version moves on.
+	 */
+	@Test
+	public void testAvoidLinkIdsCache() {
+		AvoidLinkIdsCache cache = new AvoidLinkIdsCache(2);
+		AvoidLinkIds a = new AvoidLinkIds(new int[] {1}, new int[0]), b = new AvoidLinkIds(new int[] {2}, new int[0]);
+		Grid from = new Grid(39.30001, -76.60001), to = new Grid(39.30999, -76.59001);
+		int any = HourlyAlarmIndex.ANY_TIME;
+		assertNull(cache.get(0, any, from, to));
+		cache.put(0, any, from, to, a);
+		assertSame(a, cache.get(0, any, new Grid(from.getX(), from.getY(), 0, 0, 0),
+				new Grid(to.getX(), to.getY(), 0, 0, 0)));
+		assertNull(cache.get(0, 22, from, to));
+
+		Grid other = new Grid(from.getX() + 1, from.getY(), 0, 0, 0);
+		cache.put(0, any, other, to, b);
+		cache.get(0, any, from, to);
+		cache.put(0, any, to, to, b);
+		assertEquals(2, cache.size());
+		assertNull(cache.get(0, any, other, to));
+		assertSame(a, cache.get(0, any, from, to));
+		assertEquals(1, cache.getEvictions());
+		assertEquals(3, cache.getHits());
+		assertEquals(3, cache.getMisses());
+
+		//Results computed under an older version are stale.
+		assertNull(cache.get(1, any, from, to));
+		assertEquals(0, cache.size());
+		cache.put(0, any, from, to, a);
+		assertNull(cache.get(1, any, from, to));
+	}
+
 	// ------------------------------------------------------------------------//
 	// Survival Maps Specific Helper Methods and classes
 	// ------------------------------------------------------------------------//
 	
+	/**
+	 * Creates the updater's tables in a database and fills the crimes table with random crimes around Baltimore.
+	 * The linkId of the i-th crime is i + 1, which is also its rowid.
+	 * @param dataSource the database
+	 * @param random source of the crimes
+	 * @param count number of crimes
+	 * @return the crimes
+	 */
+	private List<Crime> insertRandomCrimes(SQLiteDataSource dataSource, Random random, int count) {
+		List<Crime> all = new ArrayList<>();
+		try (Connection conn = new Sql2o(dataSource).open()) {
+			new DatabaseUpdater(conn).initialUpdate();
+		}
+		try (Connection conn = new Sql2o(dataSource).beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+			String sql = "INSERT INTO crimes(date, linkId, address, latitude, longitude, type) "
+					+ "VALUES (:date, :linkId, :address, :latitude, :longitude, :type)";
+			for (int i = 0; i < count; i++) {
+				Crime crime = new Crime(random.nextInt(1000) * 86400, "a" + random.nextInt(50), "t" + random.nextInt(5),
+						39.2 + random.nextDouble() * 0.2, -76.7 + random.nextDouble() * 0.2, i + 1);
+				conn.createQuery(sql).addParameter("date", crime.getDate()).addParameter("linkId", crime.getLinkId())
+						.addParameter("address", crime.getAddress()).addParameter("latitude", crime.getLat())
+						.addParameter("longitude", crime.getLng()).addParameter("type", crime.getType())
+						.executeUpdate();
+				all.add(crime);
+			}
+			conn.commit();
+		}
+		return all;
+	}
+
+	/**
+	 * Sends a POST request with a JSON body.
+	 * @param url the url
+	 * @param body the JSON body
+	 * @return the connection, with the request sent
+	 * @throws IOException if the server cannot be reached
+	 */
+	private HttpURLConnection postJson(String url, String body) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+		conn.setRequestMethod("POST");
+		conn.setDoOutput(true);
+		conn.setRequestProperty("Content-Type", "application/json");
+		try (OutputStream out = conn.getOutputStream()) {
+			out.write(body.getBytes(StandardCharsets.UTF_8));
+		}
+		return conn;
+	}
+
+	/**
+	 * Creates an empty grids-shaped test table.
+	 * @param conn database connection
+	 */
+	private void createTestGrids(Connection conn) {
+		String sql = "CREATE TABLE IF NOT EXISTS " + TESTGRIDS
+				+ " (x INTEGER NOT NULL, y INTEGER NOT NULL, linkId INTEGER NOT NULL, alarm REAL NOT NULL, AADT INTEGER NOT NULL, "
+				+ " PRIMARY KEY (x, y));";
+		conn.createQuery(sql).executeUpdate();
+	}
+
+	/**
+	 * Inserts a grid into the grids-shaped test table.
+	 * @param conn database connection
+	 * @param grid grid to insert
+	 */
+	private void insertTestGrid(Connection conn, Grid grid) {
+		String sql = "INSERT INTO " + TESTGRIDS + " VALUES(:x, :y, :linkId, :alarm, :AADT);";
+		conn.createQuery(sql).bind(grid).executeUpdate();
+	}
+
+	/**
+	 * Tests that the grid table finds grids by (x, y) as it grows, and benchmarks the historical aggregation to check
+	 * that its time per crime stays flat as the number of crimes and grids grows eightfold.
+	 */
+	@Test
+	public void testHistoricalAggregationScalesLinearly() throws Exception {
+		GridTable table = new GridTable(2);
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, table.add(1000 + i * 7, 2000 - i, i, i * 0.5, i + 1));
+		}
+		assertEquals(1000, table.size());
+		int slot = table.find(1000 + 700, 1900);
+		assertEquals(100, slot);
+		assertEquals(50, table.getAlarm(slot), 1e-9);
+		assertEquals(-1, table.find(1001, 2000));
+		try {
+			table.add(1000, 2000, 0, 0, 1);
+			fail("Grids are unique");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+
+		aggregateHistoricalCrimes(1000);
+		long small = aggregateHistoricalCrimes(1000), large = aggregateHistoricalCrimes(8000);
+		double ratio = (large / 8000.0) / (small / 1000.0);
+		logger.info("Historical aggregation: {} ms for 1000 crimes, {} ms for 8000 crimes, per-crime ratio {}",
+				small / 1000000, large / 1000000, ratio);
+		assertTrue("Time per crime grew " + ratio + " times", ratio < 4);
+	}
+
+	/**
+	 * Tests that the grid table flags only the grids that were added or changed, and that the updater writes back
+	 * only those, leaving the other rows of 'grids' untouched.
+	 */
+	@Test
+	public void testDirtyGridWriteBack() throws Exception {
+		SQLiteDataSource dataSource = tempDataSource();
+		double lat = 39.3, lng = -76.6;
+		int x = (int) Grid.projectX(lng), y = (int) Grid.projectY(lat);
+		try (Connection conn = new Sql2o(dataSource).open()) {
+			DatabaseUpdater updater = new DatabaseUpdater(conn);
+			updater.initialUpdate();
+			String sql = "INSERT INTO grids VALUES(:x, :y, :linkId, :alarm, :AADT);";
+			conn.createQuery(sql).bind(new Grid(x, y, 5, 0, 1000)).executeUpdate();
+			conn.createQuery(sql).bind(new Grid(x + 1, y, 6, 100, 1000)).executeUpdate();
+
+			GridTable table = GridTable.load(conn);
+			assertEquals(0, table.getDirtySlots().length);
+			int slot = table.find(x + 1, y);
+			table.setAlarm(slot, 100);
+			table.setLinkId(slot, 6);
+			assertEquals(0, table.getDirtySlots().length);
+			table.setAlarm(slot, 200);
+			table.setAlarm(slot, 300);
+			int added = table.add(x + 2, y, 7, 0, 1);
+			assertArrayEquals(new int[] {slot, added}, table.getDirtySlots());
+			table.markClean();
+			assertEquals(0, table.getDirtySlots().length);
+
+			conn.createQuery("INSERT INTO crimes VALUES(:date, 5, '', :lat, :lng, 'ROBBERY');")
+					.addParameter("date", day(2016, 1, 1)).addParameter("lat", lat).addParameter("lng", lng)
+					.executeUpdate();
+			String rowIdSql = "SELECT rowid FROM grids WHERE x = :x AND y = :y";
+			int untouched = conn.createQuery(rowIdSql).addParameter("x", x + 1).addParameter("y", y)
+					.executeScalar(Integer.class);
+			updater.updateHistoricalCrimes();
+			assertEquals(800, conn.createQuery("SELECT alarm FROM grids WHERE x = " + x)
+					.executeScalar(Double.class), 1e-9);
+			assertEquals(untouched, (int) conn.createQuery(rowIdSql).addParameter("x", x + 1).addParameter("y", y)
+					.executeScalar(Integer.class));
+			assertEquals(2, (int) conn.createQuery("SELECT COUNT(*) FROM grids").executeScalar(Integer.class));
+		}
+	}
+
+	/**
+	 * Tests that the crime feed is decoded one record at a time as it arrives: the first crime is read while the
+	 * stand-in source is still holding back the rest of a large feed.
+	 */
+	@Test
+	public void testCrimeFeedStreaming() throws Exception {
+		CountDownLatch firstRead = new CountDownLatch(1);
+		AtomicBoolean released = new AtomicBoolean();
+		int count = 100000;
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/crimes", exchange -> {
+			exchange.sendResponseHeaders(200, 0);
+			try (Writer out = new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8)) {
+				out.write("[" + crimeJson("2016-01-01T00:00:00.000", "12:30:00", "ROBBERY - STREET", "O", 39.3, -76.6));
+				out.flush();
+				released.set(firstRead.await(10, TimeUnit.SECONDS));
+				String crime = "," + crimeJson("2016-01-01T00:00:00.000", null, "COMMON ASSAULT", "I", 39.3, -76.6);
+				for (int i = 1; i < count; i++) {
+					out.write(crime);
+				}
+				out.write("]");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		server.start();
+		try (CrimeFeedReader crimes = CrimeAPIHandler.openCrimeFeed(
+				"http://localhost:" + server.getAddress().getPort() + "/crimes")) {
+			CrimeRecord first = crimes.next();
+			firstRead.countDown();
+			assertEquals("ROBBERY - STREET", first.getDescription());
+			assertEquals("12:30:00", first.getCrimeTime());
+			assertEquals(39.3, first.getLatitude(), 1e-9);
+			assertEquals(-76.6, first.getLongitude(), 1e-9);
+
+			int read = 1;
+			for (CrimeRecord crime; (crime = crimes.next()) != null; read++) {
+				assertNull(crime.getCrimeTime());
+			}
+			assertEquals(count, read);
+			assertTrue("The first crime was only read once the whole feed was sent", released.get());
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	/**
+	 * Tests a whole update from stand-in crime and traffic sources: traffic counts raise the AADT of a grid, and only
+	 * the eligible outdoor crime is aggregated into it and stored.
+	 */
+	@Test
+	public void testUpdateFromFeeds() throws Exception {
+		SQLiteDataSource dataSource = tempDataSource();
+		double lat = 39.3, lng = -76.6;
+		Grid grid = new Grid(lat, lng);
+		String traffic = "{\"type\":\"FeatureCollection\",\"features\":["
+				+ trafficJson(2000, "[" + lng + "," + lat + "],[\"bad\"," + lat + "]")
+				+ "," + trafficJson(60000, "[" + lng + "," + lat + "]")
+				+ ",{\"properties\":{},\"geometry\":{\"coordinates\":[[" + lng + "," + lat + "]]}}"
+				+ "]}";
+		String crimes = "[" + crimeJson("2016-01-02T00:00:00.000", "0930", "ROBBERY - STREET", "O", lat, lng)
+				+ "," + crimeJson("2016-01-02T00:00:00.000", "0930", "COMMON ASSAULT", "I", lat, lng)
+				+ "," + crimeJson("2016-01-02T00:00:00.000", "0930", "BURGLARY", "O", lat, lng)
+				+ "," + crimeJson("2016-01-02T00:00:00.000", "0930", "HOMICIDE", "O", 40.0, lng)
+				+ ",{\"crimedate\":\"2016-01-02T00:00:00.000\",\"description\":\"HOMICIDE\"}"
+				+ "]";
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/traffic", exchange -> {
+			byte[] body = traffic.getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.createContext("/crimes", exchange -> {
+			byte[] body = crimes.getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+		try (Connection conn = new Sql2o(dataSource).open()) {
+			DatabaseUpdater updater = new DatabaseUpdater(conn);
+			updater.initialUpdate();
+			//A known linkId, so that no linkId is requested from MapQuest.
+			conn.createQuery("INSERT INTO grids VALUES(:x, :y, :linkId, :alarm, :AADT);")
+					.bind(new Grid(grid.getX(), grid.getY(), 5, 0, 1000)).executeUpdate();
+			String source = "http://localhost:" + server.getAddress().getPort();
+			updater.setTrafficSourceUrl(source + "/traffic");
+			updater.setCrimeSourceUrl(source + "/crimes");
+			updater.update();
+
+			assertEquals(1, (int) conn.createQuery("SELECT COUNT(*) FROM grids").executeScalar(Integer.class));
+			assertEquals(2000, (int) conn.createQuery("SELECT AADT FROM grids").executeScalar(Integer.class));
+			assertEquals(5, (int) conn.createQuery("SELECT linkId FROM grids").executeScalar(Integer.class));
+			assertEquals(500, conn.createQuery("SELECT alarm FROM grids").executeScalar(Double.class), 1e-9);
+			List<Crime> stored = conn.createQuery("SELECT * FROM crimes").executeAndFetch(Crime.class);
+			assertEquals(1, stored.size());
+			assertEquals("ROBBERY - STREET", stored.get(0).getType());
+			assertEquals(day(2016, 1, 2) + 9 * 3600 + 30 * 60, stored.get(0).getDate());
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	/**
+	 * Tests that traffic ingestion keeps the max AADT of each grid over all the coordinates falling into it, never
+	 * lowers the AADT of a grid already in the database, and loads a long road in a single pass.
+	 */
+	@Test
+	public void testTrafficMaxAADTMerge() throws Exception {
+		SQLiteDataSource dataSource = tempDataSource();
+		double lat = 39.3, lng = -76.6;
+		int x = (int) Grid.projectX(lng), y = (int) Grid.projectY(lat);
+		int count = 2000;
+		StringBuilder road = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (i > 0) road.append(',');
+			//Rows of 40 grids, 0.002 degrees of latitude apart so that each row falls into its own grids.
+			road.append('[').append((x + i % 40 + 0.5) * 360 / 262144 - 180).append(',').append(lat + i / 40 * 0.002)
+					.append(']');
+		}
+		String traffic = "{\"features\":[" + trafficJson(300, road.toString())
+				+ "," + trafficJson(700, "[" + lng + "," + lat + "]")
+				+ "," + trafficJson(100, "[" + ((x + 1.5) * 360 / 262144 - 180) + "," + lat + "]")
+				+ "]}";
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/traffic", exchange -> {
+			byte[] body = traffic.getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+		try (Connection conn = new Sql2o(dataSource).open()) {
+			DatabaseUpdater updater = new DatabaseUpdater(conn);
+			updater.initialUpdate();
+			conn.createQuery("INSERT INTO grids VALUES(:x, :y, :linkId, :alarm, :AADT);")
+					.bind(new Grid(x + 2, y, 5, 80, 1000)).executeUpdate();
+			updater.setTrafficSourceUrl("http://localhost:" + server.getAddress().getPort() + "/traffic");
+			updater.updateTraffics();
+
+			String sqlAADT = "SELECT AADT FROM grids WHERE x = :x AND y = :y";
+			assertEquals(count, (int) conn.createQuery("SELECT COUNT(*) FROM grids").executeScalar(Integer.class));
+			assertEquals(700, (int) conn.createQuery(sqlAADT).addParameter("x", x).addParameter("y", y)
+					.executeScalar(Integer.class));
+			assertEquals(300, (int) conn.createQuery(sqlAADT).addParameter("x", x + 1).addParameter("y", y)
+					.executeScalar(Integer.class));
+			assertEquals(1000, (int) conn.createQuery(sqlAADT).addParameter("x", x + 2).addParameter("y", y)
+					.executeScalar(Integer.class));
+			assertEquals(80, conn.createQuery("SELECT alarm FROM grids WHERE x = " + (x + 2) + " AND y = " + y)
+					.executeScalar(Double.class), 1e-9);
+			assertEquals(300 * (count - 3) + 700 + 300 + 1000, (int) conn.createQuery("SELECT SUM(AADT) FROM grids")
+					.executeScalar(Integer.class));
+
+			//The traffic source is only ever read once.
+			server.removeContext("/traffic");
+			updater.updateTraffics();
+			assertEquals(count, (int) conn.createQuery("SELECT COUNT(*) FROM grids").executeScalar(Integer.class));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	/**
+	 * Tests that the AADT approximation, from the raster or from probing the grid table, gives exactly the values of
+	 * the original approximation that probed the 'grids' table one grid at a time, and ignores grids added to the
+	 * grid table after it was built.
+	 */
+	@Test
+	public void testAADTApproximation() throws Exception {
+		SQLiteDataSource dataSource = tempDataSource();
+		Random random = new Random(23);
+		int x0 = (int) Grid.projectX(-76.6), y0 = (int) Grid.projectY(39.3), side = 40;
+		try (Connection conn = new Sql2o(dataSource).open()) {
+			new DatabaseUpdater(conn).initialUpdate();
+			Query insert = conn.createQuery("INSERT INTO grids VALUES(:x, :y, 0, 0, :AADT);");
+			for (int x = x0; x < x0 + side; x++) {
+				for (int y = y0; y < y0 + side; y++) {
+					if (random.nextInt(15) != 0) continue;
+					//Some odd AADTs, a few of them 0, to exercise the rounding.
+					int aadt = random.nextInt(8) == 0 ? random.nextInt(3) : random.nextInt(60000);
+					insert.addParameter("x", x).addParameter("y", y).addParameter("AADT", aadt).addToBatch();
+				}
+			}
+			insert.executeBatch();
+
+			GridTable table = GridTable.load(conn);
+			AADTApproximation raster = AADTApproximation.build(table);
+			AADTApproximation probing = AADTApproximation.build(table, 0);
+			table.add(x0 - 3, y0 - 3, 0, 0, 50000);
+			int compared = 0;
+			/*
+			The reference is the approximation as it was first written, probing the 'grids' table one grid at a time
+			in the left, right, up and down directions. It is written out inline, and only run on a quarter of the
+			grids, since PowerMock makes every call from the test class slow; the raster and the probing are compared
+			with each other everywhere.
+			 */
+			int[] xIncrements = {-1, 1, 0, 0}, yIncrements = {0, 0, 1, -1};
+			try (PreparedStatement fetchAADT = conn.getJdbcConnection()
+					.prepareStatement("SELECT AADT FROM grids WHERE x= ? AND y= ?")) {
+				for (int x = x0 - 12; x < x0 + side + 12; x++) {
+					for (int y = y0 - 12; y < y0 + side + 12; y++) {
+						assertEquals("(" + x + "," + y + ")", probing.approximate(x, y), raster.approximate(x, y));
+						if ((x + y) % 4 != 0) continue;
+						double sum = 0;
+						for (int direction = 0; direction < 4; direction++) {
+							double closestAADT = 1;
+							int distance = 10;
+							for (int step = 0; step < 10; step++) {
+								fetchAADT.setInt(1, x + step * xIncrements[direction]);
+								fetchAADT.setInt(2, y + step * yIncrements[direction]);
+								try (ResultSet rs = fetchAADT.executeQuery()) {
+									if (rs.next()) {
+										closestAADT = rs.getInt(1);
+										distance = step;
+										break;
+									}
+								}
+							}
+							for (int step = 0; step < distance; step++) {
+								closestAADT = 0.8 * closestAADT;
+							}
+							sum += closestAADT;
+						}
+						int expected = (int) sum * 1/3;
+						if (expected == 0) expected++;
+						assertEquals("Raster at (" + x + "," + y + ")", expected, raster.approximate(x, y));
+						assertEquals("Probing at (" + x + "," + y + ")", expected, probing.approximate(x, y));
+						compared++;
+					}
+				}
+			}
+			assertEquals(64 * 64 / 4, compared);
+			assertEquals(1, AADTApproximation.build(new GridTable(1)).approximate(x0, y0));
+		}
+	}
+
+	/**
+	 * Tests that the linkId resolver looks each grid up once, concurrently and within its request rate, keeps the
+	 * linkIds in the database for the next resolvers, and reports failed lookups.
+	 */
+	@Test
+	public void testLinkIdResolver() throws Exception {
+		SQLiteDataSource dataSource = tempDataSource();
+		AtomicInteger requests = new AtomicInteger(), concurrent = new AtomicInteger(), maxConcurrent = new AtomicInteger();
+		HttpServer server = startLinkIdServer(requests, concurrent, maxConcurrent);
+		String endpoint = "http://localhost:" + server.getAddress().getPort() + "/findlinkid";
+		double lat = 39.3;
+		int x0 = (int) Grid.projectX(-76.6), y = (int) Grid.projectY(lat), count = 12;
+		try (Connection conn = new Sql2o(dataSource).open()) {
+			new DatabaseUpdater(conn).initialUpdate();
+
+			List<CompletableFuture<Integer>> lookups = new ArrayList<>();
+			long start = System.nanoTime();
+			try (LinkIdResolver resolver = LinkIdResolver.load(conn, endpoint, 20, 4)) {
+				for (int i = 0; i < count; i++) {
+					double lng = (x0 + i + 0.5) * 360 / 262144 - 180;
+					CompletableFuture<Integer> lookup = resolver.resolve(x0 + i, y, lat, lng);
+					assertSame(lookup, resolver.resolve(x0 + i, y, lat, lng + 1e-6));
+					lookups.add(lookup);
+				}
+				resolver.await();
+				long elapsed = System.nanoTime() - start;
+				assertEquals(count, requests.get());
+				assertTrue("At most one lookup at a time", maxConcurrent.get() > 1);
+				//The first request is sent at once, the others 1/20 s apart.
+				assertTrue("Sent in " + elapsed / 1000000 + " ms", elapsed >= (count - 1) * 50000000L * 9 / 10);
+				for (int i = 0; i < count; i++) {
+					assertEquals(x0 + i, (int) lookups.get(i).join());
+				}
+				assertEquals(count, resolver.persist(conn));
+				assertEquals(0, resolver.persist(conn));
+			}
+			assertEquals(count, (int) conn.createQuery("SELECT COUNT(*) FROM linkids").executeScalar(Integer.class));
+
+			try (LinkIdResolver resolver = LinkIdResolver.load(conn, endpoint, 20, 4)) {
+				for (int i = 0; i < count; i++) {
+					CompletableFuture<Integer> lookup = resolver.resolve(x0 + i, y, lat, -76.6);
+					assertTrue(lookup.isDone());
+					assertEquals(x0 + i, (int) lookup.join());
+				}
+				//The fake server fails for coordinates north of 39.31.
+				resolver.resolve(x0, y - 100, 39.35, -76.6);
+				try {
+					resolver.await();
+					fail("The lookup failed");
+				} catch (IOException e) {
+					//expected
+				}
+				assertEquals(0, resolver.persist(conn));
+			}
+			assertEquals(count + 1, requests.get());
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	/**
+	 * Tests that an update looks up the linkIds of the grids without one while it goes on, from the cache first, and
+	 * hands them to the grids and the crimes stored, and that an update whose lookups fail stores none of its crimes,
+	 * so that the next update aggregates them.
+	 */
+	@Test
+	public void testUpdateResolvesLinkIds() throws Exception {
+		SQLiteDataSource dataSource = tempDataSource();
+		AtomicInteger requests = new AtomicInteger(), concurrent = new AtomicInteger(), maxConcurrent = new AtomicInteger();
+		HttpServer server = startLinkIdServer(requests, concurrent, maxConcurrent);
+		double lat = 39.3;
+		int x0 = (int) Grid.projectX(-76.6), y = (int) Grid.projectY(lat);
+		double[] lngs = new double[3];
+		for (int i = 0; i < lngs.length; i++) {
+			lngs[i] = (x0 + i + 0.5) * 360 / 262144 - 180;
+		}
+		//Two crimes on a new grid, one on a grid from the traffic source, one on a grid looked up before.
+		String crimes = "[" + crimeJson("2016-01-02T00:00:00.000", "0930", "ROBBERY - STREET", "O", lat, lngs[0])
+				+ "," + crimeJson("2016-01-02T00:00:00.000", "0930", "HOMICIDE", "O", lat, lngs[0])
+				+ "," + crimeJson("2016-01-02T00:00:00.000", "0930", "HOMICIDE", "O", lat, lngs[1])
+				+ "," + crimeJson("2016-01-02T00:00:00.000", "0930", "HOMICIDE", "O", lat, lngs[2])
+				+ "]";
+		//The same crimes, and one more whose linkId cannot be looked up.
+		AtomicReference<String> feed = new AtomicReference<>(crimes.substring(0, crimes.length() - 1) + ","
+				+ crimeJson("2016-01-02T00:00:00.000", "0930", "HOMICIDE", "O", 39.32, lngs[0]) + "]");
+		server.createContext("/crimes", exchange -> {
+			byte[] body = feed.get().getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		try (Connection conn = new Sql2o(dataSource).open()) {
+			DatabaseUpdater updater = new DatabaseUpdater(conn);
+			updater.initialUpdate();
+			conn.createQuery("INSERT INTO updatelog VALUES('traffic', 1);").executeUpdate();
+			conn.createQuery("INSERT INTO grids VALUES(:x, :y, 0, 0, 1000);")
+					.addParameter("x", x0 + 1).addParameter("y", y).executeUpdate();
+			conn.createQuery("INSERT INTO linkids VALUES(:x, :y, 777);")
+					.addParameter("x", x0 + 2).addParameter("y", y).executeUpdate();
+			String source = "http://localhost:" + server.getAddress().getPort();
+			updater.setCrimeSourceUrl(source + "/crimes");
+			updater.setLinkIdSourceUrl(source + "/findlinkid");
+			updater.setLinkIdRequestsPerSecond(100);
+			try {
+				updater.update();
+				fail("A linkId lookup failed");
+			} catch (IOException e) {
+				//expected
+			}
+			assertEquals(0, (int) conn.createQuery("SELECT COUNT(*) FROM crimes").executeScalar(Integer.class));
+			assertEquals(0, (int) conn.createQuery("SELECT COUNT(*) FROM gridmonths").executeScalar(Integer.class));
+
+			feed.set(crimes);
+			updater.update();
+			String sqlLinkId = "SELECT linkId FROM grids WHERE x = :x AND y = :y";
+			assertEquals(x0, (int) conn.createQuery(sqlLinkId).addParameter("x", x0).addParameter("y", y)
+					.executeScalar(Integer.class));
+			assertEquals(x0 + 1, (int) conn.createQuery(sqlLinkId).addParameter("x", x0 + 1).addParameter("y", y)
+					.executeScalar(Integer.class));
+			assertEquals(777, (int) conn.createQuery(sqlLinkId).addParameter("x", x0 + 2).addParameter("y", y)
+					.executeScalar(Integer.class));
+			assertEquals(Arrays.asList(777, x0, x0, x0 + 1), conn.createQuery("SELECT linkId FROM crimes ORDER BY linkId")
+					.executeScalarList(Integer.class));
+			assertEquals(3, (int) conn.createQuery("SELECT COUNT(*) FROM linkids").executeScalar(Integer.class));
+			assertEquals(3, (int) conn.createQuery("SELECT COUNT(*) FROM linkrisks").executeScalar(Integer.class));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	/**
+	 * Tests that the crime pipeline aggregates a multi-year history the same way on several threads as on one, with
+	 * each grid taking the linkId of its last crime, and that a failing stage fails the whole run.
+	 */
+	@Test
+	public void testCrimePipeline() throws Exception {
+		SQLiteDataSource single = rebuildHistoricalCrimes(4000, 1), striped = rebuildHistoricalCrimes(4000, 4);
+		try (Connection conn = new Sql2o(striped).open()) {
+			conn.createQuery("ATTACH DATABASE :path AS single;")
+					.addParameter("path", single.getUrl().substring("jdbc:sqlite:".length())).executeUpdate();
+			assertEquals(200, (int) conn.createQuery("SELECT COUNT(*) FROM grids").executeScalar(Integer.class));
+			for (String table : Arrays.asList("grids", "gridmonths", "linkrisks")) {
+				assertEquals(table, 0, (int) conn.createQuery("SELECT COUNT(*) FROM (SELECT * FROM " + table
+						+ " EXCEPT SELECT * FROM single." + table + ");").executeScalar(Integer.class));
+				assertEquals(table, 0, (int) conn.createQuery("SELECT COUNT(*) FROM (SELECT * FROM single." + table
+						+ " EXCEPT SELECT * FROM " + table + ");").executeScalar(Integer.class));
+			}
+			assertEquals(200, (int) conn.createQuery("SELECT COUNT(*) FROM gridhours g JOIN single.gridhours s "
+					+ "USING (x, y) WHERE ABS(g.h0 - s.h0) + ABS(g.h9 - s.h9) + ABS(g.h23 - s.h23) < 1e-6;")
+					.executeScalar(Integer.class));
+			assertEquals(200, (int) conn.createQuery("SELECT COUNT(*) FROM griddecay g JOIN single.griddecay s "
+					+ "USING (x, y) WHERE ABS(g.alarm - s.alarm) <= 1e-9 * s.alarm AND g.asOf = s.asOf;")
+					.executeScalar(Integer.class));
+			assertEquals(200, (int) conn.createQuery("SELECT COUNT(*) FROM grids g JOIN crimes c "
+					+ "ON g.x = CAST((c.longitude + 180) / 360 * 262144 AS INTEGER) AND g.linkId = c.linkId "
+					+ "WHERE c.rowid IN (SELECT MAX(rowid) FROM crimes GROUP BY longitude);")
+					.executeScalar(Integer.class));
+		}
+
+		GridTable table = new GridTable(2);
+		Crime[] crimes = {new Crime(day(2016, 1, 1), 39.3, -76.6), new Crime(day(2016, 1, 2), 39.3, -76.6)};
+		AtomicInteger read = new AtomicInteger();
+		try {
+			CrimePipeline.forHistoricalCrimes(table, AADTApproximation.build(table), DecayedAlarm.DEFAULT_HALF_LIFE, 4)
+					.run(() -> read.get() < crimes.length ? crimes[read.getAndIncrement()] : null, crime -> {
+						throw new IllegalStateException("Filter failed");
+					});
+			fail("A failing stage fails the run");
+		} catch (IllegalStateException e) {
+			assertEquals("Filter failed", e.getMessage());
+		}
+		try {
+			CrimePipeline.forHistoricalCrimes(table, AADTApproximation.build(table), DecayedAlarm.DEFAULT_HALF_LIFE, 4)
+					.<Crime>run(() -> {
+						throw new IOException("Source failed");
+					}, crime -> crime);
+			fail("A failing source fails the run");
+		} catch (IOException e) {
+			assertEquals("Source failed", e.getMessage());
+		}
+	}
+
+	/**
+	 * Start a stand-in for MapQuest's findlinkid on /findlinkid, answering each coordinate with the x index of its
+	 * grid as linkId after 50 ms, or failing for latitudes north of 39.31.
+	 * @param requests counts the requests
+	 * @param concurrent counts the requests being answered
+	 * @param maxConcurrent most requests answered at once
+	 * @return the server, to be stopped by the caller
+	 * @throws IOException if the server cannot be started
+	 */
+	private HttpServer startLinkIdServer(AtomicInteger requests, AtomicInteger concurrent, AtomicInteger maxConcurrent)
+			throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/findlinkid", exchange -> {
+			requests.incrementAndGet();
+			maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(50);
+				double lat = 0, lng = 0;
+				for (String parameter : exchange.getRequestURI().getQuery().split("&")) {
+					String[] pair = parameter.split("=");
+					if (pair[0].equals("lat")) lat = Double.parseDouble(pair[1]);
+					if (pair[0].equals("lng")) lng = Double.parseDouble(pair[1]);
+				}
+				byte[] body = ("{\"linkId\":" + (int) Grid.projectX(lng) + "}").getBytes(StandardCharsets.UTF_8);
+				exchange.sendResponseHeaders(lat > 39.31 ? 500 : 200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				concurrent.decrementAndGet();
+			}
+		});
+		server.start();
+		return server;
+	}
+
+	/**
+	 * A crime object as sent by the crime source.
+	 * @param crimeDate date of the crime
+	 * @param crimeTime time of the crime, or null to leave it out
+	 * @param description type of the crime
+	 * @param insideOutside "I" for indoor, "O" for outdoor
+	 * @param lat latitude
+	 * @param lng longitude
+	 * @return the JSON object
+	 */
+	private static String crimeJson(String crimeDate, String crimeTime, String description, String insideOutside,
+			double lat, double lng) {
+		return "{\"crimedate\":\"" + crimeDate + "\","
+				+ (crimeTime == null ? "" : "\"crimetime\":\"" + crimeTime + "\",")
+				+ "\"description\":\"" + description + "\",\"inside_outside\":\"" + insideOutside + "\","
+				+ "\"location\":\"3400 N CHARLES ST\","
+				+ "\"location_1\":{\"type\":\"Point\",\"coordinates\":[" + lng + "," + lat + "]}}";
+	}
+
+	/**
+	 * A feature as sent by the traffic source.
+	 * @param aadt AADT of the feature
+	 * @param coordinates positions of the line string, without the enclosing brackets
+	 * @return the JSON object
+	 */
+	private static String trafficJson(int aadt, String coordinates) {
+		return "{\"type\":\"Feature\",\"properties\":{\"AADT_2014\":" + aadt + "},"
+				+ "\"geometry\":{\"type\":\"LineString\",\"coordinates\":[" + coordinates + "]}}";
+	}
+
+	/**
+	 * Aggregate one historical crime into each of a row of grids with a known AADT.
+	 * @param count number of crimes and grids
+	 * @return nanoseconds taken by the aggregation
+	 */
+	private long aggregateHistoricalCrimes(int count) throws Exception {
+		SQLiteDataSource dataSource = tempDataSource();
+		double lat = 39.3;
+		int x = (int) Grid.projectX(-76.6);
+		try (Connection conn = new Sql2o(dataSource).open()) {
+			new DatabaseUpdater(conn).initialUpdate();
+		}
+		try (Connection conn = new Sql2o(dataSource).beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+			Query grids = conn.createQuery("INSERT INTO grids VALUES(:x, :y, 0, 0, 1000);");
+			Query crimes = conn.createQuery("INSERT INTO crimes VALUES(:date, :linkId, '', :lat, :lng, 'ROBBERY');");
+			for (int i = 0; i < count; i++) {
+				grids.addParameter("x", x + i).addParameter("y", (int) Grid.projectY(lat)).addToBatch();
+				crimes.addParameter("date", day(2016, 1, 1)).addParameter("linkId", i + 1).addParameter("lat", lat)
+						.addParameter("lng", (x + i + 0.5) * 360 / 262144 - 180).addToBatch();
+			}
+			grids.executeBatch();
+			crimes.executeBatch();
+			conn.commit();
+		}
+		try (Connection conn = new Sql2o(dataSource).open()) {
+			DatabaseUpdater updater = new DatabaseUpdater(conn);
+			updater.initialUpdate();
+			long start = System.nanoTime();
+			updater.updateHistoricalCrimes();
+			long elapsed = System.nanoTime() - start;
+			assertEquals(count * 800, conn.createQuery("SELECT SUM(alarm) FROM grids").executeScalar(Double.class),
+					1e-6);
+			return elapsed;
+		}
+	}
+
+	/**
+	 * Rebuild the grids from historical crimes spread over a row of 200 grids, a third of them known to the traffic
+	 * source, and about 5 years: two crimes a day, one at midnight and one at some time of the day.
+	 * @param count number of crimes
+	 * @param threads threads of the crime pipeline
+	 * @return the rebuilt database
+	 * @throws Exception if the update fails
+	 */
+	private SQLiteDataSource rebuildHistoricalCrimes(int count, int threads) throws Exception {
+		SQLiteDataSource dataSource = tempDataSource();
+		double lat = 39.3;
+		int x0 = (int) Grid.projectX(-76.6);
+		try (Connection conn = new Sql2o(dataSource).open()) {
+			DatabaseUpdater updater = new DatabaseUpdater(conn);
+			updater.initialUpdate();
+			conn.createQuery("WITH RECURSIVE seq(i) AS (SELECT 0 UNION ALL SELECT i + 3 FROM seq WHERE i < 197) "
+					+ "INSERT INTO grids SELECT :x0 + i, :y, 0, 0, 500 + 10 * i FROM seq;")
+					.addParameter("x0", x0).addParameter("y", (int) Grid.projectY(lat)).executeUpdate();
+			conn.createQuery("WITH RECURSIVE seq(i) AS (SELECT 0 UNION ALL SELECT i + 1 FROM seq WHERE i < :last) "
+					+ "INSERT INTO crimes SELECT :from + i / 2 * 86400 + i % 2 * (i * 37 % 86400), 1 + i * 7 % 13, '', "
+					+ ":lat, (:x0 + i % 200 + 0.5) * 360 / 262144 - 180, CASE i % 4 WHEN 0 THEN 'ROBBERY - STREET' "
+					+ "WHEN 1 THEN 'HOMICIDE' WHEN 2 THEN 'ROBBERY' ELSE 'COMMON ASSAULT' END FROM seq;")
+					.addParameter("last", count - 1).addParameter("from", day(2011, 1, 1)).addParameter("lat", lat)
+					.addParameter("x0", x0).executeUpdate();
+
+			updater.setCrimePipelineThreads(threads);
+			long start = System.nanoTime();
+			updater.updateHistoricalCrimes();
+			logger.info("Historical rebuild of {} crimes on {} threads: {} ms", count, threads,
+					(System.nanoTime() - start) / 1000000);
+		}
+		return dataSource;
+	}
+
+	/**
+	 * Crime date at midnight of a day.
+	 * @param year the year
+	 * @param month the month, from 1 to 12
+	 * @param dayOfMonth the day of the month
+	 * @return seconds since the epoch
+	 */
+	private static int day(int year, int month, int dayOfMonth) {
+		return (int) LocalDate.of(year, month, dayOfMonth).toEpochDay() * 86400;
+	}
+
+	/**
+	 * Creates a data source for a fresh database in a temporary file, for tests that need the real table layout
+	 * without touching server.db. The file is deleted with the temporary folder after the test.
+	 * @return the data source
+	 * @throws IOException if the temporary file cannot be created
+	 */
+	private SQLiteDataSource tempDataSource() throws IOException {
+		File file = File.createTempFile("survival", ".db", temp.getRoot());
+		SQLiteDataSource dataSource = new SQLiteDataSource();
+		dataSource.setUrl("jdbc:sqlite:" + file.getAbsolutePath());
+		return dataSource;
+	}
+
 	/**
 	 * Clears the database of all test tables.
 	 * @return the clean database source
@@ -333,6 +2023,8 @@ public class ServerTest {
 			conn.createQuery(sql).executeUpdate();
 			String sql2 = "DROP TABLE IF EXISTS TestSafetyRating";
 			conn.createQuery(sql2).executeUpdate();
+			String sql3 = "DROP TABLE IF EXISTS " + TESTGRIDS;
+			conn.createQuery(sql3).executeUpdate();
 		}
 	
 		return dataSource;